@@ -0,0 +1,33 @@
+/*
+ * Copyright 2016 Mario Guggenberger <mg@protyposis.net>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.protyposis.android.spectaculum;
+
+import android.content.Context;
+
+/**
+ * Gives tests of other packages access to the library setup that is otherwise done by
+ * {@link SpectaculumView}.
+ */
+public class LibraryTestHelper {
+
+    /**
+     * Sets the context that the shader assets are loaded from.
+     */
+    public static void setContext(Context context) {
+        LibraryHelper.setContext(context);
+    }
+}
@@ -0,0 +1,167 @@
+/*
+ * Copyright 2016 Mario Guggenberger <mg@protyposis.net>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.protyposis.android.spectaculum.gles;
+
+import android.graphics.PixelFormat;
+import android.media.Image;
+import android.media.ImageReader;
+import android.opengl.GLES20;
+import android.os.Build;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.filters.SdkSuppress;
+import android.support.test.runner.AndroidJUnit4;
+
+import net.protyposis.android.spectaculum.LibraryTestHelper;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Records frames into an {@link ImageReader} surface that stands in for the input surface of an
+ * encoder, and validates the frames that arrive at the surface.
+ */
+@RunWith(AndroidJUnit4.class)
+@SdkSuppress(minSdkVersion = Build.VERSION_CODES.KITKAT)
+public class FrameRecorderTest {
+
+    private static final int WIDTH = 64;
+    private static final int HEIGHT = 64;
+    private static final long FRAME_TIMEOUT_MS = 2000;
+
+    /**
+     * A frame that has arrived at the encoder surface.
+     */
+    private static class ReceivedFrame {
+        private long mTimestamp;
+        private int mRed;
+    }
+
+    private GLContext mContext;
+    private HandlerThread mImageThread;
+    private ImageReader mEncoderSurface;
+    private BlockingQueue<ReceivedFrame> mReceivedFrames;
+    private Framebuffer mFramebuffer;
+    private FrameRecorder mFrameRecorder;
+
+    @Before
+    public void setUp() {
+        LibraryTestHelper.setContext(InstrumentationRegistry.getTargetContext());
+
+        mReceivedFrames = new LinkedBlockingQueue<>();
+        mImageThread = new HandlerThread("FrameRecorderTest");
+        mImageThread.start();
+        mEncoderSurface = ImageReader.newInstance(WIDTH, HEIGHT, PixelFormat.RGBA_8888, 2);
+        mEncoderSurface.setOnImageAvailableListener(new ImageReader.OnImageAvailableListener() {
+            @Override
+            public void onImageAvailable(ImageReader reader) {
+                Image image = reader.acquireNextImage();
+                ByteBuffer pixels = image.getPlanes()[0].getBuffer();
+                ReceivedFrame frame = new ReceivedFrame();
+                frame.mTimestamp = image.getTimestamp();
+                frame.mRed = pixels.get(0) & 0xFF;
+                image.close();
+                mReceivedFrames.add(frame);
+            }
+        }, new Handler(mImageThread.getLooper()));
+
+        // The renderer's context that the recorder shares the frame textures with
+        mContext = new GLContext();
+        mContext.makeCurrent();
+        ResourceRestoreManager.resetContextResources();
+        mFramebuffer = new Framebuffer(Texture2D.generateTexture(GLES20.GL_RGBA, WIDTH, HEIGHT));
+        mFrameRecorder = new FrameRecorder(mEncoderSurface.getSurface(), WIDTH, HEIGHT);
+    }
+
+    @After
+    public void tearDown() {
+        mFrameRecorder.release();
+        mFramebuffer.delete();
+        mContext.release();
+        ResourceRestoreManager.resetContextResources();
+        mEncoderSurface.close();
+        mImageThread.quitSafely();
+    }
+
+    /**
+     * Renders a frame with a uniform color into the frame texture.
+     * @param red the red component of the color
+     */
+    private Texture2D renderFrame(int red) {
+        mFramebuffer.bind(false);
+        GLState.getCurrent().viewport(0, 0, WIDTH, HEIGHT);
+        GLES20.glClearColor(red / 255f, 0f, 0f, 1f);
+        GLES20.glClear(GLES20.GL_COLOR_BUFFER_BIT);
+        return mFramebuffer.getTexture();
+    }
+
+    private ReceivedFrame receiveFrame() throws InterruptedException {
+        return mReceivedFrames.poll(FRAME_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+    }
+
+    @Test
+    public void recordsFramesWithTimestamps() throws InterruptedException {
+        int frameCount = 5;
+        for (int i = 0; i < frameCount; i++) {
+            assertTrue(mFrameRecorder.record(renderFrame(i * 50), (i + 1) * 33333333L));
+
+            // Wait for each frame, so the reader never runs out of images
+            ReceivedFrame frame = receiveFrame();
+            assertNotNull("frame " + i + " has not arrived", frame);
+            assertEquals((i + 1) * 33333333L, frame.mTimestamp);
+            assertEquals(i * 50, frame.mRed, 2);
+        }
+
+        assertEquals(frameCount, mFrameRecorder.getFrameCount());
+        assertNull(receiveFrame());
+    }
+
+    @Test
+    public void skipsFramesWithoutIncreasingTimestamps() throws InterruptedException {
+        assertTrue(mFrameRecorder.record(renderFrame(100), 1000000L));
+        assertFalse(mFrameRecorder.record(renderFrame(150), 1000000L));
+        assertFalse(mFrameRecorder.record(renderFrame(200), 500000L));
+        assertTrue(mFrameRecorder.record(renderFrame(250), 2000000L));
+
+        ReceivedFrame frame = receiveFrame();
+        assertNotNull(frame);
+        assertEquals(1000000L, frame.mTimestamp);
+        assertEquals(100, frame.mRed, 2);
+
+        frame = receiveFrame();
+        assertNotNull(frame);
+        assertEquals(2000000L, frame.mTimestamp);
+        assertEquals(250, frame.mRed, 2);
+
+        assertEquals(2, mFrameRecorder.getFrameCount());
+        assertNull(receiveFrame());
+    }
+}
@@ -0,0 +1,274 @@
+/*
+ * Copyright 2016 Mario Guggenberger <mg@protyposis.net>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.protyposis.android.spectaculum;
+
+import android.annotation.TargetApi;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.opengl.GLES20;
+import android.os.Build;
+import android.util.Log;
+
+import java.io.File;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+import net.protyposis.android.spectaculum.effects.Effect;
+import net.protyposis.android.spectaculum.gles.FrameCapturer;
+import net.protyposis.android.spectaculum.gles.GLRenderer;
+import net.protyposis.android.spectaculum.gles.GLState;
+import net.protyposis.android.spectaculum.gles.OffscreenRenderer;
+import net.protyposis.android.spectaculum.gles.Texture2D;
+
+/**
+ * Applies an effect to a sequence of images offscreen and emits the processed images.
+ *
+ * The stages of consecutive images overlap: while the GPU processes image N, the next image N+1
+ * is uploaded into a second input texture and the result of image N-1 is read back
+ * asynchronously (see {@link FrameCapturer}). When processing files, the files are also decoded
+ * ahead on a loader thread.
+ *
+ * Processing blocks the calling thread, which becomes the GL thread of the processor, and the
+ * effect is initialized in the processor's GL context and bound to it. The effect is
+ * resized whenever the image resolution changes (see {@link Effect#resize(int, int)}), so batches
+ * of equally sized images are processed fastest.
+ */
+@TargetApi(Build.VERSION_CODES.JELLY_BEAN_MR2)
+public class BatchProcessor {
+
+    private static final String TAG = BatchProcessor.class.getSimpleName();
+
+    private static final int DECODE_AHEAD_COUNT = 2;
+
+    /**
+     * Callback interface for processed images.
+     */
+    public interface OnImageProcessedListener {
+        /**
+         * Gets called with a processed image, in the order of the input images. The call comes
+         * from a background thread. The bitmap belongs to the receiver, which can hand it back
+         * through {@link #recycleBitmap(Bitmap)} to reduce allocations.
+         * @param index the index of the image in the input sequence
+         * @param result the processed image
+         */
+        void onImageProcessed(int index, Bitmap result);
+
+        /**
+         * Gets called on the processing thread when an image cannot be loaded.
+         * @param index the index of the image in the input sequence
+         */
+        void onImageFailed(int index);
+    }
+
+    private Effect mEffect;
+    private OnImageProcessedListener mListener;
+    private FrameCapturer mFrameCapturer;
+    private volatile boolean mCanceled;
+
+    /**
+     * Creates a processor.
+     * @param effect the effect to apply, or null to pass images through unchanged
+     * @param listener the listener that receives the processed images
+     */
+    public BatchProcessor(Effect effect, OnImageProcessedListener listener) {
+        mEffect = effect;
+        mListener = listener;
+        mFrameCapturer = new FrameCapturer(null);
+    }
+
+    /**
+     * Hands a processed bitmap back to the processor, so it can be reused for a following image
+     * of the same size. The bitmap must not be used by the caller afterwards. Can be called from
+     * any thread.
+     */
+    public void recycleBitmap(Bitmap bitmap) {
+        mFrameCapturer.recycleBitmap(bitmap);
+    }
+
+    /**
+     * Stops a running batch after the image that is currently processed. Can be called from any thread.
+     */
+    public void cancel() {
+        mCanceled = true;
+    }
+
+    /**
+     * Processes a sequence of images. Blocks until all images have been processed and delivered
+     * to the listener. Null elements are reported as failed.
+     * @param images the images to process, the bitmaps are not modified or recycled
+     * @return the number of processed images
+     */
+    public int process(Iterator<Bitmap> images) {
+        mCanceled = false;
+        OffscreenRenderer renderer = null;
+        Texture2D[] inputTextures = new Texture2D[2];
+        int index = 0;
+        int processedCount = 0;
+        long startTime = System.currentTimeMillis();
+
+        try {
+            while (!mCanceled && images.hasNext()) {
+                Bitmap image = images.next();
+                if (image == null) {
+                    mListener.onImageFailed(index++);
+                    continue;
+                }
+
+                if (renderer == null) {
+                    renderer = new OffscreenRenderer(image.getWidth(), image.getHeight());
+                    renderer.setEffect(mEffect);
+                } else {
+                    renderer.setSize(image.getWidth(), image.getHeight());
+                }
+
+                // Alternate between two input textures, so the upload does not have to wait
+                // until the GPU has finished reading the previous image
+                int t = index % inputTextures.length;
+                inputTextures[t] = upload(inputTextures[t], image);
+                renderer.render(inputTextures[t]);
+
+                final int imageIndex = index;
+                mFrameCapturer.capture(renderer.getOutput(), new GLRenderer.OnFrameCapturedCallback() {
+                    @Override
+                    public void onFrameCaptured(Bitmap bitmap) {
+                        mListener.onImageProcessed(imageIndex, bitmap);
+                    }
+                });
+                mFrameCapturer.poll();
+
+                index++;
+                processedCount++;
+            }
+        } finally {
+            if (renderer != null) {
+                mFrameCapturer.release();
+                for (Texture2D texture : inputTextures) {
+                    if (texture != null) {
+                        texture.delete();
+                    }
+                }
+                renderer.release();
+            }
+        }
+
+        Log.d(TAG, "processed " + processedCount + " images in " + (System.currentTimeMillis() - startTime) + "ms");
+        return processedCount;
+    }
+
+    /**
+     * Decodes and processes a list of image files. The files are decoded on a loader thread
+     * ahead of processing. Files that cannot be decoded are reported as failed.
+     * @see #process(Iterator)
+     */
+    public int processFiles(final List<File> files) {
+        final BlockingQueue<Object> queue = new ArrayBlockingQueue<>(DECODE_AHEAD_COUNT);
+        final Object failed = new Object();
+        final Object end = new Object();
+
+        Thread loader = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                BitmapFactory.Options options = new BitmapFactory.Options();
+                options.inPreferredConfig = Bitmap.Config.ARGB_8888;
+                try {
+                    for (File file : files) {
+                        if (mCanceled) {
+                            break;
+                        }
+                        Bitmap bitmap = BitmapFactory.decodeFile(file.getPath(), options);
+                        queue.put(bitmap != null ? bitmap : failed);
+                    }
+                    queue.put(end);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }, TAG + "-loader");
+        loader.start();
+
+        class DecodedImages implements Iterator<Bitmap> {
+            private Object mNext;
+            private Bitmap mPrevious;
+
+            @Override
+            public boolean hasNext() {
+                if (mNext == null) {
+                    try {
+                        mNext = queue.take();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        mNext = end;
+                    }
+                }
+                return mNext != end;
+            }
+
+            @Override
+            public Bitmap next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                // The previous bitmap has been uploaded at this point and is not needed anymore
+                if (mPrevious != null) {
+                    mPrevious.recycle();
+                }
+                mPrevious = mNext == failed ? null : (Bitmap) mNext;
+                mNext = null;
+                return mPrevious;
+            }
+
+            @Override
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+
+            /**
+             * Recycles the last returned bitmap, which is not followed by a next call.
+             */
+            void recycle() {
+                if (mPrevious != null) {
+                    mPrevious.recycle();
+                    mPrevious = null;
+                }
+            }
+        }
+
+        DecodedImages images = new DecodedImages();
+        try {
+            return process(images);
+        } finally {
+            images.recycle();
+            loader.interrupt();
+        }
+    }
+
+    private static Texture2D upload(Texture2D texture, Bitmap image) {
+        if (texture != null && texture.getWidth() == image.getWidth() && texture.getHeight() == image.getHeight()) {
+            GLState.getCurrent().bindTexture(GLES20.GL_TEXTURE_2D, texture.getHandle());
+            android.opengl.GLUtils.texSubImage2D(GLES20.GL_TEXTURE_2D, 0, 0, 0, image);
+            GLState.getCurrent().bindTexture(GLES20.GL_TEXTURE_2D, 0);
+            return texture;
+        }
+        if (texture != null) {
+            texture.delete();
+        }
+        return new Texture2D(image);
+    }
+}
@@ -17,6 +17,7 @@
 package net.protyposis.android.spectaculum;
 
 import android.content.Context;
+import android.content.pm.ApplicationInfo;
 
 import java.io.BufferedReader;
 import java.io.IOException;
@@ -64,6 +65,14 @@ public class LibraryHelper {
         return null;
     }
 
+    /**
+     * Tells if the app is debuggable, or if it is unknown because the context has not been set yet.
+     */
+    public static boolean isDebuggable() {
+        return sContext == null
+                || (sContext.getApplicationInfo().flags & ApplicationInfo.FLAG_DEBUGGABLE) != 0;
+    }
+
     public static boolean isBetween(float check, float lowerBound, float upperBound) {
         return check >= lowerBound && check <= upperBound;
     }
@@ -16,24 +16,32 @@
 
 package net.protyposis.android.spectaculum;
 
+import android.annotation.TargetApi;
 import android.content.Context;
 import android.graphics.Bitmap;
 import android.graphics.SurfaceTexture;
 import android.opengl.*;
+import android.os.Build;
 import android.os.Handler;
 import android.util.AttributeSet;
 import android.util.Log;
 import android.view.GestureDetector;
 import android.view.MotionEvent;
 import android.view.ScaleGestureDetector;
+import android.view.Surface;
 import android.view.SurfaceHolder;
+import android.view.WindowManager;
 
 import net.protyposis.android.spectaculum.effects.Effect;
 import net.protyposis.android.spectaculum.effects.EffectException;
 import net.protyposis.android.spectaculum.effects.Parameter;
+import net.protyposis.android.spectaculum.effects.ParameterAnimation;
 import net.protyposis.android.spectaculum.effects.ParameterHandler;
 import net.protyposis.android.spectaculum.gles.*;
 
+import java.io.File;
+import java.util.concurrent.Executor;
+
 /**
  * Created by Mario on 14.06.2014.
  */
@@ -44,11 +52,14 @@ public class SpectaculumView extends GLSurfaceView implements
 
     private static final String TAG = SpectaculumView.class.getSimpleName();
 
+    private static final String PROGRAM_BINARY_CACHE_DIRECTORY = "spectaculum-programs";
+
     public interface EffectEventListener extends GLRenderer.EffectEventListener {}
     public interface OnFrameCapturedCallback extends GLRenderer.OnFrameCapturedCallback {}
 
     private GLRenderer mRenderer;
     private InputSurfaceHolder mInputSurfaceHolder;
+    private ExternalSurfaceTexture mExternalSurfaceTexture;
     private Handler mRunOnUiThreadHandler = new Handler();
     private ScaleGestureDetector mScaleGestureDetector;
     private GestureDetector mGestureDetector;
@@ -64,6 +75,7 @@ public class SpectaculumView extends GLSurfaceView implements
     private float mPanY;
     private float mPanSnappingRange = 0.02f;
     private boolean mTouchEnabled = false;
+    private volatile int mRenderModeBeforeAnimation = GLSurfaceView.RENDERMODE_WHEN_DIRTY;
 
     protected int mImageWidth;
     protected int mImageHeight;
@@ -90,16 +102,43 @@ public class SpectaculumView extends GLSurfaceView implements
 
         LibraryHelper.setContext(context);
 
-        mRenderer = new GLRenderer();
+        mRenderer = new GLRenderer(new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                queueEvent(command);
+            }
+        });
         mRenderer.setOnExternalSurfaceTextureCreatedListener(mExternalSurfaceTextureCreatedListener);
         mRenderer.setEffectEventListener(mRendererEffectEventListener);
+        mRenderer.setOnAnimatingChangedListener(new GLRenderer.OnAnimatingChangedListener() {
+            @Override
+            public void onAnimatingChanged(boolean animating) {
+                // Render at the display rate while parameters are animated, and return to the
+                // render mode that has been set before afterwards
+                if(animating) {
+                    mRenderModeBeforeAnimation = getRenderMode();
+                    setRenderMode(GLSurfaceView.RENDERMODE_CONTINUOUSLY);
+                } else {
+                    setRenderMode(mRenderModeBeforeAnimation);
+                }
+            }
+        });
+
+        // Janky frames are those that take longer than a refresh of the display
+        float refreshRate = ((WindowManager) context.getSystemService(Context.WINDOW_SERVICE))
+                .getDefaultDisplay().getRefreshRate();
+        if(refreshRate > 0) {
+            mRenderer.getFrameStats().setFrameBudget((long) (1000000000L / refreshRate));
+        }
 
         mInputSurfaceHolder = new InputSurfaceHolder();
 
         setEGLContextClientVersion(2);
         setRenderer(mRenderer);
         setRenderMode(GLSurfaceView.RENDERMODE_WHEN_DIRTY);
-        // TODO setPreserveEGLContextOnPause(true);
+        // Keep the context while paused, so rendering can continue right away on resume without
+        // reinitializing the pipeline; if it gets lost anyway, the renderer restores it
+        setPreserveEGLContextOnPause(true);
 
         mScaleGestureDetector = new ScaleGestureDetector(context,
                 new ScaleGestureDetector.SimpleOnScaleGestureListener() {
@@ -344,14 +383,34 @@ public class SpectaculumView extends GLSurfaceView implements
 
     @Override
     public void surfaceDestroyed(SurfaceHolder holder) {
-        // Delete the external texture, else it stays in RAM
+        /* Detach the input from its users, so they stop writing into it. The external texture
+         * itself survives in the preserved context and is handed out again when the surface
+         * gets recreated. */
         if(getInputHolder().getExternalSurfaceTexture() != null) {
-            getInputHolder().getExternalSurfaceTexture().delete();
             getInputHolder().update(null);
+            mRenderer.onExternalSurfaceTextureDetached();
         }
         super.surfaceDestroyed(holder);
     }
 
+    @Override
+    protected void onDetachedFromWindow() {
+        /* The context gets destroyed with the view, delete the external texture, else it stays in
+         * RAM. The texture belongs to the GL thread, so it is deleted there, before the GL thread
+         * gets stopped by the super implementation. */
+        if(mExternalSurfaceTexture != null) {
+            final ExternalSurfaceTexture externalSurfaceTexture = mExternalSurfaceTexture;
+            mExternalSurfaceTexture = null;
+            queueEvent(new Runnable() {
+                @Override
+                public void run() {
+                    externalSurfaceTexture.delete();
+                }
+            });
+        }
+        super.onDetachedFromWindow();
+    }
+
     /**
      * Adds one or more effects to the view. Added effects can then be activated/selected by calling
      * {@link #selectEffect(int)}. The effect indices start at zero and are in the order that they
@@ -373,6 +432,8 @@ public class SpectaculumView extends GLSurfaceView implements
 
     /**
      * Selects/activates the effect with the given index as it has been added through {@link #addEffect(Effect...)}.
+     * An effect that is selected for the first time is initialized in the background, while the
+     * previously selected effect continues to be displayed.
      * @param index the index of the effect to activate
      */
     public void selectEffect(final int index) {
@@ -385,9 +446,25 @@ public class SpectaculumView extends GLSurfaceView implements
         });
     }
 
+    /**
+     * Initializes an effect in the background without selecting it, so that selecting it later
+     * with {@link #selectEffect(int)} takes effect immediately. Useful to warm up effects that
+     * take long to initialize. {@link #onEffectInitialized(int, Effect)} gets called when the
+     * effect is ready.
+     * @param index the index of the effect to initialize
+     */
+    public void preloadEffect(final int index) {
+        queueEvent(new Runnable() {
+            @Override
+            public void run() {
+                mRenderer.preloadEffect(index);
+            }
+        });
+    }
+
     /**
      * Gets called when an effect has been initialized after being selected for the first time
-     * with {@link #selectEffect(int)}. Effect initialization happens asynchronously and can take
+     * with {@link #selectEffect(int)} or preloaded with {@link #preloadEffect(int)}. Effect initialization happens asynchronously and can take
      * some time when a lot of data (framebuffers, textures, ...) is loaded.
      * Can be overwritten in subclasses but must be called through. External callers should use
      * {@link #setEffectEventListener(EffectEventListener)}.
@@ -487,23 +564,24 @@ public class SpectaculumView extends GLSurfaceView implements
     }
 
     /**
-     * Requests a render pass of the specified render pipeline section.
+     * Requests a render pass of the specified render pipeline section. Requests are merged until
+     * they are consumed by the next frame, so only the first request of a frame triggers the
+     * rendering, and requesting a render does not allocate.
      * @param renderRequest specifies the pipeline section to be rendered
+     * @see GLRenderer#addRenderRequest(GLRenderer.RenderRequest)
      */
-    protected void requestRender(final GLRenderer.RenderRequest renderRequest) {
-        queueEvent(new Runnable() {
-            @Override
-            public void run() {
-                mRenderer.setRenderRequest(renderRequest);
-                requestRender();
-            }
-        });
+    protected void requestRender(GLRenderer.RenderRequest renderRequest) {
+        if(mRenderer.addRenderRequest(renderRequest)) {
+            requestRender();
+        }
     }
 
     /**
      * Requests a capture of the current frame on the view. The frame is asynchronously requested
      * from the renderer and will be passed back on the UI thread to {@link #onFrameCaptured(Bitmap)}
      * and the event listener that can be set with {@link #setOnFrameCapturedCallback(OnFrameCapturedCallback)}.
+     * The pixels are read back without stalling the rendering, so the frame arrives a few
+     * milliseconds later.
      */
     public void captureFrame() {
         queueEvent(new Runnable() {
@@ -520,10 +598,61 @@ public class SpectaculumView extends GLSurfaceView implements
                         });
                     }
                 });
+                requestRender();
             }
         });
     }
 
+    /**
+     * Starts recording every processed frame into a surface, e.g. the input surface of a
+     * {@link android.media.MediaCodec} video encoder, at full frame rate and without reading
+     * the frames back. The frames are recorded without zoom and pan, and with the timestamps of
+     * the frames from the input surface. Requires API level 18 (Jelly Bean MR2) to set the
+     * timestamps of the recorded frames.
+     * @param surface the surface to record into
+     * @param width the width of the surface
+     * @param height the height of the surface
+     * @throws UnsupportedOperationException below API level 18
+     */
+    @TargetApi(Build.VERSION_CODES.JELLY_BEAN_MR2)
+    public void startRecording(final Surface surface, final int width, final int height) {
+        if(Build.VERSION.SDK_INT < Build.VERSION_CODES.JELLY_BEAN_MR2) {
+            throw new UnsupportedOperationException("recording requires API level 18");
+        }
+        queueEvent(new Runnable() {
+            @Override
+            public void run() {
+                mRenderer.startRecording(surface, width, height);
+                requestRender(GLRenderer.RenderRequest.EFFECT);
+            }
+        });
+    }
+
+    /**
+     * Stops a recording that has been started with {@link #startRecording(Surface, int, int)}.
+     * @param onStopped optional callback that is called on the UI thread when all frames have
+     *                  been submitted to the surface, e.g. to signal the end of stream to the encoder
+     */
+    public void stopRecording(final Runnable onStopped) {
+        queueEvent(new Runnable() {
+            @Override
+            public void run() {
+                mRenderer.stopRecording();
+                if(onStopped != null) {
+                    mRunOnUiThreadHandler.post(onStopped);
+                }
+            }
+        });
+    }
+
+    /**
+     * Hands a captured frame back to the view when it is not needed anymore, so its memory can be
+     * reused for following captures. The bitmap must not be used by the caller afterwards.
+     */
+    public void recycleCapturedFrame(Bitmap bitmap) {
+        mRenderer.recycleCapturedFrame(bitmap);
+    }
+
     /**
      * Receives a captured frame from the renderer. Can be overwritten in subclasses but must be
      * called through. External callers should use {@link #setOnFrameCapturedCallback(OnFrameCapturedCallback)}.
@@ -542,6 +671,104 @@ public class SpectaculumView extends GLSurfaceView implements
         mOnFrameCapturedCallback = callback;
     }
 
+    /**
+     * Enables or disables the persistent cache of linked shader programs in the app's cache
+     * directory, which saves the compilation of shader programs on following app starts and
+     * after context losses. The cache is only effective with a GLES 3.0 context. The setting
+     * applies to all views and offscreen renderers of the app.
+     * @see ProgramBinaryCache
+     */
+    public void setProgramBinaryCacheEnabled(boolean enabled) {
+        ProgramBinaryCache.setDirectory(enabled
+                ? new File(getContext().getCacheDir(), PROGRAM_BINARY_CACHE_DIRECTORY) : null);
+    }
+
+    /**
+     * Sets a budget for the GPU memory of textures and framebuffers. When it is exceeded, the
+     * effects that have been selected least recently are released, and transparently
+     * reinitialized when they are selected again. Useful for long running sessions that cycle
+     * through many effects.
+     * @param bytes the budget in bytes, or 0 for an unlimited budget (the default)
+     * @see GLRenderer#setMemoryBudget(long)
+     */
+    public void setMemoryBudget(final long bytes) {
+        queueEvent(new Runnable() {
+            @Override
+            public void run() {
+                mRenderer.setMemoryBudget(bytes);
+            }
+        });
+    }
+
+    /**
+     * Sets a listener that receives the time that the GPU has spent on every render pass, keyed
+     * by the name of the effect and the name of the pass. Timing uses GPU timer queries where
+     * the device supports them, and the timings of a frame arrive a few frames after it has been
+     * rendered. The listener is called on the GL thread.
+     * @param listener the listener, or null to stop timing
+     * @param cpuFallback true to time the passes on the CPU if the GPU does not support timer
+     *                    queries, which severely slows down rendering and is only meant for diagnostics
+     * @see GLRenderer#setOnPassTimedListener(GpuTimer.OnPassTimedListener, boolean)
+     */
+    public void setOnPassTimedListener(final GpuTimer.OnPassTimedListener listener, final boolean cpuFallback) {
+        queueEvent(new Runnable() {
+            @Override
+            public void run() {
+                mRenderer.setOnPassTimedListener(listener, cpuFallback);
+            }
+        });
+    }
+
+    /**
+     * Starts an animation of an effect parameter on the GL thread, where it is evaluated at the
+     * time of every frame. The view renders continuously while animations are running and
+     * returns to rendering on demand when the last animation has ended. Starting an animation
+     * that is already running restarts it.
+     * @param animation the animation to start, which must not be modified afterwards
+     * @see ParameterAnimation
+     */
+    public void startAnimation(final ParameterAnimation animation) {
+        queueEvent(new Runnable() {
+            @Override
+            public void run() {
+                mRenderer.startAnimation(animation);
+            }
+        });
+        requestRender();
+    }
+
+    /**
+     * Stops a running animation at its current value.
+     * @param animation the animation to stop, or null to stop all animations
+     */
+    public void cancelAnimation(final ParameterAnimation animation) {
+        queueEvent(new Runnable() {
+            @Override
+            public void run() {
+                mRenderer.cancelAnimation(animation);
+            }
+        });
+    }
+
+    /**
+     * Gets the frame statistics of the renderer, i.e. histograms of the source frame latency, the
+     * rendering duration and the frame interval, and the numbers of janky and dropped frames.
+     * The statistics are recorded with negligible overhead and can be read from any thread.
+     * @param snapshot a snapshot to reuse, or null to create a new one
+     * @return the snapshot with the current statistics
+     * @see FrameStats
+     */
+    public FrameStats.Snapshot getFrameStats(FrameStats.Snapshot snapshot) {
+        return mRenderer.getFrameStats().getSnapshot(snapshot);
+    }
+
+    /**
+     * Clears the frame statistics, e.g. to start a new measurement period.
+     */
+    public void resetFrameStats() {
+        mRenderer.getFrameStats().reset();
+    }
+
     /**
      * Sets the resolution mode of the processing pipeline.
      * @see PipelineResolution
@@ -595,6 +822,7 @@ public class SpectaculumView extends GLSurfaceView implements
                 @Override
                 public void run() {
                     // Create an input surface holder and call the event handler
+                    mExternalSurfaceTexture = surfaceTexture;
                     mInputSurfaceHolder.update(surfaceTexture);
                     onInputSurfaceCreated(mInputSurfaceHolder);
                 }
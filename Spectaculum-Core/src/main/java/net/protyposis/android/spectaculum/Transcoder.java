@@ -0,0 +1,591 @@
+/*
+ * Copyright 2016 Mario Guggenberger <mg@protyposis.net>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.protyposis.android.spectaculum;
+
+import android.annotation.TargetApi;
+import android.graphics.SurfaceTexture;
+import android.media.MediaCodec;
+import android.media.MediaCodecInfo;
+import android.media.MediaExtractor;
+import android.media.MediaFormat;
+import android.media.MediaMuxer;
+import android.opengl.EGLSurface;
+import android.os.Build;
+import android.os.Looper;
+import android.util.Log;
+import android.view.Surface;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import net.protyposis.android.spectaculum.effects.Effect;
+import net.protyposis.android.spectaculum.effects.ExternalSourceEffect;
+import net.protyposis.android.spectaculum.gles.ExternalSurfaceTexture;
+import net.protyposis.android.spectaculum.gles.Framebuffer;
+import net.protyposis.android.spectaculum.gles.FramebufferPool;
+import net.protyposis.android.spectaculum.gles.GLContext;
+import net.protyposis.android.spectaculum.gles.GLState;
+import net.protyposis.android.spectaculum.gles.GLUtils;
+import net.protyposis.android.spectaculum.gles.GLValidator;
+import net.protyposis.android.spectaculum.gles.QuadVertexBuffer;
+import net.protyposis.android.spectaculum.gles.ReadExternalTextureShaderProgram;
+import net.protyposis.android.spectaculum.gles.ResourceRestoreManager;
+import net.protyposis.android.spectaculum.gles.TexturedRectangle;
+
+/**
+ * Processes a video file offline with an effect and writes the result into a new MP4 file,
+ * without a display and without a playback clock, as fast as the device can.
+ *
+ * The decoder, the effect and the encoder run as a pipeline. The decoder is fed with as many
+ * samples as it accepts, so it keeps decoding following frames while the current frame is
+ * rendered. Frames are rendered straight into the input surface of the encoder, and the encoded
+ * output is drained into the muxer on a separate thread, so encoding overlaps with decoding and
+ * rendering. The throughput is therefore bounded by the slowest stage, which throttles the
+ * others through the buffer queues of the codecs.
+ *
+ * The first audio track of the input, if any, is copied into the output without re-encoding.
+ * The output is encoded as H.264.
+ *
+ * {@link #run()} blocks until the transcoding is finished and must be called on a worker
+ * thread, because the frame callbacks of the decoder output are delivered on the main thread.
+ * The effect is initialized in the GL context of the transcoder and is bound to it.
+ */
+@TargetApi(Build.VERSION_CODES.JELLY_BEAN_MR2)
+public class Transcoder {
+
+    private static final String TAG = Transcoder.class.getSimpleName();
+
+    private static final String OUTPUT_MIME_TYPE = "video/avc";
+    private static final String KEY_ROTATION = "rotation-degrees"; // MediaFormat.KEY_ROTATION from API 23
+    private static final long TIMEOUT_US = 10000;
+    private static final long FRAME_TIMEOUT_MS = 2500;
+
+    /**
+     * Callback interface for the progress of a transcoding.
+     */
+    public interface OnProgressListener {
+        /**
+         * Gets called on the transcoding thread after every processed frame.
+         * @param presentationTimeUs the timestamp of the processed frame
+         * @param durationUs the duration of the input video, or -1 if unknown
+         */
+        void onProgress(long presentationTimeUs, long durationUs);
+    }
+
+    private String mInputPath;
+    private String mOutputPath;
+    private Effect mEffect;
+    private int mOutputWidth;
+    private int mOutputHeight;
+    private int mBitRate;
+    private OnProgressListener mOnProgressListener;
+    private volatile boolean mCanceled;
+    private int mFrameCount;
+
+    private MediaExtractor mVideoExtractor;
+    private MediaExtractor mAudioExtractor;
+    private MediaCodec mDecoder;
+    private MediaCodec mEncoder;
+    private MediaMuxer mMuxer;
+    private MediaFormat mAudioFormat;
+    private ByteBuffer mAudioBuffer;
+    private MediaCodec.BufferInfo mAudioBufferInfo;
+    private int mVideoTrackIndex = -1;
+    private int mAudioTrackIndex = -1;
+    private boolean mMuxerStarted;
+    private long mDurationUs;
+
+    private GLContext mContext;
+    private Surface mEncoderInputSurface;
+    private EGLSurface mEncoderSurface;
+    private ExternalSurfaceTexture mExternalSurfaceTexture;
+    private Surface mDecoderOutputSurface;
+    private ReadExternalTextureShaderProgram mReadExternalTextureShaderProgram;
+    private TexturedRectangle mTexturedRectangle;
+    private Framebuffer mScreenFramebuffer;
+    private Framebuffer mFramebufferIn;
+
+    private final Object mFrameSyncObject = new Object();
+    private boolean mFrameAvailable;
+    private volatile Throwable mDrainError;
+    private volatile boolean mDrainAborted;
+
+    public Transcoder(String inputPath, String outputPath) {
+        mInputPath = inputPath;
+        mOutputPath = outputPath;
+    }
+
+    /**
+     * Sets the effect that is applied to every frame, or null to transcode without an effect.
+     */
+    public void setEffect(Effect effect) {
+        mEffect = effect;
+    }
+
+    /**
+     * Sets the resolution of the output video. Defaults to the resolution of the input video.
+     */
+    public void setOutputSize(int width, int height) {
+        mOutputWidth = width;
+        mOutputHeight = height;
+    }
+
+    /**
+     * Sets the bit rate of the output video in bits per second. Defaults to a bit rate
+     * derived from the output resolution.
+     */
+    public void setBitRate(int bitRate) {
+        mBitRate = bitRate;
+    }
+
+    public void setOnProgressListener(OnProgressListener l) {
+        mOnProgressListener = l;
+    }
+
+    /**
+     * Stops a running transcoding. The frames that have been processed until then are written
+     * to a valid output file. Can be called from any thread.
+     */
+    public void cancel() {
+        mCanceled = true;
+    }
+
+    /**
+     * Gets the number of frames that have been processed.
+     */
+    public int getFrameCount() {
+        return mFrameCount;
+    }
+
+    /**
+     * Transcodes the input file into the output file. Blocks until finished.
+     * @throws IOException if the input cannot be read or the output cannot be written
+     */
+    public void run() throws IOException {
+        if (Looper.myLooper() == Looper.getMainLooper()) {
+            throw new IllegalStateException("transcoder must not run on the main thread");
+        }
+
+        long startTime = System.currentTimeMillis();
+        try {
+            setup();
+            transcode();
+        } catch (RuntimeException e) {
+            if (mDrainError != null) {
+                // A failed encoder usually makes the frame loop fail too, so report the cause
+                Log.e(TAG, "transcoding failed", e);
+                throw new RuntimeException("encoding failed", mDrainError);
+            }
+            throw e;
+        } finally {
+            release();
+        }
+        Log.d(TAG, "transcoded " + mFrameCount + " frames in " + (System.currentTimeMillis() - startTime) + "ms");
+
+        if (mDrainError != null) {
+            throw new RuntimeException("encoding failed", mDrainError);
+        }
+    }
+
+    private void setup() throws IOException {
+        // Input
+        mVideoExtractor = new MediaExtractor();
+        mVideoExtractor.setDataSource(mInputPath);
+        MediaFormat inputFormat = null;
+        for (int i = 0; i < mVideoExtractor.getTrackCount(); i++) {
+            MediaFormat format = mVideoExtractor.getTrackFormat(i);
+            if (format.getString(MediaFormat.KEY_MIME).startsWith("video/")) {
+                mVideoExtractor.selectTrack(i);
+                inputFormat = format;
+                break;
+            }
+        }
+        if (inputFormat == null) {
+            throw new IOException("no video track in " + mInputPath);
+        }
+
+        mAudioExtractor = new MediaExtractor();
+        mAudioExtractor.setDataSource(mInputPath);
+        for (int i = 0; i < mAudioExtractor.getTrackCount(); i++) {
+            MediaFormat format = mAudioExtractor.getTrackFormat(i);
+            if (format.getString(MediaFormat.KEY_MIME).startsWith("audio/")) {
+                mAudioExtractor.selectTrack(i);
+                mAudioFormat = format;
+                break;
+            }
+        }
+
+        mDurationUs = inputFormat.containsKey(MediaFormat.KEY_DURATION)
+                ? inputFormat.getLong(MediaFormat.KEY_DURATION) : -1;
+        int width = mOutputWidth > 0 ? mOutputWidth : inputFormat.getInteger(MediaFormat.KEY_WIDTH);
+        int height = mOutputHeight > 0 ? mOutputHeight : inputFormat.getInteger(MediaFormat.KEY_HEIGHT);
+        width &= ~1; // encoders need even dimensions
+        height &= ~1;
+        int frameRate = inputFormat.containsKey(MediaFormat.KEY_FRAME_RATE)
+                ? inputFormat.getInteger(MediaFormat.KEY_FRAME_RATE) : 30;
+
+        // Encoder
+        MediaFormat outputFormat = MediaFormat.createVideoFormat(OUTPUT_MIME_TYPE, width, height);
+        outputFormat.setInteger(MediaFormat.KEY_COLOR_FORMAT, MediaCodecInfo.CodecCapabilities.COLOR_FormatSurface);
+        outputFormat.setInteger(MediaFormat.KEY_BIT_RATE, mBitRate > 0 ? mBitRate : width * height * 5);
+        outputFormat.setInteger(MediaFormat.KEY_FRAME_RATE, frameRate);
+        outputFormat.setInteger(MediaFormat.KEY_I_FRAME_INTERVAL, 1);
+        mEncoder = MediaCodec.createEncoderByType(OUTPUT_MIME_TYPE);
+        mEncoder.configure(outputFormat, null, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
+        mEncoderInputSurface = mEncoder.createInputSurface();
+        mEncoder.start();
+
+        // GL, rendering into the encoder input surface
+        mContext = new GLContext();
+        mEncoderSurface = mContext.createWindowSurface(mEncoderInputSurface);
+        mContext.makeCurrent(mEncoderSurface);
+        GLUtils.init();
+        ResourceRestoreManager.resetContextResources();
+        GLState.getCurrent().viewport(0, 0, width, height);
+
+        mScreenFramebuffer = Framebuffer.createScreenFramebuffer(width, height);
+        mReadExternalTextureShaderProgram = new ReadExternalTextureShaderProgram();
+        mTexturedRectangle = new TexturedRectangle();
+        mTexturedRectangle.reset();
+        mExternalSurfaceTexture = new ExternalSurfaceTexture();
+        mExternalSurfaceTexture.setOnFrameAvailableListener(new SurfaceTexture.OnFrameAvailableListener() {
+            @Override
+            public void onFrameAvailable(SurfaceTexture surfaceTexture) {
+                synchronized (mFrameSyncObject) {
+                    mFrameAvailable = true;
+                    mFrameSyncObject.notifyAll();
+                }
+            }
+        });
+        mDecoderOutputSurface = new Surface(mExternalSurfaceTexture.getSurfaceTexture());
+
+        if (mEffect != null) {
+            mEffect.init(width, height);
+        }
+
+        // Decoder
+        int rotation = 0;
+        if (inputFormat.containsKey(KEY_ROTATION)) {
+            // Decode unrotated and let the player rotate through the orientation hint
+            rotation = inputFormat.getInteger(KEY_ROTATION);
+            inputFormat.setInteger(KEY_ROTATION, 0);
+        }
+        mDecoder = MediaCodec.createDecoderByType(inputFormat.getString(MediaFormat.KEY_MIME));
+        mDecoder.configure(inputFormat, mDecoderOutputSurface, null, 0);
+        mDecoder.start();
+
+        // Output
+        mMuxer = new MediaMuxer(mOutputPath, MediaMuxer.OutputFormat.MUXER_OUTPUT_MPEG_4);
+        mMuxer.setOrientationHint(rotation);
+
+        Log.d(TAG, "transcoding " + mInputPath + " to " + width + "x" + height + " " + mOutputPath);
+    }
+
+    private void transcode() {
+        Thread drainThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    drainEncoder();
+                } catch (Throwable e) {
+                    Log.e(TAG, "encoder drain failed", e);
+                    mDrainError = e;
+                    mCanceled = true;
+                }
+            }
+        }, TAG + "-drain");
+        drainThread.start();
+
+        try {
+            decodeFrames();
+        } finally {
+            // Stop the drain thread before the encoder and the muxer get released, also when the
+            // frame loop has failed, and let the encoder finish the submitted frames to get a valid file
+            mCanceled = true;
+            try {
+                mEncoder.signalEndOfInputStream();
+            } catch (IllegalStateException e) {
+                // The encoder will not signal the end of the stream, so the drain thread must not wait for it
+                Log.e(TAG, "cannot signal end of input stream", e);
+                mDrainAborted = true;
+            }
+            joinUninterruptibly(drainThread);
+        }
+    }
+
+    /**
+     * Feeds the decoder and renders the decoded frames into the encoder until the end of the
+     * input or until canceled.
+     */
+    private void decodeFrames() {
+        ByteBuffer[] decoderInputBuffers = mDecoder.getInputBuffers();
+        MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
+        boolean inputDone = false;
+        boolean outputDone = false;
+
+        while (!outputDone) {
+            if (mCanceled) {
+                Log.d(TAG, "canceled");
+                break;
+            }
+
+            // Queue all samples that the decoder accepts to keep multiple frames in flight
+            while (!inputDone) {
+                int index = mDecoder.dequeueInputBuffer(0);
+                if (index < 0) {
+                    break;
+                }
+                int size = mVideoExtractor.readSampleData(decoderInputBuffers[index], 0);
+                if (size < 0) {
+                    mDecoder.queueInputBuffer(index, 0, 0, 0, MediaCodec.BUFFER_FLAG_END_OF_STREAM);
+                    inputDone = true;
+                } else {
+                    mDecoder.queueInputBuffer(index, 0, size, mVideoExtractor.getSampleTime(), 0);
+                    mVideoExtractor.advance();
+                }
+            }
+
+            int index = mDecoder.dequeueOutputBuffer(info, TIMEOUT_US);
+            if (index < 0) {
+                continue; // format and buffer changes do not matter for surface output
+            }
+            boolean render = info.size > 0;
+            mDecoder.releaseOutputBuffer(index, render);
+            if (render) {
+                awaitFrame();
+                mExternalSurfaceTexture.updateTexture();
+                renderFrame();
+                mContext.swapBuffers(mEncoderSurface, info.presentationTimeUs * 1000);
+                mFrameCount++;
+                if (mOnProgressListener != null) {
+                    mOnProgressListener.onProgress(info.presentationTimeUs, mDurationUs);
+                }
+            }
+            if ((info.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0) {
+                outputDone = true;
+            }
+        }
+    }
+
+    /**
+     * Waits for a thread to end, because the resources that it uses must not be released before.
+     * An interrupt is restored after the thread has ended.
+     */
+    private static void joinUninterruptibly(Thread thread) {
+        boolean interrupted = false;
+        while (thread.isAlive()) {
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void awaitFrame() {
+        synchronized (mFrameSyncObject) {
+            try {
+                if (!mFrameAvailable) {
+                    mFrameSyncObject.wait(FRAME_TIMEOUT_MS);
+                }
+            } catch (InterruptedException e) {
+                throw new RuntimeException(e);
+            }
+            if (!mFrameAvailable) {
+                throw new RuntimeException("timeout waiting for decoded frame");
+            }
+            mFrameAvailable = false;
+        }
+    }
+
+    private void renderFrame() {
+        QuadVertexBuffer.getCurrent().invalidate();
+        GLState.getCurrent().invalidate();
+        GLValidator.getInstalled().beginFrame();
+        if (mEffect != null) {
+            mEffect.applyParameterValues();
+        }
+        drawFrame();
+        if (GLValidator.getInstalled().endFrame()) {
+            // Draw again to let the validator find the failing operation, without the frame setup
+            QuadVertexBuffer.getCurrent().invalidate();
+            GLState.getCurrent().invalidate();
+            drawFrame();
+            GLValidator.getInstalled().endFrame();
+        }
+    }
+
+    /**
+     * Draws the current decoded frame with the effect into the encoder surface.
+     */
+    private void drawFrame() {
+        if (mEffect == null) {
+            mScreenFramebuffer.bind();
+            mReadExternalTextureShaderProgram.use();
+            mReadExternalTextureShaderProgram.setTexture(mExternalSurfaceTexture);
+            mTexturedRectangle.draw(mReadExternalTextureShaderProgram);
+        } else if (mEffect instanceof ExternalSourceEffect
+                && ((ExternalSourceEffect) mEffect).isExternalSourceSupported()) {
+            ((ExternalSourceEffect) mEffect).applyExternal(mExternalSurfaceTexture, mScreenFramebuffer);
+        } else {
+            if (mFramebufferIn == null) {
+                mFramebufferIn = FramebufferPool.getCurrent().obtain(
+                        mScreenFramebuffer.getWidth(), mScreenFramebuffer.getHeight());
+            }
+            mFramebufferIn.bind();
+            mReadExternalTextureShaderProgram.use();
+            mReadExternalTextureShaderProgram.setTexture(mExternalSurfaceTexture);
+            mTexturedRectangle.draw(mReadExternalTextureShaderProgram);
+            mEffect.apply(mFramebufferIn.getTexture(), mScreenFramebuffer);
+        }
+    }
+
+    /**
+     * Writes the encoded video into the muxer, interleaved with the copied audio samples.
+     * Runs on the drain thread.
+     */
+    private void drainEncoder() {
+        ByteBuffer[] encoderOutputBuffers = mEncoder.getOutputBuffers();
+        MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
+
+        while (true) {
+            int index = mEncoder.dequeueOutputBuffer(info, TIMEOUT_US);
+            if (index == MediaCodec.INFO_TRY_AGAIN_LATER) {
+                if (mDrainAborted) {
+                    break;
+                }
+                continue;
+            } else if (index == MediaCodec.INFO_OUTPUT_BUFFERS_CHANGED) {
+                encoderOutputBuffers = mEncoder.getOutputBuffers();
+            } else if (index == MediaCodec.INFO_OUTPUT_FORMAT_CHANGED) {
+                mVideoTrackIndex = mMuxer.addTrack(mEncoder.getOutputFormat());
+                if (mAudioFormat != null) {
+                    mAudioTrackIndex = mMuxer.addTrack(mAudioFormat);
+                }
+                mMuxer.start();
+                mMuxerStarted = true;
+            } else if (index >= 0) {
+                ByteBuffer buffer = encoderOutputBuffers[index];
+                if ((info.flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) != 0) {
+                    info.size = 0; // already passed to the muxer with the output format
+                }
+                if (info.size > 0 && mMuxerStarted) {
+                    writeAudioSamples(info.presentationTimeUs);
+                    buffer.position(info.offset);
+                    buffer.limit(info.offset + info.size);
+                    mMuxer.writeSampleData(mVideoTrackIndex, buffer, info);
+                }
+                mEncoder.releaseOutputBuffer(index, false);
+                if ((info.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0) {
+                    break;
+                }
+            }
+        }
+
+        if (mMuxerStarted) {
+            writeAudioSamples(Long.MAX_VALUE);
+        }
+    }
+
+    /**
+     * Copies the audio samples up to a timestamp into the muxer.
+     */
+    private void writeAudioSamples(long untilPresentationTimeUs) {
+        if (mAudioTrackIndex == -1) {
+            return;
+        }
+        if (mAudioBuffer == null) {
+            int size = mAudioFormat.containsKey(MediaFormat.KEY_MAX_INPUT_SIZE)
+                    ? mAudioFormat.getInteger(MediaFormat.KEY_MAX_INPUT_SIZE) : 256 * 1024;
+            mAudioBuffer = ByteBuffer.allocateDirect(size);
+            mAudioBufferInfo = new MediaCodec.BufferInfo();
+        }
+
+        long sampleTime;
+        while ((sampleTime = mAudioExtractor.getSampleTime()) >= 0 && sampleTime <= untilPresentationTimeUs) {
+            int size = mAudioExtractor.readSampleData(mAudioBuffer, 0);
+            if (size < 0) {
+                break;
+            }
+            int flags = (mAudioExtractor.getSampleFlags() & MediaExtractor.SAMPLE_FLAG_SYNC) != 0
+                    ? MediaCodec.BUFFER_FLAG_SYNC_FRAME : 0;
+            mAudioBufferInfo.set(0, size, sampleTime, flags);
+            mMuxer.writeSampleData(mAudioTrackIndex, mAudioBuffer, mAudioBufferInfo);
+            mAudioExtractor.advance();
+        }
+    }
+
+    private void release() {
+        if (mDecoder != null) {
+            mDecoder.stop();
+            mDecoder.release();
+            mDecoder = null;
+        }
+        if (mEncoder != null) {
+            mEncoder.stop();
+            mEncoder.release();
+            mEncoder = null;
+        }
+        if (mMuxer != null) {
+            if (mMuxerStarted) {
+                mMuxer.stop();
+            }
+            mMuxer.release();
+            mMuxer = null;
+        }
+        if (mContext != null) {
+            if (mExternalSurfaceTexture != null) {
+                mExternalSurfaceTexture.delete();
+                mExternalSurfaceTexture = null;
+            }
+            if (mReadExternalTextureShaderProgram != null) {
+                mReadExternalTextureShaderProgram.deleteProgram();
+                mReadExternalTextureShaderProgram = null;
+            }
+            FramebufferPool framebufferPool = FramebufferPool.getCurrent();
+            if (mFramebufferIn != null) {
+                framebufferPool.release(mFramebufferIn);
+                mFramebufferIn = null;
+            }
+            framebufferPool.trim();
+            ResourceRestoreManager.resetContextResources();
+            mContext.releaseCurrent();
+            mContext.destroySurface(mEncoderSurface);
+            mContext.release();
+            mContext = null;
+        }
+        if (mDecoderOutputSurface != null) {
+            mDecoderOutputSurface.release();
+            mDecoderOutputSurface = null;
+        }
+        if (mEncoderInputSurface != null) {
+            mEncoderInputSurface.release();
+            mEncoderInputSurface = null;
+        }
+        if (mVideoExtractor != null) {
+            mVideoExtractor.release();
+            mVideoExtractor = null;
+        }
+        if (mAudioExtractor != null) {
+            mAudioExtractor.release();
+            mAudioExtractor = null;
+        }
+    }
+}
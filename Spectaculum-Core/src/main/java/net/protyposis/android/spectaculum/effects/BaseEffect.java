@@ -18,6 +18,7 @@ package net.protyposis.android.spectaculum.effects;
 
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import net.protyposis.android.spectaculum.gles.Framebuffer;
 import net.protyposis.android.spectaculum.gles.Texture2D;
@@ -33,10 +34,15 @@ public abstract class BaseEffect implements Effect, Parameter.Listener {
     private String mName;
     private List<Parameter> mParameters;
     private boolean mInitialized;
+    private int mWidth;
+    private int mHeight;
     @Deprecated private Listener mListener;
     private ParameterHandler mParameterHandler;
     private boolean mBlockEvents;
     private List<Listener> mListeners;
+    private final Object mTransactionLock = new Object();
+    private volatile int mTransactionDepth; // written while holding mTransactionLock, read without
+    private final AtomicBoolean mTransactionChanged = new AtomicBoolean();
 
     public BaseEffect(String name) {
         if(name == null) {
@@ -61,11 +67,31 @@ public abstract class BaseEffect implements Effect, Parameter.Listener {
 
     public abstract void init(int width, int height);
 
+    /**
+     * Reinitializes the effect at the new resolution. Effects whose resources can be adapted to
+     * a new resolution should override this with a faster implementation.
+     */
+    @Override
+    public void resize(int width, int height) {
+        init(width, height);
+    }
+
     @Override
     public boolean isInitialized() {
         return mInitialized;
     }
 
+    /**
+     * Marks the effect as uninitialized. Effects that hold GL resources must override this to
+     * delete them, and call through to the super implementation.
+     */
+    @Override
+    public void release() {
+        mInitialized = false;
+        mWidth = 0;
+        mHeight = 0;
+    }
+
     public abstract void apply(Texture2D source, Framebuffer target);
 
     @Override
@@ -80,6 +106,93 @@ public abstract class BaseEffect implements Effect, Parameter.Listener {
         return mParameterHandler;
     }
 
+    /**
+     * Applies the pending values of all parameters, unless a transaction is open. The values are
+     * taken while the transaction lock is held and set on the delegates afterwards, so the lock
+     * is never held while the delegates issue GL calls.
+     */
+    @Override
+    public void applyParameterValues() {
+        if(stageParameterValues()) {
+            applyStagedParameterValues();
+        }
+    }
+
+    /**
+     * Takes the pending parameter values for {@link #applyStagedParameterValues()}, unless a
+     * transaction is open, in which case the values stay pending until after the commit.
+     * @return true if the values have been staged, false if a transaction is open
+     */
+    protected final boolean stageParameterValues() {
+        synchronized (mTransactionLock) {
+            if(mTransactionDepth > 0) {
+                return false;
+            }
+            onStageParameterValues();
+            return true;
+        }
+    }
+
+    /**
+     * Takes the pending parameter values. Called with the transaction lock held, so
+     * implementations must not issue GL calls.
+     */
+    protected void onStageParameterValues() {
+        for(int i = 0; i < mParameters.size(); i++) { // indexed to avoid an iterator per frame
+            Parameter p = mParameters.get(i);
+            if(p instanceof BaseParameter) {
+                ((BaseParameter) p).stagePendingValue();
+            } else {
+                // Parameters of other implementations cannot be staged and are applied right away
+                p.applyPendingValue();
+            }
+        }
+    }
+
+    /**
+     * Applies the parameter values that have been taken by {@link #stageParameterValues()}.
+     * Effects that hand over additional values to the GL thread, e.g. through a
+     * {@link FloatParameterBlock}, must override this to apply them, and call through to the
+     * super implementation.
+     */
+    protected void applyStagedParameterValues() {
+        for(int i = 0; i < mParameters.size(); i++) {
+            Parameter p = mParameters.get(i);
+            if(p instanceof BaseParameter) {
+                ((BaseParameter) p).applyStagedValue();
+            }
+        }
+    }
+
+    /**
+     * Begins a transaction. Waits while the GL thread takes the pending parameter values, so a
+     * transaction never takes effect partially.
+     */
+    @Override
+    public void beginTransaction() {
+        synchronized (mTransactionLock) {
+            mTransactionDepth++;
+        }
+    }
+
+    @Override
+    public void commitTransaction() {
+        boolean changed;
+        synchronized (mTransactionLock) {
+            if(mTransactionDepth == 0) {
+                throw new IllegalStateException("no transaction to commit");
+            }
+            mTransactionDepth--;
+            if(mTransactionDepth > 0) {
+                return;
+            }
+            changed = mTransactionChanged.getAndSet(false);
+        }
+        if(changed) {
+            fireEffectChanged();
+        }
+    }
+
     @Override
     public void addParameter(Parameter parameter) {
         mParameters.add(parameter);
@@ -110,10 +223,18 @@ public abstract class BaseEffect implements Effect, Parameter.Listener {
         return mParameters != null && !mParameters.isEmpty();
     }
 
+    /**
+     * Resets all parameters in a transaction, so the reset takes effect in a single frame.
+     */
     @Override
     public void reset() {
-        for(Parameter p: getParameters()) {
-            p.reset();
+        beginTransaction();
+        try {
+            for(Parameter p: getParameters()) {
+                p.reset();
+            }
+        } finally {
+            commitTransaction();
         }
     }
 
@@ -121,6 +242,74 @@ public abstract class BaseEffect implements Effect, Parameter.Listener {
         mInitialized = true;
     }
 
+    /**
+     * Marks the effect as initialized at the given resolution.
+     * @see #isInitializedAt(int, int)
+     */
+    protected void setInitialized(int width, int height) {
+        setResolution(width, height);
+        setInitialized();
+    }
+
+    /**
+     * Stores the resolution that the effect has been initialized or resized to.
+     * @see #isInitializedAt(int, int)
+     */
+    protected void setResolution(int width, int height) {
+        mWidth = width;
+        mHeight = height;
+    }
+
+    /**
+     * Gets the width that the effect has been initialized or resized to.
+     */
+    protected int getWidth() {
+        return mWidth;
+    }
+
+    /**
+     * Gets the height that the effect has been initialized or resized to.
+     */
+    protected int getHeight() {
+        return mHeight;
+    }
+
+    /**
+     * Checks if the effect is initialized at the given resolution, which lets containers like the
+     * {@link StackEffect} skip resizing effects that already have the requested size. Effects that
+     * do not report their resolution through {@link #setInitialized(int, int)} or
+     * {@link #setResolution(int, int)} never match.
+     */
+    public boolean isInitializedAt(int width, int height) {
+        return isInitialized() && mWidth == width && mHeight == height;
+    }
+
+    /**
+     * Carries the values of parameters of a previous initialization over to the current parameters
+     * with the same names, so a reinitialized effect keeps its settings.
+     * @param previousParameters the parameters before the reinitialization
+     */
+    protected void restoreParameterValues(List<Parameter> previousParameters) {
+        for (Parameter previous : previousParameters) {
+            for (Parameter current : getParameters()) {
+                if (current == previous || !current.getName().equals(previous.getName())
+                        || current.getClass() != previous.getClass()) {
+                    continue;
+                }
+                if (current instanceof FloatParameter) {
+                    ((FloatParameter) current).setValue(((FloatParameter) previous).getValue());
+                } else if (current instanceof IntegerParameter) {
+                    ((IntegerParameter) current).setValue(((IntegerParameter) previous).getValue());
+                } else if (current instanceof BooleanParameter) {
+                    ((BooleanParameter) current).setValue(((BooleanParameter) previous).getValue());
+                } else if (current instanceof EnumParameter) {
+                    ((EnumParameter) current).setValue(((EnumParameter) previous).getValue());
+                }
+                break;
+            }
+        }
+    }
+
     @Override
     public void setListener(Listener listener) {
         // Remove previously set listener
@@ -153,7 +342,20 @@ public abstract class BaseEffect implements Effect, Parameter.Listener {
         fireEffectChanged();
     }
 
+    /**
+     * Notifies the listeners of a change, or defers the notification to the commit of an open
+     * transaction. Does not take the transaction lock, so parameter changes never wait for the
+     * GL thread.
+     */
     protected void fireEffectChanged() {
+        if(mTransactionDepth > 0) {
+            // Fired once when the transaction is committed
+            mTransactionChanged.set(true);
+            if(mTransactionDepth > 0 || !mTransactionChanged.getAndSet(false)) {
+                return;
+            }
+            // The transaction has been committed in between without seeing the change, fire it here
+        }
         if (!mListeners.isEmpty()) {
             for (Listener listener : mListeners) {
                 listener.onEffectChanged(this);
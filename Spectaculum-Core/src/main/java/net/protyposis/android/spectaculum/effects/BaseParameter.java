@@ -18,6 +18,7 @@ package net.protyposis.android.spectaculum.effects;
 
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
  * Created by maguggen on 21.08.2014.
@@ -30,11 +31,16 @@ public abstract class BaseParameter<T> implements Parameter<T> {
     @Deprecated private Listener mListener;
     private ParameterHandler mHandler;
     private List<Listener> mListeners;
+    private volatile T mPendingValue;
+    private final AtomicBoolean mValuePending;
+    private T mStagedValue; // only accessed by the GL thread
+    private boolean mValueStaged; // only accessed by the GL thread
 
     protected BaseParameter(String name, Delegate<T> delegate) {
         mName = name;
         mDelegate = delegate;
         mListeners = new ArrayList<>();
+        mValuePending = new AtomicBoolean();
     }
 
     public BaseParameter(String name, Delegate<T> delegate, String description) {
@@ -91,14 +97,11 @@ public abstract class BaseParameter<T> implements Parameter<T> {
         }
     }
 
-    protected void setDelegateValue(final T value) {
+    protected void setDelegateValue(T value) {
         if(mHandler != null) {
-            mHandler.post(new Runnable() {
-                @Override
-                public void run() {
-                    mDelegate.setValue(value);
-                }
-            });
+            // Hand the value over to the GL thread, which only applies the latest value per frame
+            mPendingValue = value;
+            mValuePending.set(true);
         } else {
             mDelegate.setValue(value);
         }
@@ -106,13 +109,52 @@ public abstract class BaseParameter<T> implements Parameter<T> {
     }
 
     /**
-     * Sets a ParameterHandler on which parameter value changes will be executed. Parameter values
-     * need to be set on the GL thread where the effect that the parameter belongs is active, and
-     * this handler can be used to hand the parameter setting over to the GL thread.
+     * Sets a ParameterHandler that signals that parameter value changes need to be handed over
+     * to the GL thread where the effect that the parameter belongs to is active. Value changes
+     * are then deferred until {@link #applyPendingValue()} is called on the GL thread.
      * If no handler is set, parameters will be set on the caller thread.
      * @param handler the parameter handler to set, or null to unset
      */
     public void setHandler(ParameterHandler handler) {
         mHandler = handler;
     }
+
+    /**
+     * Sets a value that is applied with the next {@link #applyPendingValue()} call, without
+     * firing a change event. Used on the GL thread by {@link ParameterAnimation}s.
+     */
+    void setPendingValue(T value) {
+        mPendingValue = value;
+        mValuePending.set(true);
+    }
+
+    @Override
+    public void applyPendingValue() {
+        stagePendingValue();
+        applyStagedValue();
+    }
+
+    /**
+     * Takes the latest value that has been set since the last call, if any, for
+     * {@link #applyStagedValue()}. Does not touch the delegate, so it can be called while the
+     * transaction lock of the effect is held.
+     */
+    void stagePendingValue() {
+        if(mValuePending.getAndSet(false)) {
+            mStagedValue = mPendingValue;
+            mValueStaged = true;
+        }
+    }
+
+    /**
+     * Sets the value taken by {@link #stagePendingValue()} on the delegate, if any.
+     */
+    void applyStagedValue() {
+        if(mValueStaged) {
+            mValueStaged = false;
+            T value = mStagedValue;
+            mStagedValue = null;
+            mDelegate.setValue(value);
+        }
+    }
 }
@@ -68,4 +68,9 @@ public class ColorFilterEffect extends ShaderEffect {
 
         return colorFilterShader;
     }
+
+    @Override
+    public boolean isFusable() {
+        return true;
+    }
 }
@@ -51,4 +51,9 @@ public class ContrastBrightnessAdjustmentEffect extends ShaderEffect {
 
         return adjustmentsShader;
     }
+
+    @Override
+    public boolean isFusable() {
+        return true;
+    }
 }
@@ -67,6 +67,25 @@ public interface Effect {
      */
     void init(int width, int height);
 
+    /**
+     * Adapts an initialized effect to a new resolution of the render pipeline. Only the resources
+     * that depend on the resolution are updated, while shaders and parameter values are kept,
+     * which makes a resize much faster than a reinitialization. Effects that cannot be resized
+     * reinitialize themselves.
+     * @param width the new texture width
+     * @param height the new texture height
+     */
+    void resize(int width, int height);
+
+    /**
+     * Releases all GL resources (shaders, textures, ...) of the effect and returns it to the
+     * uninitialized state, while its parameter values are kept. A released effect can be
+     * reacquired by initializing it again with {@link #init(int, int)}, after which it renders
+     * with the same parameter values as before. Releasing an uninitialized effect has no effect.
+     * Must be called on the GL thread of the context that the effect has been initialized in.
+     */
+    void release();
+
     /**
      * Returns the initialization status of the effect.
      * @return true if the effect is initialized and ready to use, else false
@@ -84,13 +103,39 @@ public interface Effect {
 
     /**
      * Sets a parameter handler for the parameters of this effect. The parameter handler takes
-     * care that the parameter values are set on the correct thread (i.e. the GL thread).
+     * care that the parameter values are set on the correct thread (i.e. the GL thread), by
+     * deferring value changes until {@link #applyParameterValues()}.
      * Setting the handler on the effect makes sure that it is automatically set on its parameters.
      * @see Parameter#setHandler(ParameterHandler)
      * @param handler a handler to set, or null to unset
      */
     void setParameterHandler(ParameterHandler handler);
 
+    /**
+     * Applies the parameter values that have been set from other threads since the last call,
+     * i.e. the latest value of every changed parameter. Gets called by the renderer on the GL
+     * thread once per frame before the effect is applied.
+     * @see Parameter#applyPendingValue()
+     */
+    void applyParameterValues();
+
+    /**
+     * Begins a transaction that groups multiple parameter changes, e.g. when loading a preset.
+     * Until the transaction is committed with {@link #commitTransaction()}, parameter changes
+     * are not applied on the GL thread and {@link Listener#onEffectChanged(Effect)} is not fired,
+     * so all changes take effect together in a single frame with a single change event.
+     * Transactions can be nested, in which case only the outermost commit takes effect.
+     */
+    void beginTransaction();
+
+    /**
+     * Commits a transaction that has been started with {@link #beginTransaction()}, and fires
+     * a single {@link Listener#onEffectChanged(Effect)} event if a parameter has changed
+     * during the transaction.
+     * @throws IllegalStateException if no transaction has been started
+     */
+    void commitTransaction();
+
     /**
      * Adds a parameter to the effect. Parameters can be used to parameterize parameters of the effect :)
      * Triggers {@link Listener#onParameterAdded(Effect, Parameter)} on an attached listener.
@@ -0,0 +1,42 @@
+/*
+ * Copyright 2016 Mario Guggenberger <mg@protyposis.net>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.protyposis.android.spectaculum.effects;
+
+import net.protyposis.android.spectaculum.gles.ExternalSurfaceTexture;
+import net.protyposis.android.spectaculum.gles.Framebuffer;
+
+/**
+ * An effect that can read its input directly from an {@link ExternalSurfaceTexture}, e.g. the
+ * picture of a video decoder or camera preview. The renderer then does not need to copy the
+ * external texture into a 2D texture before applying the effect.
+ */
+public interface ExternalSourceEffect extends Effect {
+
+    /**
+     * Tells if the effect can currently read from an external texture. Must be called on the GL
+     * thread after the effect has been initialized.
+     */
+    boolean isExternalSourceSupported();
+
+    /**
+     * Applies the effect to an external texture. Must only be called if
+     * {@link #isExternalSourceSupported()} returns true.
+     * @param source the external texture to read from
+     * @param target the framebuffer to write to
+     */
+    void applyExternal(ExternalSurfaceTexture source, Framebuffer target);
+}
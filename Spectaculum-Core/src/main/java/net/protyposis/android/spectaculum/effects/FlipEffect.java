@@ -48,4 +48,9 @@ public class FlipEffect extends ShaderEffect {
 
         return flipShader;
     }
+
+    @Override
+    public boolean isFusable() {
+        return true;
+    }
 }
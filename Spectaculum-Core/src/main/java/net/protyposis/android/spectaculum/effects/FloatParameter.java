@@ -27,7 +27,7 @@ public class FloatParameter extends BaseParameter<Float> {
     private float mMin;
     private float mMax;
     private float mDefault;
-    private float mValue;
+    private volatile float mValue; // also written by animations on the GL thread
 
     public FloatParameter(String name, float min, float max, float init, Delegate delegate, String description) {
         super(name, delegate, description);
@@ -62,6 +62,14 @@ public class FloatParameter extends BaseParameter<Float> {
         return mDefault;
     }
 
+    /**
+     * Sets an animated value on the GL thread, see {@link ParameterAnimation}.
+     */
+    void setAnimatedValue(float value) {
+        mValue = value;
+        setPendingValue(mValue);
+    }
+
     @Override
     public void reset() {
         mValue = mDefault;
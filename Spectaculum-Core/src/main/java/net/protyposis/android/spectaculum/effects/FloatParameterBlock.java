@@ -0,0 +1,89 @@
+/*
+ * Copyright 2016 Mario Guggenberger <mg@protyposis.net>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.protyposis.android.spectaculum.effects;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A block of float values, e.g. a matrix, that is written on one thread and read on the GL thread,
+ * for effect values that change too frequently to go through a {@link Parameter}, like a
+ * rotation that follows a sensor.
+ *
+ * The block is triple buffered: the writer copies values into a back buffer and publishes them,
+ * and the GL thread swaps the latest published values into its front buffer once per frame,
+ * skipping all values that have been published in between. Both sides are wait-free and do not
+ * allocate, and the front buffer never changes while the GL thread reads it. There must only be
+ * one writing thread at a time.
+ */
+public class FloatParameterBlock {
+
+    private static final int INDEX_MASK = 0x3;
+    private static final int DIRTY = 0x4;
+
+    private final float[][] mBuffers;
+    private final AtomicInteger mMiddle; // index of the published buffer, with DIRTY if not swapped in yet
+    private int mBack; // only accessed by the writer
+    private int mFront; // only accessed by the reader
+
+    /**
+     * Creates a block of a fixed number of values that are initially zero.
+     * @param size the number of values
+     */
+    public FloatParameterBlock(int size) {
+        mBuffers = new float[3][size];
+        mFront = 0;
+        mMiddle = new AtomicInteger(1);
+        mBack = 2;
+    }
+
+    /**
+     * Gets the number of values of the block.
+     */
+    public int size() {
+        return mBuffers[0].length;
+    }
+
+    /**
+     * Publishes new values to the GL thread. Called by the writing thread.
+     * @param values the values to copy into the block, at least {@link #size()} values
+     */
+    public void set(float[] values) {
+        System.arraycopy(values, 0, mBuffers[mBack], 0, mBuffers[mBack].length);
+        mBack = mMiddle.getAndSet(mBack | DIRTY) & INDEX_MASK;
+    }
+
+    /**
+     * Swaps the latest published values into the front buffer, if new values have been
+     * published since the last swap. Called on the GL thread.
+     * @return true if new values have been swapped in
+     */
+    public boolean swap() {
+        if ((mMiddle.get() & DIRTY) == 0) {
+            return false;
+        }
+        mFront = mMiddle.getAndSet(mFront) & INDEX_MASK;
+        return true;
+    }
+
+    /**
+     * Gets the values that have been swapped in last. Called on the GL thread. The returned
+     * array must not be modified.
+     */
+    public float[] get() {
+        return mBuffers[mFront];
+    }
+}
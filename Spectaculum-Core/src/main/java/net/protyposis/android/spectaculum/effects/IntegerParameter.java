@@ -27,7 +27,7 @@ public class IntegerParameter extends BaseParameter<Integer> {
     private int mMin;
     private int mMax;
     private int mDefault;
-    private int mValue;
+    private volatile int mValue; // also written by animations on the GL thread
 
     public IntegerParameter(String name, int min, int max, int init, Delegate delegate, String description) {
         super(name, delegate, description);
@@ -62,6 +62,14 @@ public class IntegerParameter extends BaseParameter<Integer> {
         return mDefault;
     }
 
+    /**
+     * Sets an animated value on the GL thread, see {@link ParameterAnimation}.
+     */
+    void setAnimatedValue(int value) {
+        mValue = value;
+        setPendingValue(mValue);
+    }
+
     @Override
     public void reset() {
         mValue = mDefault;
@@ -74,11 +74,19 @@ public interface Parameter<T> {
     void removeListener(Listener listener);
 
     /**
-     * Sets a ParameterHandler on which parameter value changes will be executed. Parameter values
-     * need to be set on the GL thread where the effect that the parameter belongs is active, and
-     * this handler can be used to hand the parameter setting over to the GL thread.
+     * Sets a ParameterHandler that signals that parameter value changes need to be handed over
+     * to the GL thread where the effect that the parameter belongs to is active. With a handler,
+     * a value change only stores the new value, which is applied with {@link #applyPendingValue()}
+     * on the GL thread before the next frame; intermediate values that are set in between are skipped.
      * If no handler is set, parameters will be set on the caller thread.
      * @param handler the parameter handler to set, or null to unset
      */
     void setHandler(ParameterHandler handler);
+
+    /**
+     * Applies the latest value that has been set since the last call, if any. Gets called on
+     * the GL thread before the effect is rendered.
+     * @see Effect#applyParameterValues()
+     */
+    void applyPendingValue();
 }
@@ -0,0 +1,268 @@
+/*
+ * Copyright 2016 Mario Guggenberger <mg@protyposis.net>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.protyposis.android.spectaculum.effects;
+
+import android.animation.TimeInterpolator;
+
+import java.util.Arrays;
+
+/**
+ * A keyframe animation of a {@link FloatParameter} or {@link IntegerParameter} that is evaluated
+ * on the GL thread at the time of every rendered frame, e.g. to fade the opacity of a watermark
+ * or sweep the rotation of an immersive view. Compared to a UI thread animator that sets the
+ * parameter value, the animation stays smooth under UI thread load and does not hand every
+ * value over to the GL thread.
+ *
+ * An animation is set up with its keyframes on any thread and then started through
+ * {@link net.protyposis.android.spectaculum.SpectaculumView#startAnimation(ParameterAnimation)},
+ * after which it must not be modified anymore. Between two keyframes, the value is interpolated
+ * along the curve of the {@link TimeInterpolator}, or linearly if none is set.
+ *
+ * Animated values are applied like parameter values that are set from another thread, but do
+ * not fire change events, and a running animation overrides values that are set otherwise.
+ * {@link FloatParameter#getValue()} and {@link IntegerParameter#getValue()} return the
+ * animated value.
+ */
+public class ParameterAnimation {
+
+    /**
+     * Repeat count to repeat an animation until it is canceled.
+     */
+    public static final int INFINITE = -1;
+
+    /**
+     * Repeat mode to restart the animation from the first keyframe.
+     */
+    public static final int RESTART = 1;
+
+    /**
+     * Repeat mode to play the animation back and forth.
+     */
+    public static final int REVERSE = 2;
+
+    private FloatParameter mFloatParameter;
+    private IntegerParameter mIntegerParameter;
+    private long[] mKeyframeTimes;
+    private float[] mKeyframeValues;
+    private int mKeyframeCount;
+    private TimeInterpolator mInterpolator;
+    private int mRepeatCount;
+    private int mRepeatMode;
+
+    /* Animation state, only accessed on the GL thread */
+    private long mStartTime;
+    private float mLastValue;
+
+    private ParameterAnimation() {
+        mKeyframeTimes = new long[4];
+        mKeyframeValues = new float[4];
+        mRepeatMode = RESTART;
+        mStartTime = -1;
+        mLastValue = Float.NaN;
+    }
+
+    /**
+     * Creates an animation of a float parameter without keyframes.
+     */
+    public ParameterAnimation(FloatParameter parameter) {
+        this();
+        mFloatParameter = parameter;
+    }
+
+    /**
+     * Creates an animation of an integer parameter without keyframes. The interpolated values
+     * are rounded to the nearest integer.
+     */
+    public ParameterAnimation(IntegerParameter parameter) {
+        this();
+        mIntegerParameter = parameter;
+    }
+
+    /**
+     * Creates an animation of a float parameter through evenly spaced values.
+     * @param parameter the parameter to animate
+     * @param durationMs the duration of the animation in milliseconds
+     * @param values the values to animate through, at least one
+     */
+    public static ParameterAnimation ofFloat(FloatParameter parameter, long durationMs, float... values) {
+        return new ParameterAnimation(parameter).addKeyframes(durationMs, values);
+    }
+
+    /**
+     * Creates an animation of an integer parameter through evenly spaced values.
+     * @param parameter the parameter to animate
+     * @param durationMs the duration of the animation in milliseconds
+     * @param values the values to animate through, at least one
+     */
+    public static ParameterAnimation ofInt(IntegerParameter parameter, long durationMs, int... values) {
+        float[] floatValues = new float[values.length];
+        for (int i = 0; i < values.length; i++) {
+            floatValues[i] = values[i];
+        }
+        return new ParameterAnimation(parameter).addKeyframes(durationMs, floatValues);
+    }
+
+    private ParameterAnimation addKeyframes(long durationMs, float[] values) {
+        if (values.length == 0) {
+            throw new IllegalArgumentException("no values");
+        }
+        for (int i = 0; i < values.length; i++) {
+            long timeMs = values.length == 1 ? durationMs : durationMs * i / (values.length - 1);
+            addKeyframe(timeMs, values[i]);
+        }
+        return this;
+    }
+
+    /**
+     * Adds a keyframe. Keyframes must be added in the order of their times, and the time of
+     * the last keyframe is the duration of the animation. Before the first keyframe, the value
+     * of the first keyframe is held.
+     * @param timeMs the time of the keyframe from the start of the animation in milliseconds
+     * @param value the value of the parameter at the keyframe
+     * @return the animation, for chaining
+     */
+    public ParameterAnimation addKeyframe(long timeMs, float value) {
+        if (timeMs < 0 || (mKeyframeCount > 0 && timeMs < mKeyframeTimes[mKeyframeCount - 1] / 1000000)) {
+            throw new IllegalArgumentException("keyframe at " + timeMs + " ms out of order");
+        }
+        if (mKeyframeCount == mKeyframeTimes.length) {
+            mKeyframeTimes = Arrays.copyOf(mKeyframeTimes, mKeyframeCount * 2);
+            mKeyframeValues = Arrays.copyOf(mKeyframeValues, mKeyframeCount * 2);
+        }
+        mKeyframeTimes[mKeyframeCount] = timeMs * 1000000;
+        mKeyframeValues[mKeyframeCount] = value;
+        mKeyframeCount++;
+        return this;
+    }
+
+    /**
+     * Sets the curve along which the values between two keyframes are interpolated.
+     * @param interpolator the interpolator, or null for linear interpolation
+     * @return the animation, for chaining
+     */
+    public ParameterAnimation setInterpolator(TimeInterpolator interpolator) {
+        mInterpolator = interpolator;
+        return this;
+    }
+
+    /**
+     * Sets how often the animation is repeated after it has played once.
+     * @param repeatCount the number of repetitions, or {@link #INFINITE}
+     * @return the animation, for chaining
+     */
+    public ParameterAnimation setRepeatCount(int repeatCount) {
+        mRepeatCount = repeatCount;
+        return this;
+    }
+
+    /**
+     * Sets how the animation is repeated.
+     * @param repeatMode {@link #RESTART} or {@link #REVERSE}
+     * @return the animation, for chaining
+     */
+    public ParameterAnimation setRepeatMode(int repeatMode) {
+        if (repeatMode != RESTART && repeatMode != REVERSE) {
+            throw new IllegalArgumentException("invalid repeat mode " + repeatMode);
+        }
+        mRepeatMode = repeatMode;
+        return this;
+    }
+
+    /**
+     * Gets the animated parameter.
+     */
+    public Parameter getParameter() {
+        return mFloatParameter != null ? mFloatParameter : mIntegerParameter;
+    }
+
+    /**
+     * Resets the animation, so it starts from the beginning the next time it is animated.
+     * Gets called on the GL thread when the animation is started.
+     */
+    public void restart() {
+        if (mKeyframeCount == 0) {
+            throw new IllegalStateException("animation has no keyframes");
+        }
+        mStartTime = -1;
+        mLastValue = Float.NaN;
+    }
+
+    /**
+     * Evaluates the animation at the time of a frame and hands the value over to the parameter,
+     * where it is applied together with the other parameter values before the effect is
+     * rendered. Gets called on the GL thread. The first call sets the start time.
+     * @param frameTimeNs the time of the frame in nanoseconds on a monotonic clock, e.g. the
+     *                    {@link System#nanoTime()} at which the frame has started
+     * @return true if the animation is still running, false if it has ended with this frame
+     */
+    public boolean animate(long frameTimeNs) {
+        if (mStartTime == -1) {
+            mStartTime = frameTimeNs;
+        }
+        long elapsed = frameTimeNs - mStartTime;
+        long duration = mKeyframeTimes[mKeyframeCount - 1];
+
+        long iteration = duration == 0 ? 0 : elapsed / duration;
+        boolean ended = mRepeatCount != INFINITE && iteration > mRepeatCount;
+        long time;
+        if (ended || duration == 0) {
+            time = duration;
+            iteration = Math.max(mRepeatCount, 0);
+        } else {
+            time = elapsed % duration;
+        }
+        if (mRepeatMode == REVERSE && iteration % 2 == 1) {
+            time = duration - time;
+        }
+
+        setValue(evaluate(time));
+        return !ended && duration > 0;
+    }
+
+    private float evaluate(long time) {
+        if (time <= mKeyframeTimes[0]) {
+            return mKeyframeValues[0];
+        }
+        for (int i = 1; i < mKeyframeCount; i++) {
+            if (time <= mKeyframeTimes[i]) {
+                long segmentStart = mKeyframeTimes[i - 1];
+                float fraction = (float) (time - segmentStart) / (mKeyframeTimes[i] - segmentStart);
+                if (mInterpolator != null) {
+                    fraction = mInterpolator.getInterpolation(fraction);
+                }
+                float startValue = mKeyframeValues[i - 1];
+                return startValue + (mKeyframeValues[i] - startValue) * fraction;
+            }
+        }
+        return mKeyframeValues[mKeyframeCount - 1];
+    }
+
+    private void setValue(float value) {
+        if (mFloatParameter != null) {
+            if (value != mLastValue) {
+                mFloatParameter.setAnimatedValue(value);
+            }
+        } else {
+            value = Math.round(value);
+            if (value != mLastValue) {
+                mIntegerParameter.setAnimatedValue((int) value);
+            }
+        }
+        // Skipping unchanged values avoids applying them again, e.g. while holding a keyframe
+        mLastValue = value;
+    }
+}
@@ -20,6 +20,9 @@ import net.protyposis.android.spectaculum.SpectaculumView;
 
 /**
  * A simple parameter handler that executes on the rendering thread of the Spectaculum view.
+ * Parameters that have a handler defer their value changes until the renderer applies them
+ * before the next frame (see {@link Effect#applyParameterValues()}), so only
+ * {@link #post(Runnable)} actually executes on the rendering thread.
  * Created by Mario on 18.08.2016.
  */
 public class ParameterHandler {
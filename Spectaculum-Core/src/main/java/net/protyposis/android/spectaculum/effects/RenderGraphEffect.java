@@ -0,0 +1,39 @@
+/*
+ * Copyright 2016 Mario Guggenberger <mg@protyposis.net>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.protyposis.android.spectaculum.effects;
+
+import net.protyposis.android.spectaculum.gles.RenderGraph;
+
+/**
+ * An effect that can declare its render passes with their inputs and outputs to a {@link RenderGraph}.
+ * Effects that are combined in a {@link StackEffect} then share their intermediate framebuffers
+ * with all other effects of the stack. Effects that do not implement this interface are added
+ * to the graph as a single opaque pass.
+ */
+public interface RenderGraphEffect extends Effect {
+
+    /**
+     * Declares the render passes of the effect. The declared passes must produce the same result
+     * as {@link #apply(net.protyposis.android.spectaculum.gles.Texture2D, net.protyposis.android.spectaculum.gles.Framebuffer)}.
+     * Intermediate results must be written to transient resources created through
+     * {@link RenderGraph#createTransient()}.
+     * @param graph the graph to declare the passes in
+     * @param source the resource that holds the input image of the effect
+     * @param target the resource that the final pass of the effect must write to
+     */
+    void declarePasses(RenderGraph graph, RenderGraph.Resource source, RenderGraph.Resource target);
+}
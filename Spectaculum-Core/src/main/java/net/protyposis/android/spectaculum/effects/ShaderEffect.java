@@ -16,19 +16,29 @@
 
 package net.protyposis.android.spectaculum.effects;
 
+import net.protyposis.android.spectaculum.gles.ExternalSurfaceTexture;
+import net.protyposis.android.spectaculum.gles.ExternalTextureShaderProgram;
 import net.protyposis.android.spectaculum.gles.Framebuffer;
+import net.protyposis.android.spectaculum.gles.FusedShaderProgram;
+import net.protyposis.android.spectaculum.gles.RenderGraph;
 import net.protyposis.android.spectaculum.gles.Texture2D;
 import net.protyposis.android.spectaculum.gles.TextureShaderProgram;
 import net.protyposis.android.spectaculum.gles.TexturedRectangle;
 
+import java.util.ArrayList;
+import java.util.List;
+
 /**
  * A base class for an effect with a single shader program.
  * Created by Mario on 18.07.2014.
  */
-public abstract class ShaderEffect extends BaseEffect {
+public abstract class ShaderEffect extends BaseEffect implements RenderGraphEffect, ExternalSourceEffect,
+        WriteOnlyTargetEffect {
 
     private TexturedRectangle mTexturedRectangle;
     private TextureShaderProgram mShaderProgram;
+    private ExternalTextureShaderProgram mExternalShaderProgram;
+    private Boolean mExternalSourceSupported;
 
     protected ShaderEffect(String name) {
         super(name);
@@ -39,28 +49,85 @@ public abstract class ShaderEffect extends BaseEffect {
 
     protected abstract TextureShaderProgram initShaderProgram();
 
+    /**
+     * Initializes the shader program of the effect. When the effect is reinitialized, e.g. after
+     * it has been released, the values of the previous parameters are carried over to the new ones.
+     */
     public void init(int width, int height) {
+        List<Parameter> previousParameters = new ArrayList<>(getParameters());
         getParameters().clear();
 
         /* Block events while initializing effect to avoid parameter added events
          * (they should only be fired after construction/initialization) */
         // TODO deliver the events on the UI thread
         setEventBlocking(true);
+        TextureShaderProgram previousShaderProgram = mShaderProgram;
         mShaderProgram = initShaderProgram();
         reset(); // initialize shader program with default values
+        restoreParameterValues(previousParameters);
         mShaderProgram.setTextureSize(width, height);
         setEventBlocking(false);
 
+        // Release the programs of a previous initialization after the new program has been
+        // created, so a reinitialization takes the same program object from the program cache
+        if (previousShaderProgram != null && previousShaderProgram != mShaderProgram) {
+            previousShaderProgram.deleteProgram();
+        }
+        if (mExternalShaderProgram != null) {
+            mExternalShaderProgram.deleteProgram();
+        }
+
+        // The external variant gets generated on demand
+        mExternalShaderProgram = null;
+        mExternalSourceSupported = null;
+
         mTexturedRectangle = new TexturedRectangle();
         mTexturedRectangle.reset();
 
-        setInitialized();
+        setInitialized(width, height);
+    }
+
+    @Override
+    public void resize(int width, int height) {
+        if (!isInitialized()) {
+            init(width, height);
+            return;
+        }
+
+        mShaderProgram.setTextureSize(width, height);
+        if (mExternalShaderProgram != null) {
+            mExternalShaderProgram.setTextureSize(width, height);
+        }
+        setResolution(width, height);
+    }
+
+    @Override
+    public void release() {
+        if (mShaderProgram != null) {
+            mShaderProgram.deleteProgram();
+            mShaderProgram = null;
+        }
+        if (mExternalShaderProgram != null) {
+            mExternalShaderProgram.deleteProgram();
+            mExternalShaderProgram = null;
+        }
+        mExternalSourceSupported = null;
+        super.release();
     }
 
     public TextureShaderProgram getShaderProgram() {
         return mShaderProgram;
     }
 
+    /**
+     * Tells if the shader of this effect is a point-wise operation that can be fused with the
+     * shaders of adjacent effects in a {@link StackEffect} into a single render pass. Effects
+     * that return true must satisfy the requirements of {@link FusedShaderProgram}.
+     */
+    public boolean isFusable() {
+        return false;
+    }
+
     @Override
     public void apply(Texture2D source, Framebuffer target) {
         target.bind();
@@ -68,4 +135,40 @@ public abstract class ShaderEffect extends BaseEffect {
         mShaderProgram.setTexture(source);
         mTexturedRectangle.draw(mShaderProgram);
     }
+
+    @Override
+    public boolean isTargetWriteOnly() {
+        return true;
+    }
+
+    @Override
+    public boolean isExternalSourceSupported() {
+        if (mExternalSourceSupported == null) {
+            mExternalSourceSupported = ExternalTextureShaderProgram.canConvert(mShaderProgram);
+        }
+        return mExternalSourceSupported;
+    }
+
+    @Override
+    public void applyExternal(ExternalSurfaceTexture source, Framebuffer target) {
+        if (mExternalShaderProgram == null) {
+            mExternalShaderProgram = new ExternalTextureShaderProgram(mShaderProgram);
+            mExternalShaderProgram.setTextureSize(getWidth(), getHeight());
+        }
+
+        target.bind();
+        mExternalShaderProgram.use();
+        mExternalShaderProgram.setTexture(source);
+        mTexturedRectangle.draw(mExternalShaderProgram);
+    }
+
+    @Override
+    public void declarePasses(RenderGraph graph, RenderGraph.Resource source, RenderGraph.Resource target) {
+        graph.addPass(getName(), target, new RenderGraph.PassCallback() {
+            @Override
+            public void render(Texture2D[] inputs, Framebuffer target) {
+                apply(inputs[0], target);
+            }
+        }, source);
+    }
 }
@@ -16,26 +16,47 @@
 
 package net.protyposis.android.spectaculum.effects;
 
+import net.protyposis.android.spectaculum.gles.ExternalSurfaceTexture;
 import net.protyposis.android.spectaculum.gles.Framebuffer;
+import net.protyposis.android.spectaculum.gles.FramebufferPool;
+import net.protyposis.android.spectaculum.gles.FusedShaderProgram;
+import net.protyposis.android.spectaculum.gles.RenderGraph;
 import net.protyposis.android.spectaculum.gles.Texture2D;
+import net.protyposis.android.spectaculum.gles.TextureShaderProgram;
 
 import java.util.ArrayList;
 import java.util.Collections;
-import java.util.Iterator;
 import java.util.List;
 
 /**
  * Creates a stack of effects that are applied sequentially one by one. Useful to combine effects
  * together, e.g. convert the image with a toon effect, adjust its brightness and add a watermark on top.
+ *
+ * The effects are compiled into a {@link RenderGraph}. Effects that implement {@link RenderGraphEffect}
+ * contribute their individual passes, so their intermediate framebuffers are shared across the
+ * whole stack; all other effects are added as a single pass.
+ *
+ * Consecutive point-wise effects (see {@link ShaderEffect#isFusable()}) are fused into a single
+ * shader program and rendered in a single pass, unless shader fusion is disabled with
+ * {@link #setShaderFusionEnabled(boolean)}.
+ *
+ * If the first rendered effect can read from an external texture, the stack can read from an
+ * external texture too.
  */
-public class StackEffect extends BaseEffect {
+public class StackEffect extends BaseEffect implements RenderGraphEffect, ExternalSourceEffect,
+        WriteOnlyTargetEffect {
 
     private List<Effect> mEffects;
-    private Framebuffer mFramebuffer;
+    private List<Effect> mRenderEffects;
+    private boolean mShaderFusionEnabled;
+    private RenderGraph mRenderGraph;
+    private RenderGraph mTailRenderGraph;
 
     public StackEffect(String name) {
         super(name);
         mEffects = new ArrayList<>();
+        mRenderEffects = new ArrayList<>();
+        mShaderFusionEnabled = true;
     }
 
     public StackEffect(String name, Effect... effects) {
@@ -55,16 +76,30 @@ public class StackEffect extends BaseEffect {
         Collections.addAll(mEffects, effects);
     }
 
+    /**
+     * Enables or disables the fusion of consecutive point-wise effects into a single render pass.
+     * Takes effect on the next initialization. Enabled by default.
+     */
+    public void setShaderFusionEnabled(boolean enabled) {
+        mShaderFusionEnabled = enabled;
+    }
+
+    public boolean isShaderFusionEnabled() {
+        return mShaderFusionEnabled;
+    }
+
     @Override
     public void init(int width, int height) {
-        // Create an internal framebuffer which is required to apply a sequence of effects
-        mFramebuffer = new Framebuffer(width, height);
-
         setEventBlocking(true);
+        getParameters().clear();
 
-        // Initialize all effects
         for (Effect e : mEffects) {
-            e.init(width, height);
+            /* Effects that are already initialized, e.g. because they are also used on their own,
+             * are left alone, because they may be in use on the GL thread while the stack is
+             * initialized in the background (see EffectLoader). */
+            if (!e.isInitialized()) {
+                e.init(width, height);
+            }
 
             // Add effect parameters
             for(Parameter p : e.getParameters()) {
@@ -74,36 +109,277 @@ public class StackEffect extends BaseEffect {
 
         setEventBlocking(false);
 
-        setInitialized();
+        initRenderEffects(width, height);
+        initRenderGraphs(width, height);
+
+        setInitialized(width, height);
     }
 
     @Override
-    public void apply(Texture2D source, Framebuffer target) {
-        Iterator<Effect> i = mEffects.iterator();
+    public void resize(int width, int height) {
+        if (!isInitialized()) {
+            init(width, height);
+            return;
+        }
+
+        for (Effect e : mEffects) {
+            // Effects that are also used on their own may already have been resized by the renderer
+            if (!isInitializedAt(e, width, height)) {
+                e.resize(width, height);
+            }
+        }
+        for (Effect e : mRenderEffects) {
+            if (e instanceof FusedEffect && !isInitializedAt(e, width, height)) {
+                e.resize(width, height);
+            }
+        }
+
+        // The graphs only plan the framebuffers, which are leased from the pool when rendering
+        initRenderGraphs(width, height);
+
+        setResolution(width, height);
+    }
+
+    private static boolean isInitializedAt(Effect effect, int width, int height) {
+        return effect instanceof BaseEffect && ((BaseEffect) effect).isInitializedAt(width, height);
+    }
+
+    /**
+     * Releases all effects of the stack. Effects that are also used outside the stack are
+     * released too, and get reinitialized when they are used again.
+     */
+    @Override
+    public void release() {
+        for (Effect e : mEffects) {
+            e.release();
+        }
+        for (Effect e : mRenderEffects) {
+            if (e instanceof FusedEffect) {
+                e.release();
+            }
+        }
+        mRenderEffects.clear();
+        mRenderGraph = null;
+        mTailRenderGraph = null;
+        super.release();
+    }
+
+    /**
+     * Begins a transaction on the stack and all of its effects, which share their parameters
+     * with the stack.
+     */
+    @Override
+    public void beginTransaction() {
+        super.beginTransaction();
+        for (Effect e : mEffects) {
+            e.beginTransaction();
+        }
+    }
+
+    @Override
+    public void commitTransaction() {
+        for (Effect e : mEffects) {
+            e.commitTransaction();
+        }
+        super.commitTransaction();
+    }
+
+    /**
+     * Takes the pending values of the effects, which share their parameters with the stack. Each
+     * effect only stages its values while its own transaction is closed, so a transaction that
+     * has been opened on a single effect of the stack never takes effect partially.
+     */
+    @Override
+    protected void onStageParameterValues() {
+        for (int i = 0; i < mEffects.size(); i++) { // indexed to avoid an iterator per frame
+            Effect e = mEffects.get(i);
+            if (e instanceof BaseEffect) {
+                ((BaseEffect) e).stageParameterValues();
+            }
+        }
+    }
+
+    @Override
+    protected void applyStagedParameterValues() {
+        for (int i = 0; i < mEffects.size(); i++) {
+            Effect e = mEffects.get(i);
+            if (e instanceof BaseEffect) {
+                ((BaseEffect) e).applyStagedParameterValues();
+            } else {
+                e.applyParameterValues();
+            }
+        }
+    }
+
+    /**
+     * Checks if the stack and all of its effects are initialized. An effect of the stack that has
+     * been released separately, e.g. because it is also used on its own, requires the stack to be
+     * initialized again.
+     */
+    @Override
+    public boolean isInitialized() {
+        if (!super.isInitialized()) {
+            return false;
+        }
+        for (Effect e : mEffects) {
+            if (!e.isInitialized()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void initRenderGraphs(int width, int height) {
+        mRenderGraph = new RenderGraph(width, height);
+        declarePasses(mRenderGraph, mRenderGraph.getSource(), mRenderGraph.getTarget());
+        mRenderGraph.compile();
+
+        // The graph of all effects following the first, used when the first effect reads from an external texture
+        mTailRenderGraph = null;
+        if (mRenderEffects.size() > 1 && mRenderEffects.get(0) instanceof ExternalSourceEffect) {
+            mTailRenderGraph = new RenderGraph(width, height);
+            declarePasses(mTailRenderGraph, mTailRenderGraph.getSource(), mTailRenderGraph.getTarget(), 1);
+            mTailRenderGraph.compile();
+        }
+    }
 
+    /**
+     * Builds the list of effects that are rendered, in which sequences of fusable effects are
+     * replaced by fused effects.
+     */
+    private void initRenderEffects(int width, int height) {
+        List<Effect> previousRenderEffects = new ArrayList<>(mRenderEffects);
+        mRenderEffects.clear();
+
+        List<ShaderEffect> fusionEffects = new ArrayList<>();
+        List<TextureShaderProgram> fusionPrograms = new ArrayList<>();
+        for (Effect e : mEffects) {
+            TextureShaderProgram program = e instanceof ShaderEffect ? ((ShaderEffect) e).getShaderProgram() : null;
+            if (mShaderFusionEnabled && program != null && ((ShaderEffect) e).isFusable()
+                    && FusedShaderProgram.canFuse(program)) {
+                if (!FusedShaderProgram.canAppend(fusionPrograms, program)) {
+                    addRenderEffects(fusionEffects, fusionPrograms, width, height);
+                }
+                fusionEffects.add((ShaderEffect) e);
+                fusionPrograms.add(program);
+            } else {
+                addRenderEffects(fusionEffects, fusionPrograms, width, height);
+                mRenderEffects.add(e);
+            }
+        }
+        addRenderEffects(fusionEffects, fusionPrograms, width, height);
+
+        // Release the previous fused effects after the new ones have been created, so a
+        // reinitialization takes the same program objects from the program cache
+        for (Effect e : previousRenderEffects) {
+            if (e instanceof FusedEffect) {
+                e.release();
+            }
+        }
+    }
+
+    private void addRenderEffects(List<ShaderEffect> fusionEffects, List<TextureShaderProgram> fusionPrograms,
+                                  int width, int height) {
+        if (fusionEffects.size() == 1) {
+            // A single effect does not need to be fused
+            mRenderEffects.add(fusionEffects.get(0));
+        } else if (fusionEffects.size() > 1) {
+            mRenderEffects.add(new FusedEffect(fusionEffects, new FusedShaderProgram(fusionPrograms), width, height));
+        }
+        fusionEffects.clear();
+        fusionPrograms.clear();
+    }
+
+    @Override
+    public void declarePasses(RenderGraph graph, RenderGraph.Resource source, RenderGraph.Resource target) {
+        declarePasses(graph, source, target, 0);
+    }
+
+    private void declarePasses(RenderGraph graph, RenderGraph.Resource source, RenderGraph.Resource target,
+                               int firstEffect) {
         /*
-         * The first source texture must always be the passed in texture, the last output framebuffer
-         * must always be the passed in target framebuffer. In between, we need to switch source
-         * textures and target framebuffers between the passed in external framebuffer and the internal
-         * framebuffer, because we cannot read and write to the same framebuffer in one render pass.
-         * If the number of effects is even, we start by writing the internal framebuffer, else we
-         * start with the external framebuffer.
+         * The first effect reads from the passed in source, the last effect writes to the passed
+         * in target, and every effect in between reads the intermediate result of its predecessor.
+         * The graph takes care of mapping the intermediate results to as few framebuffers as possible.
          */
-        Framebuffer internalFB = mFramebuffer;
-        Framebuffer externalFB = target;
-        boolean useInternalFB = mEffects.size() % 2 == 0; // keeps track of which framebuffer to use as target
-
-        while(i.hasNext()) {
-            Effect e = i.next();
+        RenderGraph.Resource input = source;
+        for (int i = firstEffect; i < mRenderEffects.size(); i++) {
+            final Effect e = mRenderEffects.get(i);
+            RenderGraph.Resource output = i == mRenderEffects.size() - 1 ? target : graph.createTransient();
 
-            if(i.hasNext()) {
-                e.apply(source, useInternalFB ? internalFB : externalFB);
-                source = useInternalFB ? internalFB.getTexture() : externalFB.getTexture();
-                useInternalFB = !useInternalFB; // switch framebuffer flag
+            if (e instanceof RenderGraphEffect) {
+                ((RenderGraphEffect) e).declarePasses(graph, input, output);
             } else {
-                // Last effect; always write result to the target framebuffer
-                e.apply(source, target);
+                graph.addPass(e.getName(), output, new RenderGraph.PassCallback() {
+                    @Override
+                    public void render(Texture2D[] inputs, Framebuffer target) {
+                        e.apply(inputs[0], target);
+                    }
+                }, input);
             }
+
+            input = output;
+        }
+    }
+
+    @Override
+    public void apply(Texture2D source, Framebuffer target) {
+        mRenderGraph.execute(source, target);
+    }
+
+    @Override
+    public boolean isTargetWriteOnly() {
+        // Only the last effect writes to the target, all others write to intermediates
+        Effect lastEffect = mRenderEffects.isEmpty() ? null : mRenderEffects.get(mRenderEffects.size() - 1);
+        return lastEffect instanceof WriteOnlyTargetEffect && ((WriteOnlyTargetEffect) lastEffect).isTargetWriteOnly();
+    }
+
+    @Override
+    public boolean isExternalSourceSupported() {
+        return !mRenderEffects.isEmpty() && mRenderEffects.get(0) instanceof ExternalSourceEffect
+                && ((ExternalSourceEffect) mRenderEffects.get(0)).isExternalSourceSupported();
+    }
+
+    @Override
+    public void applyExternal(ExternalSurfaceTexture source, Framebuffer target) {
+        ExternalSourceEffect firstEffect = (ExternalSourceEffect) mRenderEffects.get(0);
+
+        if (mTailRenderGraph == null) {
+            firstEffect.applyExternal(source, target);
+            return;
+        }
+
+        FramebufferPool framebufferPool = FramebufferPool.getCurrent();
+        Framebuffer framebuffer = framebufferPool.obtain(getWidth(), getHeight());
+        firstEffect.applyExternal(source, framebuffer);
+        mTailRenderGraph.execute(framebuffer.getTexture(), target);
+        framebufferPool.release(framebuffer);
+    }
+
+    /**
+     * Renders a sequence of fusable effects with a single fused shader program.
+     */
+    private static class FusedEffect extends ShaderEffect {
+
+        private FusedShaderProgram mFusedShaderProgram;
+
+        FusedEffect(List<ShaderEffect> effects, FusedShaderProgram shaderProgram, int width, int height) {
+            super(getFusedName(effects));
+            mFusedShaderProgram = shaderProgram;
+            init(width, height);
+        }
+
+        private static String getFusedName(List<ShaderEffect> effects) {
+            StringBuilder sb = new StringBuilder("Fused(");
+            for (int i = 0; i < effects.size(); i++) {
+                sb.append(i > 0 ? "+" : "").append(effects.get(i).getName());
+            }
+            return sb.append(")").toString();
+        }
+
+        @Override
+        protected TextureShaderProgram initShaderProgram() {
+            return mFusedShaderProgram;
         }
     }
 }
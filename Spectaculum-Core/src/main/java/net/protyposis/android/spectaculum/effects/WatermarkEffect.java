@@ -104,6 +104,7 @@ public class WatermarkEffect extends ShaderEffect {
         });
         addParameter(mAlignmentParameter);
 
+        deleteWatermarkTexture(); // of a previous initialization
         if(mWatermarkBitmap != null) {
             mWatermarkTexture = new Texture2D(mWatermarkBitmap);
             mShaderProgram.setWatermark(mWatermarkTexture);
@@ -112,15 +113,28 @@ public class WatermarkEffect extends ShaderEffect {
         return mShaderProgram;
     }
 
+    @Override
+    public void release() {
+        deleteWatermarkTexture();
+        super.release();
+    }
+
     public void setWatermark(Bitmap watermark) {
-        // TODO clear previous texture
         mWatermarkBitmap = watermark;
         if(isInitialized()) {
+            deleteWatermarkTexture();
             mWatermarkTexture = new Texture2D(watermark);
             mShaderProgram.setWatermark(mWatermarkTexture);
         }
     }
 
+    private void deleteWatermarkTexture() {
+        if(mWatermarkTexture != null) {
+            mWatermarkTexture.delete();
+            mWatermarkTexture = null;
+        }
+    }
+
     public void setScale(float scale) {
         if(isInitialized()) {
             mScaleParameter.setValue(scale);
@@ -154,4 +168,9 @@ public class WatermarkEffect extends ShaderEffect {
             mAlignment = alignment;
         }
     }
+
+    @Override
+    public boolean isFusable() {
+        return true;
+    }
 }
@@ -0,0 +1,34 @@
+/*
+ * Copyright 2016 Mario Guggenberger <mg@protyposis.net>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.protyposis.android.spectaculum.effects;
+
+import net.protyposis.android.spectaculum.gles.Framebuffer;
+
+/**
+ * An effect that only writes to its target framebuffer and never reads the target's texture
+ * or uses it as a scratch buffer. Such an effect can render directly to the screen framebuffer
+ * (see {@link Framebuffer#createScreenFramebuffer(int, int)}), which has no texture, and saves
+ * the renderer a pass that copies the effect output to the screen.
+ */
+public interface WriteOnlyTargetEffect extends Effect {
+
+    /**
+     * Tells if the effect currently only writes to its target. Must be called on the GL thread
+     * after the effect has been initialized.
+     */
+    boolean isTargetWriteOnly();
+}
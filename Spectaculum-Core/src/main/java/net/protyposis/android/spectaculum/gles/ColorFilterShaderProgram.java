@@ -34,6 +34,6 @@ public class ColorFilterShaderProgram extends TextureShaderProgram {
 
     public void setColor(float r, float g, float b, float a) {
         use();
-        GLES20.glUniform4f(mColorHandle, r, g, b, a);
+        GLState.getCurrent().uniform4f(mColorHandle, r, g, b, a);
     }
 }
@@ -92,6 +92,9 @@ public class ColoredRectangle extends Shape {
             return;
         }
 
+        // client-side vertex arrays cannot be used while the quad is bound
+        QuadVertexBuffer.getCurrent().unbind();
+
         // write vertex data
         mVertices.position(sPositionOffset);
         GLES20.glVertexAttribPointer(mShaderProgram.mPositionHandle, sPositionDataSize,
@@ -105,7 +108,7 @@ public class ColoredRectangle extends Shape {
         GLES20.glEnableVertexAttribArray(mShaderProgram.mColorHandle);
 
         // write the MVP matrix
-        GLES20.glUniformMatrix4fv(mShaderProgram.mMVPMatrixHandle, 1, false, mvpMatrix, 0);
+        GLState.getCurrent().uniformMatrix4fv(mShaderProgram.mMVPMatrixHandle, 1, mvpMatrix, 0);
 
         // finally, render the rectangle
         GLES20.glDrawArrays(GLES20.GL_TRIANGLE_STRIP, 0, 4);
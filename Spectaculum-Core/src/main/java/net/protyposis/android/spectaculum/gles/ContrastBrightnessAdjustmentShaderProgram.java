@@ -38,11 +38,11 @@ public class ContrastBrightnessAdjustmentShaderProgram extends TextureShaderProg
 
     public void setContrast(float contrast) {
         use();
-        GLES20.glUniform1f(mContrastHandle, contrast);
+        GLState.getCurrent().uniform1f(mContrastHandle, contrast);
     }
 
     public void setBrightness(float brightness) {
         use();
-        GLES20.glUniform1f(mBrightnessHandle, brightness);
+        GLState.getCurrent().uniform1f(mBrightnessHandle, brightness);
     }
 }
@@ -0,0 +1,242 @@
+/*
+ * Copyright 2016 Mario Guggenberger <mg@protyposis.net>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.protyposis.android.spectaculum.gles;
+
+import android.annotation.TargetApi;
+import android.opengl.EGL14;
+import android.opengl.EGLContext;
+import android.opengl.GLES20;
+import android.opengl.GLES30;
+import android.os.Build;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+
+import net.protyposis.android.spectaculum.effects.Effect;
+
+/**
+ * Initializes effects on a background thread, so the GL thread can continue rendering while an
+ * effect compiles its shaders and uploads its textures.
+ *
+ * The loader thread has its own context that shares objects with the context of the GL thread.
+ * After an effect has been initialized, the loader waits until the GPU has completed all
+ * commands of the initialization, which is required before the objects can be used in the
+ * other context, and then hands the effect over to the GL thread.
+ *
+ * The programs that an effect creates are collected in a separate {@link ShaderProgramCache}
+ * and adopted by the cache of the GL thread on the handover, so a background initialization
+ * never changes programs that are in use by the GL thread. Programs of the GL thread that an
+ * effect releases during its initialization are handed back with the adoption and released on
+ * the GL thread. Texture allocations are accounted the
+ * same way (see {@link GpuMemoryTracker}). Effects must not lease framebuffers
+ * from the {@link FramebufferPool} during initialization, because framebuffer objects are not
+ * shared between contexts.
+ *
+ * A loader must be created, used and released on the GL thread while its context is current.
+ */
+@TargetApi(Build.VERSION_CODES.JELLY_BEAN_MR2)
+public class EffectLoader {
+
+    private static final String TAG = EffectLoader.class.getSimpleName();
+
+    /**
+     * Receives initialized effects on the GL thread.
+     */
+    public interface OnEffectLoadedListener {
+        /**
+         * Gets called when an effect has been initialized and can be used on the GL thread.
+         * @param effect the initialized effect
+         * @param width the width the effect has been initialized with
+         * @param height the height the effect has been initialized with
+         */
+        void onEffectLoaded(Effect effect, int width, int height);
+
+        /**
+         * Gets called when the initialization of an effect has failed.
+         * @param effect the failed effect
+         * @param e the cause of the failure
+         */
+        void onEffectLoadFailed(Effect effect, Throwable e);
+    }
+
+    private Executor mGLThreadExecutor;
+    private OnEffectLoadedListener mListener;
+    private HandlerThread mThread;
+    private Handler mHandler;
+    private GLContext mContext;
+    private List<Effect> mLoading;
+    private List<ShaderProgramCache> mProgramCaches;
+    private List<GpuMemoryTracker> mMemoryTrackers;
+    private boolean mReleased;
+
+    /**
+     * Creates a loader with a context that shares objects with the context that is current on
+     * the calling thread.
+     * @param glThreadExecutor an executor that runs tasks on the GL thread
+     * @param listener the listener that receives the initialized effects
+     */
+    public EffectLoader(Executor glThreadExecutor, OnEffectLoadedListener listener) {
+        mGLThreadExecutor = glThreadExecutor;
+        mListener = listener;
+        mLoading = new ArrayList<>();
+        mProgramCaches = new ArrayList<>();
+        mMemoryTrackers = new ArrayList<>();
+
+        final EGLContext sharedContext = EGL14.eglGetCurrentContext();
+        mThread = new HandlerThread(TAG);
+        mThread.start();
+        mHandler = new Handler(mThread.getLooper());
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                mContext = new GLContext(sharedContext);
+                mContext.makeCurrent();
+            }
+        });
+    }
+
+    /**
+     * Starts the initialization of an effect in the background. The listener is called on the
+     * GL thread when the effect is ready. Loading an effect that is already loading has no effect.
+     */
+    public void load(final Effect effect, final int width, final int height) {
+        if (mLoading.contains(effect)) {
+            return;
+        }
+        mLoading.add(effect);
+
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                long startTime = System.currentTimeMillis();
+                final ShaderProgramCache programCache = new ShaderProgramCache();
+                programCache.deferForeignReleases();
+                final GpuMemoryTracker memoryTracker = new GpuMemoryTracker();
+                synchronized (mProgramCaches) {
+                    mProgramCaches.add(programCache);
+                    mMemoryTrackers.add(memoryTracker);
+                }
+                ShaderProgramCache.setCurrent(programCache);
+                GpuMemoryTracker.setCurrent(memoryTracker);
+                // Programs of previous jobs may have been deleted and their handles reused since
+                GLState.getCurrent().reset();
+
+                Throwable error = null;
+                try {
+                    // The effect may have been initialized by a previous job in the meantime, e.g. as part of a stack
+                    if (!effect.isInitialized()) {
+                        effect.init(width, height);
+                    }
+                } catch (OutOfMemoryError | Exception e) {
+                    error = e;
+                }
+                ShaderProgramCache.setCurrent(null);
+                GpuMemoryTracker.setCurrent(null);
+                waitForCompletion();
+
+                Log.d(TAG, "initialized effect " + effect.getName() + " in "
+                        + (System.currentTimeMillis() - startTime) + "ms");
+
+                final Throwable result = error;
+                mGLThreadExecutor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (mReleased) {
+                            return; // the objects of the effect belong to a lost context
+                        }
+                        mLoading.remove(effect);
+                        synchronized (mProgramCaches) {
+                            mProgramCaches.remove(programCache);
+                            mMemoryTrackers.remove(memoryTracker);
+                        }
+                        ShaderProgramCache.getCurrent().adopt(programCache);
+                        GpuMemoryTracker.getCurrent().adopt(memoryTracker);
+                        if (result == null) {
+                            mListener.onEffectLoaded(effect, width, height);
+                        } else {
+                            mListener.onEffectLoadFailed(effect, result);
+                        }
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * Blocks the loader thread until the GPU has completed all submitted commands.
+     */
+    private void waitForCompletion() {
+        if (GLUtils.HAS_GLES30_CONTEXT) {
+            long fence = GLES30.glFenceSync(GLES30.GL_SYNC_GPU_COMMANDS_COMPLETE, 0);
+            GLES30.glClientWaitSync(fence, GLES30.GL_SYNC_FLUSH_COMMANDS_BIT, GLES30.GL_TIMEOUT_IGNORED);
+            GLES30.glDeleteSync(fence);
+        } else {
+            GLES20.glFinish();
+        }
+    }
+
+    /**
+     * Checks if an effect is currently being initialized in the background. An effect that is
+     * loading must not be used or initialized on the GL thread.
+     */
+    public boolean isLoading(Effect effect) {
+        return mLoading.contains(effect);
+    }
+
+    /**
+     * Cancels all pending initializations, waits for a running initialization to finish, and
+     * releases the loader's context. Effects that have not been handed over yet are dropped and
+     * must be loaded again.
+     */
+    public void release() {
+        mReleased = true;
+        mLoading.clear();
+        mHandler.removeCallbacksAndMessages(null);
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                if (mContext != null) {
+                    mContext.release();
+                    mContext = null;
+                }
+            }
+        });
+        mThread.quitSafely();
+        try {
+            mThread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        // Effects that have been initialized but not handed over still reference their programs
+        // and textures, which must not be deleted in the context that follows
+        synchronized (mProgramCaches) {
+            for (ShaderProgramCache programCache : mProgramCaches) {
+                programCache.reset();
+            }
+            mProgramCaches.clear();
+            for (GpuMemoryTracker memoryTracker : mMemoryTrackers) {
+                memoryTracker.reset();
+            }
+            mMemoryTrackers.clear();
+        }
+    }
+}
@@ -30,6 +30,9 @@ public class ExternalSurfaceTexture extends Texture implements SurfaceTexture.On
     private SurfaceTexture mSurfaceTexture;
     private SurfaceTexture.OnFrameAvailableListener mOnFrameAvailableListener;
     private boolean mFrameAvailable;
+    private volatile long mFrameAvailableTime;
+    private volatile int mFrameAvailableCount;
+    private boolean mDeleted;
 
     public ExternalSurfaceTexture() {
         super();
@@ -38,7 +41,7 @@ public class ExternalSurfaceTexture extends Texture implements SurfaceTexture.On
         GLES20.glGenTextures(1, textures, 0);
 
         mTexture = textures[0];
-        GLES20.glBindTexture(GLES11Ext.GL_TEXTURE_EXTERNAL_OES, mTexture);
+        GLState.getCurrent().bindTexture(GLES11Ext.GL_TEXTURE_EXTERNAL_OES, mTexture);
         GLUtils.checkError("glBindTexture");
 
         GLES20.glTexParameteri(GLES11Ext.GL_TEXTURE_EXTERNAL_OES, GLES20.GL_TEXTURE_MIN_FILTER, GLES20.GL_NEAREST);
@@ -53,10 +56,18 @@ public class ExternalSurfaceTexture extends Texture implements SurfaceTexture.On
         mSurfaceTexture.setOnFrameAvailableListener(this);
     }
 
+    /**
+     * Releases the surface texture and deletes the texture. Deleting it again has no effect.
+     */
     @Override
     public void delete() {
+        if (mDeleted) {
+            return;
+        }
         mSurfaceTexture.release();
         GLES20.glDeleteTextures(1, new int[] { mTexture }, 0);
+        GLState.getCurrent().onTextureDeleted(mTexture);
+        mDeleted = true;
     }
 
     public SurfaceTexture getSurfaceTexture() {
@@ -83,12 +94,28 @@ public class ExternalSurfaceTexture extends Texture implements SurfaceTexture.On
     }
 
     private void notifyFrameAvailability() {
+        mFrameAvailableTime = System.nanoTime();
+        mFrameAvailableCount++; // only incremented on the single callback thread
         mFrameAvailable = true;
         if(mOnFrameAvailableListener != null) {
             mOnFrameAvailableListener.onFrameAvailable(mSurfaceTexture);
         }
     }
 
+    /**
+     * Gets the {@link System#nanoTime()} at which the latest frame has become available.
+     */
+    public long getFrameAvailableTime() {
+        return mFrameAvailableTime;
+    }
+
+    /**
+     * Gets the number of frames that have become available since the texture has been created.
+     */
+    public int getFrameAvailableCount() {
+        return mFrameAvailableCount;
+    }
+
     public boolean isTextureUpdateAvailable() {
         return mFrameAvailable;
     }
@@ -96,6 +123,8 @@ public class ExternalSurfaceTexture extends Texture implements SurfaceTexture.On
     public void updateTexture() {
         mFrameAvailable = false;
         mSurfaceTexture.updateTexImage();
+        // The update binds the texture to the active texture unit
+        GLState.getCurrent().invalidate();
         mSurfaceTexture.getTransformMatrix(mTransformMatrix);
     }
 }
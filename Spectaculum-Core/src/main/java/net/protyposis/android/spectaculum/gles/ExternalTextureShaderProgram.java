@@ -0,0 +1,106 @@
+/*
+ * Copyright 2016 Mario Guggenberger <mg@protyposis.net>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.protyposis.android.spectaculum.gles;
+
+import android.opengl.GLES11Ext;
+import android.opengl.GLES20;
+import android.opengl.Matrix;
+
+import java.util.regex.Pattern;
+
+/**
+ * A variant of a texture shader program that reads its input directly from an
+ * {@link ExternalSurfaceTexture} instead of a 2D texture, which saves copying the external
+ * texture into a 2D texture first.
+ *
+ * The variant is generated from the fragment shader of the original program by replacing the
+ * {@code sampler2D s_Texture} with a {@code samplerExternalOES} and routing all input lookups
+ * through the transform matrix of the surface texture. The texture coordinates therefore stay in
+ * image space, so effects that compute positions from them (e.g. flipping or watermarking) produce
+ * the same result as on a copied input texture. The uniform values are mirrored from the original
+ * program, which stays their owner.
+ */
+public class ExternalTextureShaderProgram extends TextureShaderProgram {
+
+    private static final Pattern SAMPLER_DECLARATION_PATTERN = Pattern.compile("uniform\\s+(\\w+\\s+)?sampler2D\\s+s_Texture\\s*;");
+    private static final Pattern TEXTURE_LOOKUP_PATTERN = Pattern.compile("texture2D\\s*\\(\\s*s_Texture\\s*,");
+
+    private int mExtSTMatrixHandle;
+    private float[] mIdentityMatrix;
+    private UniformMirror mUniformMirror;
+    private TextureShaderProgram mSourceProgram;
+
+    public ExternalTextureShaderProgram(TextureShaderProgram program) {
+        super("external", program.getVertexShaderCode(),
+                "external", generateFragmentShaderCode(program.getFragmentShaderCode()));
+
+        mExtSTMatrixHandle = GLES20.glGetUniformLocation(mProgramHandle, "u_ExtSTMatrix");
+        GLUtils.checkError("glGetUniformLocation u_ExtSTMatrix");
+
+        mIdentityMatrix = new float[16];
+        Matrix.setIdentityM(mIdentityMatrix, 0);
+
+        mUniformMirror = program.createUniformMirror(mProgramHandle, "");
+        mSourceProgram = program;
+    }
+
+    /**
+     * Checks if an external variant can be generated from the program.
+     */
+    public static boolean canConvert(TextureShaderProgram program) {
+        String code = program.getFragmentShaderCode();
+        if (code.contains("#version") || !SAMPLER_DECLARATION_PATTERN.matcher(code).find()) {
+            return false;
+        }
+        // All other accesses to the sampler must be texture lookups
+        code = SAMPLER_DECLARATION_PATTERN.matcher(code).replaceAll("");
+        code = TEXTURE_LOOKUP_PATTERN.matcher(code).replaceAll("");
+        return !code.matches("(?s).*\\bs_Texture\\b.*");
+    }
+
+    private static String generateFragmentShaderCode(String code) {
+        code = TEXTURE_LOOKUP_PATTERN.matcher(code).replaceAll("ext_texture2D(");
+        code = SAMPLER_DECLARATION_PATTERN.matcher(code).replaceFirst(
+                "uniform samplerExternalOES s_Texture;\n" +
+                "uniform mat4 u_ExtSTMatrix;\n" +
+                "vec4 ext_texture2D(vec2 uv) {\n" +
+                "    return texture2D(s_Texture, (u_ExtSTMatrix * vec4(uv, 0.0, 1.0)).xy);\n" +
+                "}\n");
+        return "#extension GL_OES_EGL_image_external : require\n" + code;
+    }
+
+    @Override
+    public void use() {
+        super.use();
+        mUniformMirror.mirror();
+    }
+
+    public void setTexture(ExternalSurfaceTexture texture) {
+        GLState state = GLState.getCurrent();
+        state.activeTexture(GLES20.GL_TEXTURE0);
+        state.bindTexture(GLES11Ext.GL_TEXTURE_EXTERNAL_OES, texture.getHandle());
+        state.uniform1i(mTextureHandle, 0); // bind texture unit 0 to the uniform
+        state.uniformMatrix4fv(mSTMatrixHandle, 1, mIdentityMatrix, 0);
+        state.uniformMatrix4fv(mExtSTMatrixHandle, 1, texture.getTransformMatrix(), 0);
+        bindAdditionalTextures();
+    }
+
+    @Override
+    public void bindAdditionalTextures() {
+        mSourceProgram.bindAdditionalTextures();
+    }
+}
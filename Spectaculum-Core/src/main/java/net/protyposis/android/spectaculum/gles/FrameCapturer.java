@@ -0,0 +1,397 @@
+/*
+ * Copyright 2016 Mario Guggenberger <mg@protyposis.net>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.protyposis.android.spectaculum.gles;
+
+import android.annotation.TargetApi;
+import android.graphics.Bitmap;
+import android.opengl.GLES20;
+import android.opengl.GLES30;
+import android.os.Build;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.util.Log;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+
+/**
+ * Reads frames back from the GPU without stalling the GL thread.
+ *
+ * Frames are handed over as framebuffers whose content is already upside down, so the bottom-up
+ * rows returned by glReadPixels come out upright without flipping them on the CPU. With a
+ * GLES 3 context, the pixels are read into one of a set of rotating pixel pack buffers, and a
+ * fence is placed behind the read. The buffer is mapped as soon as its fence has signaled,
+ * which is usually a frame or two later, and the mapped pixels are copied into a pooled bitmap
+ * on a background thread. Buffers can only be mapped and unmapped on the GL thread, which is
+ * why the GL thread is polled through an executor until all reads have completed.
+ *
+ * Without a GLES 3 context, the pixels are read synchronously into a reused buffer.
+ *
+ * All methods except {@link #recycleBitmap(Bitmap)} must be called on the GL thread.
+ */
+@TargetApi(Build.VERSION_CODES.JELLY_BEAN_MR2)
+public class FrameCapturer {
+
+    private static final String TAG = FrameCapturer.class.getSimpleName();
+
+    private static final int BUFFER_COUNT = 3;
+    private static final long POLL_INTERVAL_MS = 5;
+
+    private static final int STATE_FREE = 0;
+    private static final int STATE_PENDING = 1; // read issued, waiting for the fence
+    private static final int STATE_MAPPED = 2; // mapped, copy on the background thread in progress
+
+    private static HandlerThread sCopyThread;
+    private static Handler sCopyHandler;
+
+    private static class Slot {
+        private int mBuffer;
+        private int mState;
+        private long mFence;
+        private int mWidth;
+        private int mHeight;
+        private GLRenderer.OnFrameCapturedCallback mCallback;
+        private long mSequenceNumber;
+        private volatile boolean mCopied;
+    }
+
+    private Executor mGLThreadExecutor;
+    private Slot[] mSlots;
+    private int mBufferSize;
+    private boolean mPollScheduled;
+    private long mSequenceNumber;
+    private ByteBuffer mSyncBuffer;
+    private final List<Bitmap> mBitmapPool = new ArrayList<>();
+
+    private final Runnable mPollRunnable = new Runnable() {
+        @Override
+        public void run() {
+            mPollScheduled = false;
+            poll();
+        }
+    };
+
+    private final Runnable mSchedulePollRunnable = new Runnable() {
+        @Override
+        public void run() {
+            mGLThreadExecutor.execute(mPollRunnable);
+        }
+    };
+
+    /**
+     * Creates a frame capturer.
+     * @param glThreadExecutor an executor that runs tasks on the GL thread, used to poll pending
+     *                         reads when no frames are rendered, or null to only poll when
+     *                         {@link #poll()} is called
+     */
+    public FrameCapturer(Executor glThreadExecutor) {
+        mGLThreadExecutor = glThreadExecutor;
+        mSlots = new Slot[BUFFER_COUNT];
+        for (int i = 0; i < mSlots.length; i++) {
+            mSlots[i] = new Slot();
+        }
+
+        synchronized (FrameCapturer.class) {
+            if (sCopyThread == null) {
+                sCopyThread = new HandlerThread(TAG);
+                sCopyThread.setDaemon(true);
+                sCopyThread.start();
+                sCopyHandler = new Handler(sCopyThread.getLooper());
+            }
+        }
+    }
+
+    /**
+     * Starts the readback of a framebuffer whose content is vertically flipped. The callback
+     * is called on a background thread once the pixels are available, or directly on the GL
+     * thread without a GLES 3 context. Frames are always delivered in the order of capture; when
+     * all pixel buffers are busy, the call blocks until the oldest read has been delivered.
+     * @param source an 8 bit RGBA framebuffer, can be reused for rendering right after the call
+     * @param callback the callback that receives the captured frame
+     */
+    public void capture(Framebuffer source, GLRenderer.OnFrameCapturedCallback callback) {
+        int width = source.getWidth();
+        int height = source.getHeight();
+
+        Slot slot = GLUtils.HAS_GLES30_CONTEXT ? obtainSlot(width, height) : null;
+        if (slot == null) {
+            // Synchronous read without pixel pack buffers
+            int size = width * height * 4;
+            if (mSyncBuffer == null || mSyncBuffer.capacity() < size) {
+                mSyncBuffer = ByteBuffer.allocateDirect(size).order(ByteOrder.LITTLE_ENDIAN);
+            }
+            mSyncBuffer.rewind();
+            source.bind(false);
+            GLES20.glReadPixels(0, 0, width, height, GLES20.GL_RGBA, GLES20.GL_UNSIGNED_BYTE, mSyncBuffer);
+            GLUtils.checkError("glReadPixels");
+            mSyncBuffer.rewind();
+            Bitmap bitmap = obtainBitmap(width, height);
+            bitmap.copyPixelsFromBuffer(mSyncBuffer);
+            callback.onFrameCaptured(bitmap);
+            return;
+        }
+
+        source.bind(false);
+        GLES20.glBindBuffer(GLES30.GL_PIXEL_PACK_BUFFER, slot.mBuffer);
+        GLES30.glReadPixels(0, 0, width, height, GLES20.GL_RGBA, GLES20.GL_UNSIGNED_BYTE, 0);
+        GLES20.glBindBuffer(GLES30.GL_PIXEL_PACK_BUFFER, 0);
+        slot.mFence = GLES30.glFenceSync(GLES30.GL_SYNC_GPU_COMMANDS_COMPLETE, 0);
+        GLES20.glFlush(); // make sure the fence gets submitted, else it may never signal
+        GLUtils.checkError("FrameCapturer.capture");
+
+        slot.mState = STATE_PENDING;
+        slot.mWidth = width;
+        slot.mHeight = height;
+        slot.mCallback = callback;
+        slot.mSequenceNumber = mSequenceNumber++;
+        slot.mCopied = false;
+
+        schedulePoll();
+    }
+
+    private Slot obtainSlot(int width, int height) {
+        int size = width * height * 4;
+        if (size > mBufferSize) {
+            // Buffers can only be reallocated when none of them is in use
+            finish();
+            deleteBuffers();
+            int[] buffers = new int[mSlots.length];
+            GLES20.glGenBuffers(buffers.length, buffers, 0);
+            for (int i = 0; i < mSlots.length; i++) {
+                mSlots[i].mBuffer = buffers[i];
+                GLES20.glBindBuffer(GLES30.GL_PIXEL_PACK_BUFFER, buffers[i]);
+                GLES20.glBufferData(GLES30.GL_PIXEL_PACK_BUFFER, size, null, GLES30.GL_STREAM_READ);
+            }
+            GLES20.glBindBuffer(GLES30.GL_PIXEL_PACK_BUFFER, 0);
+            GLUtils.checkError("FrameCapturer buffer allocation");
+            mBufferSize = size;
+        }
+
+        Slot slot = getFreeSlot();
+        if (slot != null) {
+            return slot;
+        }
+
+        /* A synchronous read would deliver the frame ahead of the reads in flight, so wait for
+         * the oldest read instead, which gets delivered first because reads are mapped and
+         * copied in the order of capture. */
+        Log.d(TAG, "all pixel buffers busy, waiting for the oldest read");
+        boolean interrupted = false;
+        while (true) {
+            poll();
+            slot = getFreeSlot();
+            if (slot != null) {
+                break;
+            }
+            try {
+                Thread.sleep(1);
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+        return slot;
+    }
+
+    private Slot getFreeSlot() {
+        for (Slot slot : mSlots) {
+            if (slot.mState == STATE_FREE) {
+                return slot;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Maps the buffers of completed reads and unmaps the buffers of completed copies. Should be
+     * called once per frame; it is also scheduled automatically while reads are in flight.
+     */
+    public void poll() {
+        boolean pending = false;
+
+        for (Slot slot : mSlots) {
+            if (slot.mState == STATE_MAPPED && slot.mCopied) {
+                GLES20.glBindBuffer(GLES30.GL_PIXEL_PACK_BUFFER, slot.mBuffer);
+                GLES30.glUnmapBuffer(GLES30.GL_PIXEL_PACK_BUFFER);
+                GLES20.glBindBuffer(GLES30.GL_PIXEL_PACK_BUFFER, 0);
+                slot.mCallback = null;
+                slot.mState = STATE_FREE;
+            } else if (slot.mState == STATE_MAPPED) {
+                pending = true;
+            }
+        }
+
+        // Map the reads in the order of capture, so the frames are delivered in order. Fences
+        // signal in order, so the first unsignaled fence means that all later reads are pending too.
+        Slot slot;
+        while ((slot = getOldestPendingSlot()) != null) {
+            int status = GLES30.glClientWaitSync(slot.mFence, 0, 0);
+            if (status == GLES30.GL_TIMEOUT_EXPIRED) {
+                pending = true;
+                break;
+            }
+            map(slot);
+            pending = true;
+        }
+
+        if (pending) {
+            schedulePoll();
+        }
+    }
+
+    private Slot getOldestPendingSlot() {
+        Slot oldest = null;
+        for (Slot slot : mSlots) {
+            if (slot.mState == STATE_PENDING && (oldest == null || slot.mSequenceNumber < oldest.mSequenceNumber)) {
+                oldest = slot;
+            }
+        }
+        return oldest;
+    }
+
+    private void map(final Slot slot) {
+        GLES30.glDeleteSync(slot.mFence);
+        slot.mFence = 0;
+
+        GLES20.glBindBuffer(GLES30.GL_PIXEL_PACK_BUFFER, slot.mBuffer);
+        final ByteBuffer pixels = (ByteBuffer) GLES30.glMapBufferRange(GLES30.GL_PIXEL_PACK_BUFFER,
+                0, slot.mWidth * slot.mHeight * 4, GLES30.GL_MAP_READ_BIT);
+        GLES20.glBindBuffer(GLES30.GL_PIXEL_PACK_BUFFER, 0);
+        GLUtils.checkError("glMapBufferRange");
+
+        slot.mState = STATE_MAPPED;
+        sCopyHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                Bitmap bitmap = obtainBitmap(slot.mWidth, slot.mHeight);
+                pixels.order(ByteOrder.LITTLE_ENDIAN).rewind();
+                bitmap.copyPixelsFromBuffer(pixels);
+                GLRenderer.OnFrameCapturedCallback callback = slot.mCallback;
+                slot.mCopied = true;
+                if (mGLThreadExecutor != null) {
+                    mGLThreadExecutor.execute(mPollRunnable);
+                }
+                callback.onFrameCaptured(bitmap);
+            }
+        });
+    }
+
+    /**
+     * Checks if no reads are in flight.
+     */
+    public boolean isIdle() {
+        for (Slot slot : mSlots) {
+            if (slot.mState != STATE_FREE) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Blocks until all reads in flight have been delivered to their callbacks.
+     */
+    public void finish() {
+        while (true) {
+            poll();
+            if (isIdle()) {
+                return;
+            }
+            try {
+                Thread.sleep(1);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+
+    private void schedulePoll() {
+        if (mGLThreadExecutor != null && !mPollScheduled) {
+            mPollScheduled = true;
+            sCopyHandler.postDelayed(mSchedulePollRunnable, POLL_INTERVAL_MS);
+        }
+    }
+
+    private Bitmap obtainBitmap(int width, int height) {
+        synchronized (mBitmapPool) {
+            for (int i = 0; i < mBitmapPool.size(); i++) {
+                Bitmap bitmap = mBitmapPool.get(i);
+                if (bitmap.getWidth() == width && bitmap.getHeight() == height) {
+                    mBitmapPool.remove(i);
+                    return bitmap;
+                }
+            }
+        }
+        return Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+    }
+
+    /**
+     * Returns a captured bitmap that is not needed anymore, so it can be reused for a following
+     * capture. Can be called from any thread.
+     */
+    public void recycleBitmap(Bitmap bitmap) {
+        if (bitmap.isRecycled() || !bitmap.isMutable() || bitmap.getConfig() != Bitmap.Config.ARGB_8888) {
+            return;
+        }
+        synchronized (mBitmapPool) {
+            if (mBitmapPool.size() < BUFFER_COUNT && !mBitmapPool.contains(bitmap)) {
+                mBitmapPool.add(bitmap);
+            }
+        }
+    }
+
+    private void deleteBuffers() {
+        if (mBufferSize == 0) {
+            return;
+        }
+        int[] buffers = new int[mSlots.length];
+        for (int i = 0; i < mSlots.length; i++) {
+            buffers[i] = mSlots[i].mBuffer;
+            mSlots[i].mBuffer = 0;
+        }
+        GLES20.glDeleteBuffers(buffers.length, buffers, 0);
+        mBufferSize = 0;
+    }
+
+    /**
+     * Waits for all reads in flight and deletes the pixel pack buffers.
+     */
+    public void release() {
+        finish();
+        deleteBuffers();
+    }
+
+    /**
+     * Forgets all GL objects without deleting them. Must be called when the GL context has been
+     * lost. Reads whose fences have not signaled yet are dropped.
+     */
+    public void reset() {
+        for (Slot slot : mSlots) {
+            slot.mState = STATE_FREE;
+            slot.mFence = 0;
+            slot.mBuffer = 0;
+            slot.mCallback = null;
+        }
+        mBufferSize = 0;
+    }
+}
@@ -0,0 +1,165 @@
+/*
+ * Copyright 2016 Mario Guggenberger <mg@protyposis.net>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.protyposis.android.spectaculum.gles;
+
+import android.annotation.TargetApi;
+import android.opengl.EGL14;
+import android.opengl.EGLContext;
+import android.opengl.EGLDisplay;
+import android.opengl.EGLSurface;
+import android.opengl.GLES20;
+import android.os.Build;
+import android.util.Log;
+import android.view.Surface;
+
+/**
+ * Records rendered frames into a window surface, typically the input surface of a
+ * {@link android.media.MediaCodec} encoder, without reading them back to the CPU.
+ *
+ * The recorder has its own context that shares objects with the context of the renderer, because
+ * the config of the renderer's context is not necessarily suitable for encoder surfaces. Recording
+ * a frame briefly switches to the recorder's context on the renderer's thread, draws the frame
+ * texture into the window surface, posts it with its presentation timestamp, and switches back.
+ *
+ * A recorder must be created, used and released on the GL thread of the renderer while the
+ * renderer's context is current.
+ */
+@TargetApi(Build.VERSION_CODES.JELLY_BEAN_MR2)
+public class FrameRecorder {
+
+    private static final String TAG = FrameRecorder.class.getSimpleName();
+
+    private GLContext mContext;
+    private EGLSurface mSurface;
+    private int mWidth;
+    private int mHeight;
+
+    private TexturedRectangle mTexturedRectangle;
+    private QuadVertexBuffer mQuadVertexBuffer;
+    private GLState mGLState;
+    private TextureShaderProgram mShaderProgram;
+    private long mLastPresentationTimeNs;
+    private int mFrameCount;
+
+    private EGLDisplay mSavedDisplay;
+    private EGLContext mSavedContext;
+    private EGLSurface mSavedDrawSurface;
+    private EGLSurface mSavedReadSurface;
+
+    /**
+     * Creates a recorder that draws frames into a surface.
+     * @param surface the surface to draw into, e.g. from {@link android.media.MediaCodec#createInputSurface()}
+     * @param width the width of the surface
+     * @param height the height of the surface
+     */
+    public FrameRecorder(Surface surface, int width, int height) {
+        mWidth = width;
+        mHeight = height;
+        mLastPresentationTimeNs = -1;
+
+        saveCurrent();
+        mContext = new GLContext(mSavedContext);
+        mSurface = mContext.createWindowSurface(surface);
+
+        mContext.makeCurrent(mSurface);
+        mTexturedRectangle = new TexturedRectangle();
+        mTexturedRectangle.reset();
+        // The vertex array and GL state of the renderer's context do not apply to this context
+        mQuadVertexBuffer = new QuadVertexBuffer();
+        mGLState = new GLState();
+        mShaderProgram = new TextureShaderProgram();
+        restoreCurrent();
+
+        Log.d(TAG, "recording " + width + "x" + height);
+    }
+
+    private void saveCurrent() {
+        mSavedDisplay = EGL14.eglGetCurrentDisplay();
+        mSavedContext = EGL14.eglGetCurrentContext();
+        mSavedDrawSurface = EGL14.eglGetCurrentSurface(EGL14.EGL_DRAW);
+        mSavedReadSurface = EGL14.eglGetCurrentSurface(EGL14.EGL_READ);
+    }
+
+    private void restoreCurrent() {
+        if (!EGL14.eglMakeCurrent(mSavedDisplay, mSavedDrawSurface, mSavedReadSurface, mSavedContext)) {
+            throw new RuntimeException("eglMakeCurrent failed: " + EGL14.eglGetError());
+        }
+    }
+
+    /**
+     * Records a frame. Frames whose timestamp is not later than the timestamp of the previously
+     * recorded frame are skipped, because encoders expect strictly increasing timestamps.
+     * @param frame the texture with the frame content, from the renderer's context
+     * @param presentationTimeNs the presentation timestamp of the frame in nanoseconds
+     * @return true if the frame has been recorded, false if it has been skipped
+     */
+    public boolean record(Texture2D frame, long presentationTimeNs) {
+        if (presentationTimeNs <= mLastPresentationTimeNs) {
+            return false;
+        }
+
+        // Submit the rendering of the frame before it is read from the other context
+        GLES20.glFlush();
+
+        saveCurrent();
+        mContext.makeCurrent(mSurface);
+        QuadVertexBuffer rendererQuadVertexBuffer = QuadVertexBuffer.getCurrent();
+        GLState rendererGLState = GLState.getCurrent();
+        QuadVertexBuffer.setCurrent(mQuadVertexBuffer);
+        GLState.setCurrent(mGLState);
+        // The program is shared with the renderer's context, which may have changed its uniforms
+        mGLState.reset();
+        GLState.getCurrent().viewport(0, 0, mWidth, mHeight);
+        GLState.getCurrent().bindFramebuffer(0);
+        mShaderProgram.use();
+        mShaderProgram.setTexture(frame);
+        mTexturedRectangle.draw(mShaderProgram);
+        mContext.swapBuffers(mSurface, presentationTimeNs);
+        QuadVertexBuffer.setCurrent(rendererQuadVertexBuffer);
+        GLState.setCurrent(rendererGLState);
+        rendererGLState.invalidateUniforms(mShaderProgram.getHandle());
+        restoreCurrent();
+
+        mLastPresentationTimeNs = presentationTimeNs;
+        mFrameCount++;
+        return true;
+    }
+
+    /**
+     * Gets the number of frames that have been recorded.
+     */
+    public int getFrameCount() {
+        return mFrameCount;
+    }
+
+    /**
+     * Releases the recorder's context and window surface. The surface itself is not released
+     * and still belongs to the caller.
+     */
+    public void release() {
+        saveCurrent();
+        mContext.makeCurrent(mSurface);
+        mShaderProgram.deleteProgram();
+        mQuadVertexBuffer.delete();
+        mContext.releaseCurrent();
+        mContext.destroySurface(mSurface);
+        mContext.release();
+        restoreCurrent();
+
+        Log.d(TAG, "recorded " + mFrameCount + " frames");
+    }
+}
@@ -0,0 +1,339 @@
+/*
+ * Copyright 2016 Mario Guggenberger <mg@protyposis.net>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.protyposis.android.spectaculum.gles;
+
+/**
+ * Records frame timing statistics of a renderer into fixed-bucket histograms:
+ * <ul>
+ *     <li>the latency from the moment a source frame has become available until the frame that
+ *     shows it has been rendered,</li>
+ *     <li>the duration of rendering a frame on the GL thread, and</li>
+ *     <li>the interval between the starts of consecutive frames.</li>
+ * </ul>
+ * Additionally, it counts janky frames whose rendering has exceeded the frame budget, and
+ * source frames that have been dropped because a newer frame was already available when they
+ * should have been rendered.
+ *
+ * All memory is allocated upfront, so recording does not allocate and costs a few arithmetic
+ * operations and an uncontended lock per frame, which makes it cheap enough to be always on.
+ * The statistics are recorded on the GL thread and can be read from any thread through
+ * {@link #getSnapshot(Snapshot)}.
+ */
+public class FrameStats {
+
+    /**
+     * The default frame budget of a 60 Hz display in nanoseconds.
+     */
+    public static final long DEFAULT_FRAME_BUDGET_NS = 16666667;
+
+    /**
+     * The width of a histogram bucket in nanoseconds.
+     */
+    public static final long BUCKET_WIDTH_NS = 500000;
+
+    /**
+     * The number of histogram buckets. Values beyond the last bucket are counted in an
+     * additional overflow bucket, so the histograms have a range of 0 to 100 ms.
+     */
+    public static final int BUCKET_COUNT = 200;
+
+    /**
+     * A histogram of durations.
+     */
+    public static class Histogram {
+
+        private final int[] mBuckets = new int[BUCKET_COUNT + 1]; // + overflow bucket
+        private long mCount;
+        private long mSum;
+        private long mMax;
+
+        private void record(long durationNs) {
+            if (durationNs < 0) {
+                durationNs = 0;
+            }
+            int bucket = (int) Math.min(durationNs / BUCKET_WIDTH_NS, BUCKET_COUNT);
+            mBuckets[bucket]++;
+            mCount++;
+            mSum += durationNs;
+            if (durationNs > mMax) {
+                mMax = durationNs;
+            }
+        }
+
+        private void clear() {
+            for (int i = 0; i < mBuckets.length; i++) {
+                mBuckets[i] = 0;
+            }
+            mCount = 0;
+            mSum = 0;
+            mMax = 0;
+        }
+
+        private void copyTo(Histogram histogram) {
+            System.arraycopy(mBuckets, 0, histogram.mBuckets, 0, mBuckets.length);
+            histogram.mCount = mCount;
+            histogram.mSum = mSum;
+            histogram.mMax = mMax;
+        }
+
+        /**
+         * Gets the number of recorded values.
+         */
+        public long getCount() {
+            return mCount;
+        }
+
+        /**
+         * Gets the mean of the recorded values in nanoseconds, or 0 if there are no values.
+         */
+        public long getMean() {
+            return mCount == 0 ? 0 : mSum / mCount;
+        }
+
+        /**
+         * Gets the largest recorded value in nanoseconds.
+         */
+        public long getMax() {
+            return mMax;
+        }
+
+        /**
+         * Gets the number of recorded values in a bucket.
+         * @param bucket the index of the bucket, with {@link #BUCKET_COUNT} being the overflow bucket
+         */
+        public int getBucket(int bucket) {
+            return mBuckets[bucket];
+        }
+
+        /**
+         * Gets a percentile of the recorded values, with the precision of the bucket width.
+         * @param percentile the percentile between 0 and 100, e.g. 95 for the p95 value
+         * @return the upper bound of the bucket that contains the percentile in nanoseconds,
+         *         the maximum value if it is contained in the overflow bucket, or 0 if there
+         *         are no values
+         */
+        public long getPercentile(double percentile) {
+            if (mCount == 0) {
+                return 0;
+            }
+            long rank = (long) Math.ceil(percentile / 100 * mCount);
+            if (rank < 1) {
+                rank = 1;
+            }
+            long cumulativeCount = 0;
+            for (int i = 0; i < BUCKET_COUNT; i++) {
+                cumulativeCount += mBuckets[i];
+                if (cumulativeCount >= rank) {
+                    return Math.min((i + 1) * BUCKET_WIDTH_NS, mMax);
+                }
+            }
+            return mMax;
+        }
+    }
+
+    /**
+     * A consistent copy of the statistics at one point in time. A snapshot can be reused for
+     * multiple {@link #getSnapshot(Snapshot)} calls to avoid allocations.
+     */
+    public static class Snapshot {
+
+        private final Histogram mLatency = new Histogram();
+        private final Histogram mRenderDuration = new Histogram();
+        private final Histogram mInterval = new Histogram();
+        private long mFrameCount;
+        private long mJankCount;
+        private long mDroppedFrameCount;
+        private long mFrameBudget;
+
+        private void clear() {
+            mLatency.clear();
+            mRenderDuration.clear();
+            mInterval.clear();
+            mFrameCount = 0;
+            mJankCount = 0;
+            mDroppedFrameCount = 0;
+        }
+
+        private void copyTo(Snapshot snapshot) {
+            mLatency.copyTo(snapshot.mLatency);
+            mRenderDuration.copyTo(snapshot.mRenderDuration);
+            mInterval.copyTo(snapshot.mInterval);
+            snapshot.mFrameCount = mFrameCount;
+            snapshot.mJankCount = mJankCount;
+            snapshot.mDroppedFrameCount = mDroppedFrameCount;
+            snapshot.mFrameBudget = mFrameBudget;
+        }
+
+        /**
+         * Gets the histogram of the latencies from the availability of a source frame until the
+         * end of the rendering of the frame that shows it. The latency does not include the time
+         * until the rendered frame is composited onto the display.
+         */
+        public Histogram getLatency() {
+            return mLatency;
+        }
+
+        /**
+         * Gets the histogram of the frame rendering durations on the GL thread.
+         */
+        public Histogram getRenderDuration() {
+            return mRenderDuration;
+        }
+
+        /**
+         * Gets the histogram of the intervals between the starts of consecutive frames. The
+         * renderer only renders when requested, so the intervals follow the frame rate of the
+         * source and include pauses.
+         */
+        public Histogram getInterval() {
+            return mInterval;
+        }
+
+        /**
+         * Gets the number of rendered frames.
+         */
+        public long getFrameCount() {
+            return mFrameCount;
+        }
+
+        /**
+         * Gets the number of frames whose rendering has taken longer than the frame budget.
+         */
+        public long getJankCount() {
+            return mJankCount;
+        }
+
+        /**
+         * Gets the number of source frames that have been replaced by a newer frame before they
+         * could be rendered.
+         */
+        public long getDroppedFrameCount() {
+            return mDroppedFrameCount;
+        }
+
+        /**
+         * Gets the frame budget in nanoseconds that jank has been determined with.
+         */
+        public long getFrameBudget() {
+            return mFrameBudget;
+        }
+    }
+
+    private final Snapshot mStats; // guarded by this
+    private volatile long mFrameBudget;
+
+    /* Frame state, only accessed on the GL thread */
+    private long mFrameStartTime;
+    private long mPreviousFrameStartTime;
+    private long mFrameAvailableTime;
+    private int mDroppedFrames;
+
+    public FrameStats() {
+        mStats = new Snapshot();
+        mFrameBudget = DEFAULT_FRAME_BUDGET_NS;
+        mStats.mFrameBudget = mFrameBudget;
+    }
+
+    /**
+     * Sets the time that a frame can take to render without missing a display refresh, which is
+     * usually the refresh interval of the display.
+     * @param frameBudgetNs the frame budget in nanoseconds
+     */
+    public void setFrameBudget(long frameBudgetNs) {
+        if (frameBudgetNs <= 0) {
+            throw new IllegalArgumentException("invalid frame budget " + frameBudgetNs);
+        }
+        mFrameBudget = frameBudgetNs;
+    }
+
+    /**
+     * Gets called by the renderer at the start of a frame.
+     */
+    public void beginFrame() {
+        mFrameStartTime = System.nanoTime();
+        mFrameAvailableTime = 0;
+        mDroppedFrames = 0;
+    }
+
+    /**
+     * Gets the {@link System#nanoTime()} at which the current frame has started. Must be called
+     * on the GL thread.
+     */
+    public long getFrameStartTime() {
+        return mFrameStartTime;
+    }
+
+    /**
+     * Gets called by the renderer when it has consumed a new source frame for the current frame.
+     * @param frameAvailableTime the {@link System#nanoTime()} at which the source frame has become available
+     * @param droppedFrames the number of source frames that have become available since the
+     *                      previously consumed frame and have been skipped
+     */
+    public void frameConsumed(long frameAvailableTime, int droppedFrames) {
+        mFrameAvailableTime = frameAvailableTime;
+        mDroppedFrames = Math.max(droppedFrames, 0);
+    }
+
+    /**
+     * Gets called by the renderer at the end of a frame.
+     */
+    public void endFrame() {
+        long endTime = System.nanoTime();
+        long renderDuration = endTime - mFrameStartTime;
+        long frameBudget = mFrameBudget;
+
+        synchronized (this) {
+            mStats.mRenderDuration.record(renderDuration);
+            if (mPreviousFrameStartTime != 0) {
+                mStats.mInterval.record(mFrameStartTime - mPreviousFrameStartTime);
+            }
+            if (mFrameAvailableTime != 0) {
+                mStats.mLatency.record(endTime - mFrameAvailableTime);
+            }
+            mStats.mFrameCount++;
+            if (renderDuration > frameBudget) {
+                mStats.mJankCount++;
+            }
+            mStats.mDroppedFrameCount += mDroppedFrames;
+            mStats.mFrameBudget = frameBudget;
+        }
+
+        mPreviousFrameStartTime = mFrameStartTime;
+    }
+
+    /**
+     * Copies the current statistics into a snapshot. Can be called from any thread.
+     * @param snapshot the snapshot to copy the statistics into, or null to create a new snapshot
+     * @return the snapshot
+     */
+    public Snapshot getSnapshot(Snapshot snapshot) {
+        if (snapshot == null) {
+            snapshot = new Snapshot();
+        }
+        synchronized (this) {
+            mStats.copyTo(snapshot);
+        }
+        return snapshot;
+    }
+
+    /**
+     * Clears all statistics. Can be called from any thread.
+     */
+    public synchronized void reset() {
+        mStats.clear();
+    }
+}
@@ -25,8 +25,14 @@ public class Framebuffer {
 
     private int mFramebuffer;
     private Texture2D mTargetTexture;
+    private int mWidth;
+    private int mHeight;
 
     public Framebuffer(int width, int height) {
+        this(Texture2D.generateFloatTexture(width, height));
+    }
+
+    public Framebuffer(Texture2D targetTexture) {
         int[] framebuffer = new int[1];
         GLES20.glGenFramebuffers(1, framebuffer, 0);
         mFramebuffer = framebuffer[0];
@@ -36,17 +42,33 @@ public class Framebuffer {
          * http://stackoverflow.com/a/6435997
          * http://stackoverflow.com/a/6767452 (comments!)
          */
-        mTargetTexture = Texture2D.generateFloatTexture(width, height);
+        mTargetTexture = targetTexture;
+        mWidth = targetTexture.getWidth();
+        mHeight = targetTexture.getHeight();
 
-        GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, mFramebuffer);
+        GLState.getCurrent().bindFramebuffer(mFramebuffer);
         GLES20.glFramebufferTexture2D(GLES20.GL_FRAMEBUFFER, GLES20.GL_COLOR_ATTACHMENT0,
                 GLES20.GL_TEXTURE_2D, mTargetTexture.getHandle(), 0);
 
         checkFramebufferStatus();
     }
 
+    private Framebuffer(int framebuffer, int width, int height) {
+        mFramebuffer = framebuffer;
+        mWidth = width;
+        mHeight = height;
+    }
+
+    /**
+     * Creates a framebuffer that represents the default framebuffer of the current EGL surface,
+     * i.e. the screen. It does not have a texture attached, so it can only be rendered to.
+     */
+    public static Framebuffer createScreenFramebuffer(int width, int height) {
+        return new Framebuffer(0, width, height);
+    }
+
     public void bind(boolean clear) {
-        GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, mFramebuffer);
+        GLState.getCurrent().bindFramebuffer(mFramebuffer);
 
         if(clear) {
             // for performance on Android, clear after every bind: http://stackoverflow.com/a/11052366
@@ -58,12 +80,29 @@ public class Framebuffer {
         bind(true);
     }
 
+    /**
+     * Gets the texture attached to the framebuffer, or null if this is the screen framebuffer.
+     */
     public Texture2D getTexture() {
         return mTargetTexture;
     }
 
+    public int getWidth() {
+        return mWidth;
+    }
+
+    public int getHeight() {
+        return mHeight;
+    }
+
     public void delete() {
-        GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, mFramebuffer);
+        if(mTargetTexture == null) {
+            return; // the screen framebuffer is owned by the EGL surface
+        }
+        if(!mTargetTexture.isValid()) {
+            return; // already deleted, or gone with a previous context
+        }
+        GLState.getCurrent().bindFramebuffer(mFramebuffer);
         // Detach texture from framebuffer
         GLES20.glFramebufferTexture2D(GLES20.GL_FRAMEBUFFER, GLES20.GL_COLOR_ATTACHMENT0,
                 GLES20.GL_TEXTURE_2D, 0, 0);
@@ -71,6 +110,7 @@ public class Framebuffer {
         mTargetTexture.delete();
         // Delete framebuffer
         GLES20.glDeleteFramebuffers(1, new int[] { mFramebuffer }, 0);
+        GLState.getCurrent().onFramebufferDeleted(mFramebuffer);
     }
 
     private void checkFramebufferStatus() {
@@ -0,0 +1,147 @@
+/*
+ * Copyright 2016 Mario Guggenberger <mg@protyposis.net>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.protyposis.android.spectaculum.gles;
+
+import android.opengl.GLES20;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A pool of framebuffers that is shared by all effects of a GL context. Instead of allocating
+ * their intermediate framebuffers at initialization and keeping them forever, effects lease
+ * scratch framebuffers from the pool when they are applied and return them when they are done.
+ * The framebuffer memory therefore scales with the effect that needs the most framebuffers at
+ * the same time, and not with the sum of all framebuffers of all effects that have ever been
+ * initialized.
+ *
+ * Framebuffers are matched by width, height and the internal format of their texture.
+ *
+ * GL objects belong to the context they have been created in, and a context can only be current
+ * on one thread at a time, so there is one pool per thread that can be obtained with {@link #getCurrent()}.
+ */
+public class FramebufferPool {
+
+    private static final String TAG = FramebufferPool.class.getSimpleName();
+
+    private static final ThreadLocal<FramebufferPool> sCurrent = new ThreadLocal<FramebufferPool>() {
+        @Override
+        protected FramebufferPool initialValue() {
+            return new FramebufferPool();
+        }
+    };
+
+    /**
+     * Gets the framebuffer pool of the GL context that is current on the calling thread.
+     */
+    public static FramebufferPool getCurrent() {
+        return sCurrent.get();
+    }
+
+    private List<Framebuffer> mAvailable;
+    private List<Framebuffer> mLeased;
+
+    private FramebufferPool() {
+        mAvailable = new ArrayList<>();
+        mLeased = new ArrayList<>();
+    }
+
+    /**
+     * Leases a framebuffer with the default texture format of the render pipeline.
+     * @see Texture2D#generateFloatTexture(int, int)
+     */
+    public Framebuffer obtain(int width, int height) {
+        return obtain(width, height, Texture2D.getFloatTextureInternalFormat());
+    }
+
+    /**
+     * Leases a framebuffer with the requested dimensions and texture format. An available pooled
+     * framebuffer is reused if one matches, else a new one is created. The framebuffer must be
+     * returned with {@link #release(Framebuffer)} when it is not needed anymore.
+     * @see Texture2D#generateTexture(int, int, int)
+     */
+    public Framebuffer obtain(int width, int height, int internalFormat) {
+        for (int i = 0; i < mAvailable.size(); i++) {
+            Framebuffer framebuffer = mAvailable.get(i);
+            if (framebuffer.getWidth() == width && framebuffer.getHeight() == height
+                    && framebuffer.getTexture().getInternalFormat() == internalFormat) {
+                mAvailable.remove(i);
+                mLeased.add(framebuffer);
+                return framebuffer;
+            }
+        }
+
+        Framebuffer framebuffer = new Framebuffer(Texture2D.generateTexture(internalFormat, width, height));
+        mLeased.add(framebuffer);
+        Log.d(TAG, "framebuffer allocated " + width + "x" + height
+                + " (" + mLeased.size() + " leased, " + mAvailable.size() + " available)");
+        return framebuffer;
+    }
+
+    /**
+     * Returns a leased framebuffer to the pool. The framebuffer must not be used by the caller
+     * anymore after returning it.
+     */
+    public void release(Framebuffer framebuffer) {
+        if (!mLeased.remove(framebuffer)) {
+            Log.w(TAG, "released framebuffer does not belong to this pool");
+            return;
+        }
+
+        // Reset the texture to the state in which it was handed out
+        if (!framebuffer.getTexture().hasDefaultFilterMode()) {
+            framebuffer.getTexture().setFilterMode(GLES20.GL_NEAREST, GLES20.GL_NEAREST);
+        }
+
+        mAvailable.add(framebuffer);
+    }
+
+    /**
+     * Deletes all framebuffers that are currently not leased, e.g. after a resolution change when
+     * the pooled framebuffers of the previous resolution will not be needed anymore.
+     */
+    public void trim() {
+        for (Framebuffer framebuffer : mAvailable) {
+            framebuffer.delete();
+        }
+        mAvailable.clear();
+    }
+
+    /**
+     * Forgets all framebuffers without deleting them. Must be called when the GL context has been
+     * lost, because all GL objects are already gone with it and cannot be deleted anymore.
+     */
+    public void reset() {
+        mAvailable.clear();
+        mLeased.clear();
+    }
+
+    /**
+     * Gets the number of framebuffers that are currently leased.
+     */
+    public int getLeasedCount() {
+        return mLeased.size();
+    }
+
+    /**
+     * Gets the number of framebuffers that are available for leasing.
+     */
+    public int getAvailableCount() {
+        return mAvailable.size();
+    }
+}
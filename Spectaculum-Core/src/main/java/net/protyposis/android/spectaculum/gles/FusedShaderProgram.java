@@ -0,0 +1,244 @@
+/*
+ * Copyright 2016 Mario Guggenberger <mg@protyposis.net>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.protyposis.android.spectaculum.gles;
+
+import android.opengl.GLES20;
+
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * A shader program that fuses the fragment shaders of a chain of point-wise texture shader
+ * programs into a single fragment shader, so the whole chain can be rendered in a single pass
+ * instead of one pass and one intermediate framebuffer per program.
+ *
+ * Every stage shader is turned into a function that returns the color of the stage at a
+ * texture coordinate, and its input texture lookups are replaced by calls of the function of the
+ * preceding stage. Uniforms and functions of the stages are namespaced with a stage prefix.
+ *
+ * The stage programs stay the owners of their uniform values, which are mirrored into the fused
+ * program through a {@link UniformMirror}.
+ *
+ * Stage shaders must
+ * <ul>
+ *     <li>use the default texture vertex shader,</li>
+ *     <li>only read the input texture {@code s_Texture} through {@code texture2D(s_Texture, ...)},
+ *     and at most once, because every lookup evaluates all preceding stages,</li>
+ *     <li>write their result to {@code gl_FragColor} and not return early from {@code main}, and</li>
+ *     <li>declare their uniforms and functions at the top level, without preprocessor directives.</li>
+ * </ul>
+ * Texture units other than unit 0 are bound by the stages themselves, so at most one stage of a
+ * fused program can use additional samplers, see {@link #canAppend(List, TextureShaderProgram)}.
+ * Programs with other vertex shaders are rejected by {@link #canFuse(TextureShaderProgram)}.
+ */
+public class FusedShaderProgram extends TextureShaderProgram {
+
+    private static final String VERTEX_SHADER_NAME = "vs_texture.glsl";
+
+    private static final Pattern COMMENT_PATTERN = Pattern.compile("/\\*.*?\\*/|//[^\\n]*", Pattern.DOTALL);
+    private static final Pattern PRECISION_PATTERN = Pattern.compile("precision\\s+\\w+\\s+\\w+\\s*;");
+    private static final Pattern SHARED_DECLARATION_PATTERN = Pattern.compile(
+            "(uniform|varying)\\s+(\\w+\\s+)?\\w+\\s+(s_Texture|u_TextureSize|v_TextureCoord)\\s*;");
+    private static final Pattern UNIFORM_PATTERN = Pattern.compile(
+            "uniform\\s+(?:(?:lowp|mediump|highp)\\s+)?\\w+\\s+([^;]+);");
+    private static final Pattern FUNCTION_PATTERN = Pattern.compile(
+            "(?m)^\\s*(?:void|float|int|bool|[bi]?vec[234]|mat[234])\\s+(\\w+)\\s*\\(");
+    private static final Pattern CONSTANT_PATTERN = Pattern.compile(
+            "(?m)^\\s*const\\s+(?:(?:lowp|mediump|highp)\\s+)?\\w+\\s+(\\w+)\\s*=");
+    private static final Pattern MAIN_PATTERN = Pattern.compile("void\\s+main\\s*\\(\\s*(void)?\\s*\\)\\s*\\{");
+    private static final Pattern TEXTURE_LOOKUP_PATTERN = Pattern.compile("texture2D\\s*\\(\\s*s_Texture\\s*,");
+
+    private UniformMirror mUniformMirror;
+    private List<TextureShaderProgram> mStages;
+
+    public FusedShaderProgram(List<TextureShaderProgram> stages) {
+        super(VERTEX_SHADER_NAME, loadShaderCode(VERTEX_SHADER_NAME),
+                "fused(" + stages.size() + ")", generateFragmentShaderCode(stages));
+        mStages = new ArrayList<>(stages);
+
+        mUniformMirror = new UniformMirror(mProgramHandle);
+        for (int i = 0; i < stages.size(); i++) {
+            mUniformMirror.addActiveUniforms(stages.get(i), getStagePrefix(i));
+        }
+    }
+
+    /**
+     * Checks if a program can be a stage of a fused program.
+     */
+    public static boolean canFuse(TextureShaderProgram stage) {
+        return stage.getVertexShaderCode().equals(loadShaderCode(VERTEX_SHADER_NAME));
+    }
+
+    /**
+     * Checks if a stage program can be appended to a list of stage programs that are going to be
+     * fused, which is not the case if both use additional samplers.
+     */
+    public static boolean canAppend(List<TextureShaderProgram> stages, TextureShaderProgram stage) {
+        if (hasAdditionalSamplers(stage)) {
+            for (TextureShaderProgram s : stages) {
+                if (hasAdditionalSamplers(s)) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    private static boolean hasAdditionalSamplers(TextureShaderProgram stage) {
+        int[] count = new int[1];
+        int[] size = new int[1];
+        int[] type = new int[1];
+        GLES20.glGetProgramiv(stage.getHandle(), GLES20.GL_ACTIVE_UNIFORMS, count, 0);
+        for (int i = 0; i < count[0]; i++) {
+            String name = GLES20.glGetActiveUniform(stage.getHandle(), i, size, 0, type, 0);
+            if (type[0] == GLES20.GL_SAMPLER_2D && !UniformMirror.isDrawUniform(name)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static String getStagePrefix(int stage) {
+        return "s" + stage + "_";
+    }
+
+    /**
+     * Gets the prefix of the names that are generated for a stage. It differs from the stage prefix
+     * so the generated names cannot collide with the namespaced names of the stage shader.
+     */
+    private static String getGeneratedPrefix(int stage) {
+        return "f" + stage + "_";
+    }
+
+    private static String generateFragmentShaderCode(List<TextureShaderProgram> stages) {
+        StringBuilder sb = new StringBuilder();
+        sb.append("precision highp float;\n\n")
+                .append("uniform sampler2D s_Texture;\n")
+                .append("uniform vec2 u_TextureSize;\n")
+                .append("varying vec2 v_TextureCoord;\n\n");
+
+        for (int i = 0; i < stages.size(); i++) {
+            sb.append(generateStageCode(stages.get(i).getFragmentShaderCode(), i)).append("\n\n");
+        }
+
+        sb.append("void main() {\n")
+                .append("    gl_FragColor = ").append(getGeneratedPrefix(stages.size() - 1)).append("main(v_TextureCoord);\n")
+                .append("}\n");
+
+        return sb.toString();
+    }
+
+    /**
+     * Transforms the code of a fragment shader into a function {@code vec4 fX_main(vec2 fX_uv)}
+     * with all top level names prefixed by the stage prefix.
+     */
+    private static String generateStageCode(String code, int stage) {
+        String prefix = getStagePrefix(stage);
+        String generatedPrefix = getGeneratedPrefix(stage);
+
+        code = COMMENT_PATTERN.matcher(code).replaceAll("");
+        code = PRECISION_PATTERN.matcher(code).replaceAll("");
+        code = SHARED_DECLARATION_PATTERN.matcher(code).replaceAll("");
+
+        // Collect the top level names and namespace them
+        Set<String> names = new LinkedHashSet<>();
+        Matcher m = UNIFORM_PATTERN.matcher(code);
+        while (m.find()) {
+            for (String name : m.group(1).split(",")) {
+                names.add(name.replaceAll("\\[.*\\]", "").trim());
+            }
+        }
+        m = FUNCTION_PATTERN.matcher(code);
+        while (m.find()) {
+            if (!m.group(1).equals("main")) {
+                names.add(m.group(1));
+            }
+        }
+        m = CONSTANT_PATTERN.matcher(code);
+        while (m.find()) {
+            names.add(m.group(1));
+        }
+        for (String name : names) {
+            code = code.replaceAll("\\b" + name + "\\b", prefix + name);
+        }
+
+        // Read the input from the preceding stage
+        if (stage > 0) {
+            code = TEXTURE_LOOKUP_PATTERN.matcher(code).replaceAll(getGeneratedPrefix(stage - 1) + "main(");
+            if (code.matches("(?s).*\\bs_Texture\\b.*")) {
+                throw new IllegalArgumentException("stage " + stage + " accesses s_Texture other than by texture2D lookups");
+            }
+        }
+
+        code = code.replaceAll("\\bv_TextureCoord\\b", generatedPrefix + "uv");
+        code = code.replaceAll("\\bgl_FragColor\\b", generatedPrefix + "color");
+
+        // Turn main into the stage function
+        m = MAIN_PATTERN.matcher(code);
+        if (!m.find()) {
+            throw new IllegalArgumentException("stage " + stage + " has no main function");
+        }
+        int bodyEnd = findClosingBrace(code, m.end());
+        if (bodyEnd == -1) {
+            throw new IllegalArgumentException("stage " + stage + " has an unterminated main function");
+        }
+
+        return code.substring(0, m.start()).trim() + "\n\n"
+                + "vec4 " + generatedPrefix + "main(vec2 " + generatedPrefix + "uv) {\n"
+                + "    vec4 " + generatedPrefix + "color;\n"
+                + code.substring(m.end(), bodyEnd) + "\n"
+                + "    return " + generatedPrefix + "color;\n"
+                + "}" + code.substring(bodyEnd + 1);
+    }
+
+    private static int findClosingBrace(String code, int start) {
+        int depth = 1;
+        for (int i = start; i < code.length(); i++) {
+            char c = code.charAt(i);
+            if (c == '{') {
+                depth++;
+            } else if (c == '}' && --depth == 0) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    @Override
+    public void use() {
+        super.use();
+        mUniformMirror.mirror();
+    }
+
+    @Override
+    public void bindAdditionalTextures() {
+        // The stages bind their samplers to the same units as in their own programs
+        for (int i = 0; i < mStages.size(); i++) {
+            mStages.get(i).bindAdditionalTextures();
+        }
+    }
+
+    @Override
+    public UniformMirror createUniformMirror(int targetProgramHandle, String targetPrefix) {
+        // Mirror directly from the stages, because the values of this program are only updated when it is used
+        return mUniformMirror.retarget(targetProgramHandle, targetPrefix);
+    }
+}
@@ -0,0 +1,231 @@
+/*
+ * Copyright 2016 Mario Guggenberger <mg@protyposis.net>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.protyposis.android.spectaculum.gles;
+
+import android.annotation.TargetApi;
+import android.opengl.EGL14;
+import android.opengl.EGLConfig;
+import android.opengl.EGLContext;
+import android.opengl.EGLDisplay;
+import android.opengl.EGLExt;
+import android.opengl.EGLSurface;
+import android.os.Build;
+import android.util.Log;
+import android.view.Surface;
+
+/**
+ * A GLES 2.0 EGL context with a small pbuffer surface that does not depend on a
+ * {@link android.opengl.GLSurfaceView} or any other window. Rendering happens into framebuffer
+ * objects, the pbuffer only serves to make the context current on platforms that do not
+ * support surfaceless contexts. Additional window surfaces, e.g. encoder input surfaces, can be
+ * created with {@link #createWindowSurface(Surface)}.
+ *
+ * A context can only be current on one thread at a time, and all GL calls must be issued on the
+ * thread on which it is current.
+ */
+@TargetApi(Build.VERSION_CODES.JELLY_BEAN_MR2)
+public class GLContext {
+
+    private static final String TAG = GLContext.class.getSimpleName();
+
+    // EGLExt.EGL_RECORDABLE_ANDROID, which is only available from API 26
+    private static final int EGL_RECORDABLE_ANDROID = 0x3142;
+
+    private EGLDisplay mDisplay;
+    private EGLConfig mConfig;
+    private EGLContext mContext;
+    private EGLSurface mPbufferSurface;
+
+    /**
+     * Creates a context that does not share objects with another context.
+     */
+    public GLContext() {
+        this(EGL14.EGL_NO_CONTEXT);
+    }
+
+    /**
+     * Creates a context that shares textures, buffers and programs with another context.
+     * @param sharedContext the context to share objects with, or null to not share objects
+     */
+    public GLContext(GLContext sharedContext) {
+        this(sharedContext != null ? sharedContext.mContext : EGL14.EGL_NO_CONTEXT);
+    }
+
+    /**
+     * Creates a context that shares textures, buffers and programs with a context that has been
+     * created elsewhere, e.g. the context of a {@link android.opengl.GLSurfaceView} that can be
+     * obtained on its GL thread through {@link EGL14#eglGetCurrentContext()}.
+     * @param sharedContext the context to share objects with, or EGL_NO_CONTEXT to not share objects
+     */
+    public GLContext(EGLContext sharedContext) {
+        mDisplay = EGL14.eglGetDisplay(EGL14.EGL_DEFAULT_DISPLAY);
+        if (mDisplay == EGL14.EGL_NO_DISPLAY) {
+            throw new RuntimeException("cannot get EGL display");
+        }
+        int[] version = new int[2];
+        if (!EGL14.eglInitialize(mDisplay, version, 0, version, 1)) {
+            throw new RuntimeException("cannot initialize EGL: " + EGL14.eglGetError());
+        }
+
+        // Prefer a config that can render into MediaCodec encoder surfaces
+        mConfig = chooseConfig(true);
+        if (mConfig == null) {
+            mConfig = chooseConfig(false);
+        }
+        if (mConfig == null) {
+            throw new RuntimeException("no matching EGL config: " + EGL14.eglGetError());
+        }
+
+        int[] contextAttributes = {
+                EGL14.EGL_CONTEXT_CLIENT_VERSION, 2,
+                EGL14.EGL_NONE
+        };
+        mContext = EGL14.eglCreateContext(mDisplay, mConfig, sharedContext, contextAttributes, 0);
+        checkEglError("eglCreateContext");
+        if (mContext == EGL14.EGL_NO_CONTEXT) {
+            throw new RuntimeException("cannot create EGL context");
+        }
+
+        int[] surfaceAttributes = {
+                EGL14.EGL_WIDTH, 1,
+                EGL14.EGL_HEIGHT, 1,
+                EGL14.EGL_NONE
+        };
+        mPbufferSurface = EGL14.eglCreatePbufferSurface(mDisplay, mConfig, surfaceAttributes, 0);
+        checkEglError("eglCreatePbufferSurface");
+
+        Log.d(TAG, "EGL " + version[0] + "." + version[1] + " context created");
+    }
+
+    private EGLConfig chooseConfig(boolean recordable) {
+        int[] configAttributes = {
+                EGL14.EGL_RED_SIZE, 8,
+                EGL14.EGL_GREEN_SIZE, 8,
+                EGL14.EGL_BLUE_SIZE, 8,
+                EGL14.EGL_ALPHA_SIZE, 8,
+                EGL14.EGL_RENDERABLE_TYPE, EGL14.EGL_OPENGL_ES2_BIT,
+                EGL14.EGL_SURFACE_TYPE, EGL14.EGL_PBUFFER_BIT | EGL14.EGL_WINDOW_BIT,
+                recordable ? EGL_RECORDABLE_ANDROID : EGL14.EGL_NONE, 1,
+                EGL14.EGL_NONE
+        };
+        EGLConfig[] configs = new EGLConfig[1];
+        int[] configCount = new int[1];
+        if (!EGL14.eglChooseConfig(mDisplay, configAttributes, 0, configs, 0, 1, configCount, 0)
+                || configCount[0] == 0) {
+            return null;
+        }
+        return configs[0];
+    }
+
+    /**
+     * Makes the context current on the calling thread.
+     */
+    public void makeCurrent() {
+        makeCurrent(mPbufferSurface);
+    }
+
+    /**
+     * Makes the context current on the calling thread with a window surface as render target.
+     * @param surface a surface created by {@link #createWindowSurface(Surface)}
+     */
+    public void makeCurrent(EGLSurface surface) {
+        if (!EGL14.eglMakeCurrent(mDisplay, surface, surface, mContext)) {
+            throw new RuntimeException("eglMakeCurrent failed: " + EGL14.eglGetError());
+        }
+    }
+
+    /**
+     * Creates a window surface that renders into a surface, e.g. the input surface of a
+     * {@link android.media.MediaCodec} encoder.
+     */
+    public EGLSurface createWindowSurface(Surface surface) {
+        int[] surfaceAttributes = { EGL14.EGL_NONE };
+        EGLSurface eglSurface = EGL14.eglCreateWindowSurface(mDisplay, mConfig, surface, surfaceAttributes, 0);
+        checkEglError("eglCreateWindowSurface");
+        if (eglSurface == EGL14.EGL_NO_SURFACE) {
+            throw new RuntimeException("cannot create EGL window surface");
+        }
+        return eglSurface;
+    }
+
+    /**
+     * Posts the content of a window surface to its consumer.
+     * @param surface the window surface that is current
+     * @param presentationTimeNs the timestamp of the frame in nanoseconds, which is passed on to
+     *                           the consumer (e.g. an encoder), or -1 to not set a timestamp
+     */
+    public void swapBuffers(EGLSurface surface, long presentationTimeNs) {
+        if (presentationTimeNs >= 0) {
+            EGLExt.eglPresentationTimeANDROID(mDisplay, surface, presentationTimeNs);
+        }
+        if (!EGL14.eglSwapBuffers(mDisplay, surface)) {
+            throw new RuntimeException("eglSwapBuffers failed: " + EGL14.eglGetError());
+        }
+    }
+
+    /**
+     * Destroys a window surface created by {@link #createWindowSurface(Surface)}.
+     */
+    public void destroySurface(EGLSurface surface) {
+        EGL14.eglDestroySurface(mDisplay, surface);
+    }
+
+    /**
+     * Detaches the context from the calling thread, so it can be made current on another thread.
+     */
+    public void releaseCurrent() {
+        EGL14.eglMakeCurrent(mDisplay, EGL14.EGL_NO_SURFACE, EGL14.EGL_NO_SURFACE, EGL14.EGL_NO_CONTEXT);
+    }
+
+    /**
+     * Checks if the context is current on the calling thread.
+     */
+    public boolean isCurrent() {
+        return mContext != null && mContext.equals(EGL14.eglGetCurrentContext());
+    }
+
+    /**
+     * Destroys the context and its surface. All GL objects that are not shared with another
+     * context are deleted with it.
+     */
+    public void release() {
+        if (mDisplay == null) {
+            return;
+        }
+        boolean current = isCurrent();
+        if (current) {
+            releaseCurrent();
+        }
+        EGL14.eglDestroySurface(mDisplay, mPbufferSurface);
+        EGL14.eglDestroyContext(mDisplay, mContext);
+        if (current) {
+            // Only release the thread state if it belongs to this context, the thread may also drive other contexts
+            EGL14.eglReleaseThread();
+        }
+        mPbufferSurface = null;
+        mContext = null;
+        mConfig = null;
+        mDisplay = null;
+    }
+
+    private static void checkEglError(String operation) {
+        int error = EGL14.eglGetError();
+        if (error != EGL14.EGL_SUCCESS) {
+            throw new RuntimeException(operation + ": EGL error " + Integer.toHexString(error));
+        }
+    }
+}
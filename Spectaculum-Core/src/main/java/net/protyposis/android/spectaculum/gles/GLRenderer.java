@@ -16,20 +16,29 @@
 
 package net.protyposis.android.spectaculum.gles;
 
+import android.annotation.TargetApi;
 import android.graphics.Bitmap;
 import android.opengl.GLES20;
 import android.opengl.GLSurfaceView;
 import android.opengl.Matrix;
+import android.os.Build;
 import android.util.Log;
+import android.view.Surface;
 
 import java.util.ArrayList;
+import java.util.Iterator;
 import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import javax.microedition.khronos.egl.EGLConfig;
 import javax.microedition.khronos.opengles.GL10;
 
 import net.protyposis.android.spectaculum.effects.Effect;
 import net.protyposis.android.spectaculum.effects.EffectException;
+import net.protyposis.android.spectaculum.effects.ExternalSourceEffect;
+import net.protyposis.android.spectaculum.effects.ParameterAnimation;
+import net.protyposis.android.spectaculum.effects.WriteOnlyTargetEffect;
 
 /**
  * Created by Mario on 14.06.2014.
@@ -38,6 +47,16 @@ public class GLRenderer implements GLSurfaceView.Renderer {
 
     private static final String TAG = GLRenderer.class.getSimpleName();
 
+    /**
+     * The name under which the transfer of the external texture is timed by the {@link GpuTimer}.
+     */
+    public static final String PASS_INPUT = "input";
+
+    /**
+     * The name under which the geometry pass to the screen is timed by the {@link GpuTimer}.
+     */
+    public static final String PASS_SCREEN = "screen";
+
     public enum RenderRequest {
         DEFAULT,
         ALL,
@@ -45,6 +64,11 @@ public class GLRenderer implements GLSurfaceView.Renderer {
         GEOMETRY
     }
 
+    /* Bits of the pending render requests */
+    private static final int REQUEST_ALL = 1;
+    private static final int REQUEST_EFFECT = 1 << 1;
+    private static final int REQUEST_GEOMETRY = 1 << 2;
+
     /**
      * Callback interface for being notified when the ExternalSurfaceTexture is created, which
      * can be used to feed picture frames from the MediaCodec or camera preview. Note that
@@ -88,6 +112,18 @@ public class GLRenderer implements GLSurfaceView.Renderer {
         void onFrameCaptured(Bitmap bitmap);
     }
 
+    /**
+     * Callback interface for being notified when parameter animations start and end, e.g. to
+     * render continuously only while animations are running. Gets called on the GL thread.
+     */
+    public interface OnAnimatingChangedListener {
+        /**
+         * @param animating true if the first animation has been started, false if the last
+         *                  animation has ended or been canceled
+         */
+        void onAnimatingChanged(boolean animating);
+    }
+
     /**
      * The view matrix / camera position
      */
@@ -98,32 +134,77 @@ public class GLRenderer implements GLSurfaceView.Renderer {
      */
     private float[] mProjectionMatrix = new float[16];
 
+    /**
+     * The vertically flipped projection matrix for frame captures
+     */
+    private float[] mCaptureProjectionMatrix = new float[16];
+
     private int mWidth;
     private int mHeight;
+    // Set by the view on the UI thread and read on the GL thread to decide if the effect output can be presented directly
+    private volatile float mZoomLevel = 1.0f;
+    private volatile float mPanX;
+    private volatile float mPanY;
 
     private ExternalSurfaceTexture mExternalSurfaceTexture;
     private ReadExternalTextureShaderProgram mReadExternalTextureShaderProgram;
     private Framebuffer mFramebufferIn;
     private Framebuffer mFramebufferOut;
+    private boolean mFramebufferOutValid;
+    private Framebuffer mScreenFramebuffer;
     private TexturedRectangle mTexturedRectangle;
     private TextureShaderProgram mTextureToScreenShaderProgram;
 
-    private TextureShaderProgram mDefaultShaderProgram;
     private List<Effect> mEffects;
+    private List<Effect> mRecentEffects; // initialized effects, least recently used first
+    private long mMemoryBudget;
     private Effect mEffect;
+    private int mSelectingEffectIndex = -1;
+    private EffectLoader mEffectLoader;
     private RenderRequest mRenderRequest;
+    private final AtomicInteger mPendingRenderRequests = new AtomicInteger();
 
     private OnExternalSurfaceTextureCreatedListener mOnExternalSurfaceTextureCreatedListener;
     private EffectEventListener mEffectEventListener;
-    private FrameRateCalculator mFrameRateCalculator;
+    private FrameStats mFrameStats;
+    private int mConsumedFrameAvailableCount;
+    private FrameCapturer mFrameCapturer;
+    private List<OnFrameCapturedCallback> mCaptureCallbacks;
+    private FrameRecorder mFrameRecorder;
+    private Surface mRecordingSurface;
+    private int mRecordingWidth;
+    private int mRecordingHeight;
     private boolean mInitializeStuff;
+    private Executor mGLThreadExecutor;
+    private ResourceRestoreManager mResourceRestoreManager;
+    private List<ParameterAnimation> mAnimations;
+    private OnAnimatingChangedListener mOnAnimatingChangedListener;
+    private volatile boolean mExternalSurfaceTextureDetached;
 
     public GLRenderer() {
+        this(null);
+    }
+
+    /**
+     * Creates a renderer.
+     * @param glThreadExecutor an executor that runs tasks on the GL thread, used to complete
+     *                         asynchronous frame captures without rendering additional frames
+     *                         and to hand over effects that have been initialized in the background
+     */
+    public GLRenderer(Executor glThreadExecutor) {
         Log.d(TAG, "ctor");
 
+        mGLThreadExecutor = glThreadExecutor;
+
         mTexturedRectangle = new TexturedRectangle();
 
         mEffects = new ArrayList<>();
+        mRecentEffects = new ArrayList<>();
+        mResourceRestoreManager = new ResourceRestoreManager();
+        mFrameCapturer = new FrameCapturer(glThreadExecutor);
+        mCaptureCallbacks = new ArrayList<>();
+        mFrameStats = new FrameStats();
+        mAnimations = new ArrayList<>();
     }
 
     public void setOnExternalSurfaceTextureCreatedListener(OnExternalSurfaceTextureCreatedListener l) {
@@ -134,8 +215,71 @@ public class GLRenderer implements GLSurfaceView.Renderer {
         this.mEffectEventListener = l;
     }
 
-    public void setRenderRequest(RenderRequest renderRequest) {
-        mRenderRequest = renderRequest;
+    public void setOnAnimatingChangedListener(OnAnimatingChangedListener l) {
+        this.mOnAnimatingChangedListener = l;
+    }
+
+    /**
+     * Notifies the renderer that the users of the external surface texture have been detached
+     * from it because the output surface is going to be destroyed, e.g. when the app is paused.
+     * The texture survives in the preserved context and is announced again to the
+     * {@link OnExternalSurfaceTextureCreatedListener} when the output surface has been recreated,
+     * unless the context has been lost, in which case a new texture is created and announced.
+     * Can be called from any thread.
+     */
+    public void onExternalSurfaceTextureDetached() {
+        mExternalSurfaceTextureDetached = true;
+    }
+
+    /**
+     * Adds a render request to the pending requests, which are merged and consumed together by
+     * the next frame. A request therefore never replaces another pending request, e.g. a pending
+     * request for a new frame cannot be downgraded to a geometry render by a later pan gesture.
+     * Can be called from any thread and does not allocate.
+     * @param renderRequest the section of the pipeline that needs to be rendered
+     * @return true if no request has been pending before, which means that the caller needs to
+     *         trigger the rendering of a frame; false if the rendering has already been
+     *         triggered for an earlier request that has not been consumed yet
+     */
+    public boolean addRenderRequest(RenderRequest renderRequest) {
+        int request = toRequestBit(renderRequest);
+        while(true) {
+            int pending = mPendingRenderRequests.get();
+            if((pending | request) == pending) {
+                return false;
+            }
+            if(mPendingRenderRequests.compareAndSet(pending, pending | request)) {
+                return pending == 0;
+            }
+        }
+    }
+
+    private static int toRequestBit(RenderRequest renderRequest) {
+        switch(renderRequest) {
+            case ALL:
+                return REQUEST_ALL;
+            case EFFECT:
+                return REQUEST_EFFECT;
+            case GEOMETRY:
+                return REQUEST_GEOMETRY;
+            default:
+                return 0;
+        }
+    }
+
+    /**
+     * Merges pending requests into a request, keeping the request that renders the largest
+     * section of the pipeline.
+     */
+    private static RenderRequest mergeRenderRequests(RenderRequest renderRequest, int pending) {
+        if(renderRequest == RenderRequest.ALL || (pending & REQUEST_ALL) != 0) {
+            return RenderRequest.ALL;
+        } else if(renderRequest == RenderRequest.EFFECT || (pending & REQUEST_EFFECT) != 0) {
+            return RenderRequest.EFFECT;
+        } else if(renderRequest == RenderRequest.GEOMETRY || (pending & REQUEST_GEOMETRY) != 0) {
+            return RenderRequest.GEOMETRY;
+        }
+        return RenderRequest.DEFAULT;
     }
 
     @Override
@@ -158,18 +302,40 @@ public class GLRenderer implements GLSurfaceView.Renderer {
             mExternalSurfaceTexture.delete();
         }
 
+        /* The renderer is only called here when a new context has been created, i.e. on the first
+         * start or when the previous context has been lost, because the context is preserved
+         * while paused. All objects of a previous context are gone with it. */
+        mResourceRestoreManager.onContextCreated();
+        mFramebufferIn = null;
+        mFramebufferOut = null;
+        mFramebufferOutValid = false;
+        mFrameCapturer.reset();
+
+        // The effect loader shares objects with the previous context, so it needs to be recreated
+        if(mEffectLoader != null) {
+            mEffectLoader.release();
+            mEffectLoader = null;
+        }
+        if(mGLThreadExecutor != null && Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN_MR2) {
+            mEffectLoader = new EffectLoader(mGLThreadExecutor, mEffectLoadedListener);
+        }
+
         mExternalSurfaceTexture = new ExternalSurfaceTexture();
+        mConsumedFrameAvailableCount = 0;
+        mExternalSurfaceTextureDetached = false;
         mReadExternalTextureShaderProgram = new ReadExternalTextureShaderProgram();
 
-        mDefaultShaderProgram = new TextureShaderProgram();
-
         mTextureToScreenShaderProgram = new TextureShaderProgram();
 
         if(mOnExternalSurfaceTextureCreatedListener != null) {
             mOnExternalSurfaceTextureCreatedListener.onExternalSurfaceTextureCreated(mExternalSurfaceTexture);
         }
 
-        mFrameRateCalculator = new FrameRateCalculator(30);
+        if(mFrameRecorder != null) {
+            // The recorder shares objects with the previous context, so it needs to be recreated
+            mFrameRecorder.release();
+            mFrameRecorder = new FrameRecorder(mRecordingSurface, mRecordingWidth, mRecordingHeight);
+        }
 
         mInitializeStuff = true;
     }
@@ -180,21 +346,37 @@ public class GLRenderer implements GLSurfaceView.Renderer {
 
         // Initialize stuff in the following block only if the surface was just created or the resolution has changed
         if(mInitializeStuff || mWidth != width || mHeight != height) {
+            FramebufferPool framebufferPool = FramebufferPool.getCurrent();
+
             if(mFramebufferIn != null) {
-                mFramebufferIn.delete();
-                mFramebufferOut.delete();
+                framebufferPool.release(mFramebufferIn);
+                mFramebufferIn = null;
+            }
+            if(mFramebufferOut != null) {
+                framebufferPool.release(mFramebufferOut);
+                mFramebufferOut = null;
+                mFramebufferOutValid = false;
             }
 
-            mFramebufferIn = new Framebuffer(width, height);
-            mFramebufferOut = new Framebuffer(width, height);
-            mFramebufferOut.getTexture().setFilterMode(-1, GLES20.GL_LINEAR);
+            // Delete pooled framebuffers of the previous resolution
+            framebufferPool.trim();
+
+            /* The input framebuffer is only created when an effect cannot read the external texture
+             * directly, the output framebuffer only when the effect output cannot be presented directly. */
+            mScreenFramebuffer = Framebuffer.createScreenFramebuffer(width, height);
 
-            for (Effect effect : mEffects) {
-            /* After a surface change, if the resolution has changed, effects need to be
-             * reinitialized to update them to the new resolution. */
-                if (effect.isInitialized()) {
-                    Log.d(TAG, "reinitializing effect " + effect.getName());
-                    effect.init(width, height);
+            if (mResourceRestoreManager.isRestorePending()) {
+                /* Effects of a lost context are reinitialized on demand: the selected effect
+                 * when it is rendered, all others when they are selected again. */
+                mResourceRestoreManager.restoreEffects(mEffects);
+                mRecentEffects.clear();
+            } else {
+                for (Effect effect : mEffects) {
+                    // After a resolution change, effects need to be resized to the new resolution
+                    if (effect.isInitialized() && !isEffectLoading(effect)) {
+                        Log.d(TAG, "resizing effect " + effect.getName());
+                        effect.resize(width, height);
+                    }
                 }
             }
 
@@ -202,10 +384,23 @@ public class GLRenderer implements GLSurfaceView.Renderer {
         }
 
         // adjust the viewport to the surface size
-        GLES20.glViewport(0, 0, width, height);
+        GLState.getCurrent().viewport(0, 0, width, height);
         mWidth = width;
         mHeight = height;
 
+        if(mExternalSurfaceTextureDetached) {
+            // The surface has been recreated with a preserved context, so the input is still valid
+            mExternalSurfaceTextureDetached = false;
+            if(mOnExternalSurfaceTextureCreatedListener != null) {
+                mOnExternalSurfaceTextureCreatedListener.onExternalSurfaceTextureCreated(mExternalSurfaceTexture);
+            }
+        }
+
+        if(mSelectingEffectIndex != -1) {
+            // Restart a selection whose background initialization has been dropped with a lost context
+            selectEffect(mSelectingEffectIndex);
+        }
+
         setZoomLevel(1.0f);
 
         // fully re-render current scene to adjust to the change
@@ -218,42 +413,164 @@ public class GLRenderer implements GLSurfaceView.Renderer {
 
         // PREPARE
 
+        // Consume all requests that have been added since the last frame at once
+        mRenderRequest = mergeRenderRequests(mRenderRequest, mPendingRenderRequests.getAndSet(0));
         mTexturedRectangle.reset();
+        QuadVertexBuffer.getCurrent().invalidate();
+        GLState.getCurrent().invalidate();
+        GLValidator.getInstalled().beginFrame();
+        GpuTimer gpuTimer = GpuTimer.getCurrent();
+        gpuTimer.beginFrame();
+        mFrameStats.beginFrame();
+
 
+        // FETCH FRAME
 
-        // FETCH AND TRANSFER FRAME TO TEXTURE
         if(mRenderRequest == RenderRequest.ALL || mExternalSurfaceTexture.isTextureUpdateAvailable()) {
+            // Read before the update, so a frame that arrives in between is counted next time
+            int frameAvailableCount = mExternalSurfaceTexture.getFrameAvailableCount();
+            long frameAvailableTime = mExternalSurfaceTexture.getFrameAvailableTime();
             mExternalSurfaceTexture.updateTexture();
+            if(frameAvailableCount != mConsumedFrameAvailableCount) {
+                mFrameStats.frameConsumed(frameAvailableTime,
+                        frameAvailableCount - mConsumedFrameAvailableCount - 1);
+                mConsumedFrameAvailableCount = frameAvailableCount;
+            }
+            mRenderRequest = RenderRequest.EFFECT;
+        }
+
+        if(!mAnimations.isEmpty()) {
+            /* Animated parameter values are applied with the effect. The animations advance by
+             * the time between the starts of the rendered frames, once per frame. */
+            animate(mFrameStats.getFrameStartTime());
+            mRenderRequest = mergeRenderRequests(mRenderRequest, REQUEST_EFFECT);
+        }
+
+        boolean effectRendered = renderFrame(gpuTimer);
+
+        if(effectRendered && mFrameRecorder != null) {
+            // The effect output is never presented directly while recording
+            long timestamp = mExternalSurfaceTexture.getSurfaceTexture().getTimestamp();
+            if(timestamp == 0) {
+                // The source does not set timestamps
+                timestamp = System.nanoTime();
+            }
+            mFrameRecorder.record(mFramebufferOut.getTexture(), timestamp);
+        }
 
-            mFramebufferIn.bind();
-            mReadExternalTextureShaderProgram.use();
-            mReadExternalTextureShaderProgram.setTexture(mExternalSurfaceTexture);
-            mTexturedRectangle.draw(mReadExternalTextureShaderProgram);
 
+        // STUFF
+
+        mFrameCapturer.poll();
+
+        mRenderRequest = RenderRequest.DEFAULT;
+        gpuTimer.endFrame();
+        mFrameStats.endFrame();
+
+        if(GLValidator.getInstalled().endFrame()) {
+            /* The frame has failed, render it again to let the validator find the failing
+             * operation. Only the GL work is repeated, the frame has already been accounted,
+             * timed, animated, captured and recorded. */
+            mTexturedRectangle.reset();
+            QuadVertexBuffer.getCurrent().invalidate();
+            GLState.getCurrent().invalidate();
+            mRenderRequest = RenderRequest.EFFECT;
+            renderFrame(gpuTimer);
+            mRenderRequest = RenderRequest.DEFAULT;
+            GLValidator.getInstalled().endFrame();
+        }
+    }
+
+    /**
+     * Renders the current request of a frame, from applying the effect to rendering its output
+     * to the screen.
+     * @return true if the effect output has been rendered
+     */
+    private boolean renderFrame(GpuTimer gpuTimer) {
+        boolean effectRendered = false;
+
+        // A geometry-only render needs the effect output of the last frame, which is not available
+        // if it has been presented directly
+        if(mRenderRequest == RenderRequest.GEOMETRY && !mFramebufferOutValid) {
             mRenderRequest = RenderRequest.EFFECT;
         }
 
 
         // MANIPULATE TEXTURE WITH SHADER(S)
 
+        if(mRenderRequest == RenderRequest.EFFECT && mEffect != null && !mEffect.isInitialized()) {
+            /* The effect or a resource that it shares with another effect has been released to
+             * meet the memory budget, so it needs to be reacquired. */
+            reacquireEffect();
+        }
+
         if(mRenderRequest == RenderRequest.EFFECT) {
-            if (mEffect != null) {
-                mEffect.apply(mFramebufferIn.getTexture(), mFramebufferOut);
+            if(mEffect != null) {
+                // Apply the latest parameter values that have been set since the last frame
+                mEffect.applyParameterValues();
+            }
+
+            /* Without zoom and pan, the geometry pass would only copy the effect output to the
+             * screen, so the effect can render straight to the screen instead if it does not
+             * read its target. */
+            boolean presentDirectly = mZoomLevel == 1.0f && mPanX == 0.0f && mPanY == 0.0f
+                    && mCaptureCallbacks.isEmpty() && mFrameRecorder == null
+                    && (mEffect == null || (mEffect instanceof WriteOnlyTargetEffect
+                    && ((WriteOnlyTargetEffect) mEffect).isTargetWriteOnly()));
+            Framebuffer target;
+
+            if(presentDirectly) {
+                target = mScreenFramebuffer;
             } else {
-                mFramebufferOut.bind();
-                mDefaultShaderProgram.use();
-                mDefaultShaderProgram.setTexture(mFramebufferIn.getTexture());
-                mTexturedRectangle.draw(mDefaultShaderProgram);
+                if(mFramebufferOut == null) {
+                    mFramebufferOut = FramebufferPool.getCurrent().obtain(mWidth, mHeight);
+                    mFramebufferOut.getTexture().setFilterMode(-1, GLES20.GL_LINEAR);
+                }
+                target = mFramebufferOut;
+            }
+
+            if (mEffect == null) {
+                // Read the external texture straight into the target
+                gpuTimer.beginPass(PASS_INPUT);
+                target.bind();
+                mReadExternalTextureShaderProgram.use();
+                mReadExternalTextureShaderProgram.setTexture(mExternalSurfaceTexture);
+                mTexturedRectangle.draw(mReadExternalTextureShaderProgram);
+                gpuTimer.endPass();
+            } else if (mEffect instanceof ExternalSourceEffect
+                    && ((ExternalSourceEffect) mEffect).isExternalSourceSupported()) {
+                // Let the effect read the external texture directly without copying it first
+                gpuTimer.beginEffect(mEffect.getName());
+                ((ExternalSourceEffect) mEffect).applyExternal(mExternalSurfaceTexture, target);
+                gpuTimer.endEffect();
+            } else {
+                // Transfer the external texture into a 2D texture that the effect can read
+                if(mFramebufferIn == null) {
+                    mFramebufferIn = FramebufferPool.getCurrent().obtain(mWidth, mHeight);
+                }
+                gpuTimer.beginPass(PASS_INPUT);
+                mFramebufferIn.bind();
+                mReadExternalTextureShaderProgram.use();
+                mReadExternalTextureShaderProgram.setTexture(mExternalSurfaceTexture);
+                mTexturedRectangle.draw(mReadExternalTextureShaderProgram);
+                gpuTimer.endPass();
+
+                gpuTimer.beginEffect(mEffect.getName());
+                mEffect.apply(mFramebufferIn.getTexture(), target);
+                gpuTimer.endEffect();
             }
 
-            mRenderRequest = RenderRequest.GEOMETRY;
+            effectRendered = true;
+            mFramebufferOutValid = !presentDirectly;
+            mRenderRequest = presentDirectly ? RenderRequest.DEFAULT : RenderRequest.GEOMETRY;
         }
 
 
         // RENDER TEXTURE TO SCREEN
 
         if(mRenderRequest == RenderRequest.GEOMETRY) {
-            GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, 0); // framebuffer 0 is the screen
+            gpuTimer.beginPass(PASS_SCREEN);
+            GLState.getCurrent().bindFramebuffer(0); // framebuffer 0 is the screen
             GLES20.glClear(GLES20.GL_DEPTH_BUFFER_BIT | GLES20.GL_COLOR_BUFFER_BIT);
             mTextureToScreenShaderProgram.use();
             mTextureToScreenShaderProgram.setTexture(mFramebufferOut.getTexture());
@@ -262,22 +579,40 @@ public class GLRenderer implements GLSurfaceView.Renderer {
             mTexturedRectangle.calculateMVP(mViewMatrix, mProjectionMatrix);
 
             mTexturedRectangle.draw(mTextureToScreenShaderProgram);
+            gpuTimer.endPass();
+
+            if(!mCaptureCallbacks.isEmpty()) {
+                // Render a flipped copy of the screen, so the bottom-up readback comes out upright
+                Framebuffer captureFramebuffer = FramebufferPool.getCurrent().obtain(mWidth, mHeight, GLES20.GL_RGBA);
+                captureFramebuffer.bind();
+                mTexturedRectangle.calculateMVP(mViewMatrix, mCaptureProjectionMatrix);
+                mTexturedRectangle.draw(mTextureToScreenShaderProgram);
+                for(OnFrameCapturedCallback callback : mCaptureCallbacks) {
+                    mFrameCapturer.capture(captureFramebuffer, callback);
+                }
+                mCaptureCallbacks.clear();
+                FramebufferPool.getCurrent().release(captureFramebuffer);
+            }
         }
 
-        // STUFF
-
-        //mFrameRateCalculator.frame();
-        mRenderRequest = RenderRequest.DEFAULT;
+        return effectRendered;
     }
 
     public void setZoomLevel(float zoomLevel) {
+        mZoomLevel = zoomLevel;
         Matrix.orthoM(mProjectionMatrix, 0,
                 -1.0f / zoomLevel, 1.0f / zoomLevel,
                 -1.0f / zoomLevel, 1.0f / zoomLevel,
                 1.0f, 10.0f);
+        Matrix.orthoM(mCaptureProjectionMatrix, 0,
+                -1.0f / zoomLevel, 1.0f / zoomLevel,
+                1.0f / zoomLevel, -1.0f / zoomLevel,
+                1.0f, 10.0f);
     }
 
     public void setPan(float pX, float pY) {
+        mPanX = pX;
+        mPanY = pY;
         Matrix.setIdentityM(mViewMatrix, 0);
         Matrix.translateM(mViewMatrix, 0, pX, pY, 0.0f);
     }
@@ -289,6 +624,14 @@ public class GLRenderer implements GLSurfaceView.Renderer {
         }
     }
 
+    /**
+     * Selects an effect. An effect that is selected for the first time is initialized first,
+     * which happens in the background if the renderer has been created with a GL thread executor
+     * and the device supports it. The previous effect stays selected until the initialization has
+     * completed, and the listener is notified when the selection is done or has failed.
+     * Must be called on the GL thread.
+     * @param index the index of the effect to select
+     */
     public void selectEffect(int index) {
         if(index >= mEffects.size()) {
             Log.w(TAG, String.format("invalid effect index %d (%d effects registered)",
@@ -296,6 +639,13 @@ public class GLRenderer implements GLSurfaceView.Renderer {
             return;
         }
         Effect effect = mEffects.get(index); // keep in a local variable until initialized, in case initialization fails
+        if(mEffectLoader != null && (!effect.isInitialized() || mEffectLoader.isLoading(effect))) {
+            // Keep rendering the current effect until the selected effect has been initialized
+            mSelectingEffectIndex = index;
+            mEffectLoader.load(effect, mWidth, mHeight);
+            return;
+        }
+        mSelectingEffectIndex = -1;
         if(!effect.isInitialized()) {
             Log.d(TAG, "initializing effect " + effect.getName());
             try {
@@ -311,12 +661,299 @@ public class GLRenderer implements GLSurfaceView.Renderer {
             }
         }
         mEffect = effect;
+        touchEffect(effect);
+        enforceMemoryBudget();
         if(mEffectEventListener != null) {
             mEffectEventListener.onEffectSelected(index, effect);
         }
     }
 
+    /**
+     * Initializes an effect ahead of its selection, so that a later {@link #selectEffect(int)}
+     * completes immediately. The initialization happens in the background if supported (see
+     * {@link #selectEffect(int)}), else right away. The listener is notified when the effect
+     * has been initialized. Must be called on the GL thread.
+     * @param index the index of the effect to initialize
+     */
+    public void preloadEffect(int index) {
+        if(index >= mEffects.size()) {
+            Log.w(TAG, String.format("invalid effect index %d (%d effects registered)",
+                    index, mEffects.size()));
+            return;
+        }
+        Effect effect = mEffects.get(index);
+        if(effect.isInitialized() || isEffectLoading(effect)) {
+            return;
+        }
+        if(mEffectLoader != null) {
+            mEffectLoader.load(effect, mWidth, mHeight);
+            return;
+        }
+        Log.d(TAG, "preloading effect " + effect.getName());
+        try {
+            effect.init(mWidth, mHeight);
+            touchEffect(effect);
+            enforceMemoryBudget();
+            if (mEffectEventListener != null) {
+                mEffectEventListener.onEffectInitialized(index, effect);
+            }
+        } catch (OutOfMemoryError | Exception e) {
+            if (mEffectEventListener != null) {
+                mEffectEventListener.onEffectError(index, effect, new EffectException(e));
+            }
+        }
+    }
+
+    private boolean isEffectLoading(Effect effect) {
+        return mEffectLoader != null && mEffectLoader.isLoading(effect);
+    }
+
+    /**
+     * Sets a budget for the GPU memory of textures and framebuffers (see {@link GpuMemoryTracker}).
+     * Whenever an effect has been selected or initialized and the allocated memory exceeds the
+     * budget, unused pooled framebuffers are deleted and the least recently used effects are
+     * released (see {@link Effect#release()}) until the memory fits into the budget. Released
+     * effects are reinitialized with their previous parameter values when they are selected
+     * again. The selected effect is never released. Must be called on the GL thread.
+     * @param bytes the budget in bytes, or 0 for an unlimited budget (the default)
+     */
+    public void setMemoryBudget(long bytes) {
+        mMemoryBudget = bytes;
+        enforceMemoryBudget();
+    }
+
+    public long getMemoryBudget() {
+        return mMemoryBudget;
+    }
+
+    /**
+     * Gets the frame statistics of the renderer, which can be read from any thread.
+     */
+    public FrameStats getFrameStats() {
+        return mFrameStats;
+    }
+
+    /**
+     * Sets a listener that receives the GPU timings of the render passes, which are measured
+     * while a listener is set. The passes of the renderer itself are reported without an effect
+     * name as {@link #PASS_INPUT} and {@link #PASS_SCREEN}. Must be called on the GL thread.
+     * @param listener the listener, or null to stop timing
+     * @param cpuFallback true to time the passes on the CPU with {@link GLES20#glFinish()} if the
+     *                    GPU does not support timer queries, which severely slows down rendering
+     *                    and is only meant for diagnostics
+     * @see GpuTimer
+     */
+    public void setOnPassTimedListener(GpuTimer.OnPassTimedListener listener, boolean cpuFallback) {
+        GpuTimer gpuTimer = GpuTimer.getCurrent();
+        gpuTimer.setCpuFallbackEnabled(cpuFallback);
+        gpuTimer.setListener(listener);
+    }
+
+    /**
+     * Starts an animation of an effect parameter, which is evaluated at the time of every frame
+     * until it ends. An animation that is already running is restarted. While animations are
+     * running, the {@link OnAnimatingChangedListener} should make sure that frames are rendered
+     * continuously. Must be called on the GL thread.
+     * @see ParameterAnimation
+     */
+    public void startAnimation(ParameterAnimation animation) {
+        animation.restart();
+        if(!mAnimations.contains(animation)) {
+            mAnimations.add(animation);
+            if(mAnimations.size() == 1 && mOnAnimatingChangedListener != null) {
+                mOnAnimatingChangedListener.onAnimatingChanged(true);
+            }
+        }
+    }
+
+    /**
+     * Stops an animation at its current value. Must be called on the GL thread.
+     * @param animation the animation to stop, or null to stop all animations
+     */
+    public void cancelAnimation(ParameterAnimation animation) {
+        if(mAnimations.isEmpty()) {
+            return;
+        }
+        if(animation == null) {
+            mAnimations.clear();
+        } else {
+            mAnimations.remove(animation);
+        }
+        if(mAnimations.isEmpty() && mOnAnimatingChangedListener != null) {
+            mOnAnimatingChangedListener.onAnimatingChanged(false);
+        }
+    }
+
+    /**
+     * Evaluates all animations at the time of the current frame and removes those that have ended.
+     */
+    private void animate(long frameTime) {
+        for(int i = mAnimations.size() - 1; i >= 0; i--) { // indexed to avoid an iterator per frame
+            if(!mAnimations.get(i).animate(frameTime)) {
+                mAnimations.remove(i);
+            }
+        }
+        if(mAnimations.isEmpty() && mOnAnimatingChangedListener != null) {
+            mOnAnimatingChangedListener.onAnimatingChanged(false);
+        }
+    }
+
+    /**
+     * Marks an effect as the most recently used.
+     */
+    private void touchEffect(Effect effect) {
+        mRecentEffects.remove(effect);
+        mRecentEffects.add(effect);
+    }
+
+    /**
+     * Releases the least recently used effects until the allocated GPU memory fits into the budget.
+     */
+    private void enforceMemoryBudget() {
+        GpuMemoryTracker memoryTracker = GpuMemoryTracker.getCurrent();
+        if(mMemoryBudget <= 0 || memoryTracker.getAllocatedBytes() <= mMemoryBudget) {
+            return;
+        }
+
+        // Pooled framebuffers are the cheapest to give up, because they are recreated on demand
+        FramebufferPool.getCurrent().trim();
+
+        Iterator<Effect> iterator = mRecentEffects.iterator();
+        while(memoryTracker.getAllocatedBytes() > mMemoryBudget && iterator.hasNext()) {
+            Effect effect = iterator.next();
+            if(effect == mEffect || isEffectLoading(effect)
+                    || mEffects.indexOf(effect) == mSelectingEffectIndex) {
+                continue;
+            }
+            Log.d(TAG, "releasing effect " + effect.getName() + " to meet the memory budget ("
+                    + memoryTracker.getAllocatedBytes() + " of " + mMemoryBudget + " bytes allocated)");
+            effect.release();
+            iterator.remove();
+        }
+
+        if(memoryTracker.getAllocatedBytes() > mMemoryBudget) {
+            Log.w(TAG, "memory budget exceeded by the selected effect ("
+                    + memoryTracker.getAllocatedBytes() + " of " + mMemoryBudget + " bytes allocated)");
+        }
+    }
+
+    /**
+     * Reinitializes the selected effect after it has been released, or deselects it if that fails.
+     */
+    private void reacquireEffect() {
+        int index = mEffects.indexOf(mEffect);
+        Log.d(TAG, "reacquiring effect " + mEffect.getName());
+        try {
+            mEffect.init(mWidth, mHeight);
+            touchEffect(mEffect);
+            if (mEffectEventListener != null) {
+                mEffectEventListener.onEffectInitialized(index, mEffect);
+            }
+        } catch (OutOfMemoryError | Exception e) {
+            Effect effect = mEffect;
+            mEffect = null;
+            if (mEffectEventListener != null) {
+                mEffectEventListener.onEffectError(index, effect, new EffectException(e));
+            }
+        }
+    }
+
+    /**
+     * Completes the selection or preloading of effects that have been initialized in the background.
+     */
+    private EffectLoader.OnEffectLoadedListener mEffectLoadedListener = new EffectLoader.OnEffectLoadedListener() {
+        @Override
+        public void onEffectLoaded(Effect effect, int width, int height) {
+            if(width != mWidth || height != mHeight) {
+                // The surface has been resized during the initialization
+                effect.resize(mWidth, mHeight);
+            }
+            int index = mEffects.indexOf(effect);
+            if (mEffectEventListener != null) {
+                mEffectEventListener.onEffectInitialized(index, effect);
+            }
+            touchEffect(effect);
+            if(index == mSelectingEffectIndex) {
+                mSelectingEffectIndex = -1;
+                mEffect = effect;
+                if(mEffectEventListener != null) {
+                    mEffectEventListener.onEffectSelected(index, effect);
+                }
+            }
+            enforceMemoryBudget();
+        }
+
+        @Override
+        public void onEffectLoadFailed(Effect effect, Throwable e) {
+            int index = mEffects.indexOf(effect);
+            if(index == mSelectingEffectIndex) {
+                mSelectingEffectIndex = -1;
+            }
+            if (mEffectEventListener != null) {
+                mEffectEventListener.onEffectError(index, effect, new EffectException(e));
+            }
+        }
+    };
+
+    /**
+     * Requests a capture of the next rendered frame. The frame is read back asynchronously
+     * and passed to the callback on a background thread. A render must be requested afterwards.
+     * @see FrameCapturer
+     */
     public void saveCurrentFrame(OnFrameCapturedCallback callback) {
-        callback.onFrameCaptured(GLUtils.getFrameBuffer(mWidth, mHeight));
+        mCaptureCallbacks.add(callback);
+        // Re-render the last effect output, which is promoted to an effect render if it is not available
+        addRenderRequest(RenderRequest.GEOMETRY);
+    }
+
+    /**
+     * Starts recording every processed frame into a surface, e.g. the input surface of a
+     * {@link android.media.MediaCodec} encoder. Frames are recorded with the timestamps of the
+     * source frames and without zoom and pan. Must be called on the GL thread. Requires API
+     * level 18 (Jelly Bean MR2).
+     * @param surface the surface to record into
+     * @param width the width of the surface
+     * @param height the height of the surface
+     * @throws UnsupportedOperationException below API level 18
+     * @see FrameRecorder
+     */
+    @TargetApi(Build.VERSION_CODES.JELLY_BEAN_MR2)
+    public void startRecording(Surface surface, int width, int height) {
+        if(Build.VERSION.SDK_INT < Build.VERSION_CODES.JELLY_BEAN_MR2) {
+            throw new UnsupportedOperationException("recording requires API level 18");
+        }
+        stopRecording();
+        mFrameRecorder = new FrameRecorder(surface, width, height);
+        mRecordingSurface = surface;
+        mRecordingWidth = width;
+        mRecordingHeight = height;
+    }
+
+    /**
+     * Stops a recording that has been started with {@link #startRecording(Surface, int, int)}.
+     * All frames have been submitted to the surface when this method returns. Must be called on
+     * the GL thread.
+     */
+    public void stopRecording() {
+        if(mFrameRecorder != null) {
+            mFrameRecorder.release();
+            mFrameRecorder = null;
+            mRecordingSurface = null;
+        }
+    }
+
+    /**
+     * Checks if frames are currently recorded.
+     */
+    public boolean isRecording() {
+        return mFrameRecorder != null;
+    }
+
+    /**
+     * Returns a captured frame bitmap that is not needed anymore, so it can be reused for the
+     * next capture. Can be called from any thread.
+     */
+    public void recycleCapturedFrame(Bitmap bitmap) {
+        mFrameCapturer.recycleBitmap(bitmap);
     }
 }
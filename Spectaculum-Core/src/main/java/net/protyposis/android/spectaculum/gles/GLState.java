@@ -0,0 +1,543 @@
+/*
+ * Copyright 2016 Mario Guggenberger <mg@protyposis.net>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.protyposis.android.spectaculum.gles;
+
+import android.opengl.GLES11Ext;
+import android.opengl.GLES20;
+import android.util.SparseArray;
+
+import java.util.Arrays;
+
+/**
+ * A cache of the GL state that the render pipeline changes between its passes, which drops
+ * calls that would not change the state: the current program, the textures bound to the texture
+ * units, the framebuffer binding, the viewport, and the uniform values of every program.
+ *
+ * The cache only knows the state that has been set through it, so all state changes of the
+ * pipeline must go through it. State that may have been changed by someone else, e.g. texture
+ * bindings by {@link android.graphics.SurfaceTexture#updateTexImage()}, must be
+ * {@link #invalidate() invalidated}, which is also done at the start of every frame. Uniform
+ * values are stored in the program objects and are not invalidated, so they must never be set
+ * without the cache; they are forgotten when their program is deleted. Uniform values are also
+ * written into the {@link UniformState} of the {@link ShaderProgram} that is in use, which keeps
+ * the values of each shader program on the CPU side when program objects are shared.
+ *
+ * The numbers of issued and elided calls are counted to measure the effect of the cache.
+ *
+ * Like GL objects, there is one state per thread that can be obtained with {@link #getCurrent()}.
+ */
+public class GLState {
+
+    private static final int UNKNOWN = -1;
+    private static final int MAX_TEXTURE_UNITS = 16;
+
+    private static final ThreadLocal<GLState> sCurrent = new ThreadLocal<GLState>() {
+        @Override
+        protected GLState initialValue() {
+            return new GLState();
+        }
+    };
+
+    /**
+     * Gets the state of the GL context that is current on the calling thread.
+     */
+    public static GLState getCurrent() {
+        return sCurrent.get();
+    }
+
+    /**
+     * Replaces the state of the calling thread, e.g. while another context that has its own
+     * state is temporarily made current on the thread.
+     * @param state the state to use on the calling thread, or null to create a new state on the next access
+     */
+    static void setCurrent(GLState state) {
+        if (state == null) {
+            sCurrent.remove();
+        } else {
+            sCurrent.set(state);
+        }
+    }
+
+    /**
+     * The last values of the uniforms of a program, by location.
+     */
+    private static class ProgramUniforms {
+        private SparseArray<float[]> mFloatValues = new SparseArray<>();
+        private SparseArray<int[]> mIntValues = new SparseArray<>();
+    }
+
+    private int mProgram;
+    private ProgramUniforms mProgramUniforms;
+    private int mActiveTextureUnit;
+    private int[] mTextures2D;
+    private int[] mTexturesExternal;
+    private int mFramebuffer;
+    private int[] mViewport;
+    private SparseArray<ProgramUniforms> mUniforms;
+    private UniformState mUniformShadow;
+
+    private float[] mFloatScratch;
+    private int[] mIntScratch;
+
+    private long mIssuedCount;
+    private long mElidedCount;
+
+    GLState() {
+        mTextures2D = new int[MAX_TEXTURE_UNITS];
+        mTexturesExternal = new int[MAX_TEXTURE_UNITS];
+        mViewport = new int[4];
+        mUniforms = new SparseArray<>();
+        mFloatScratch = new float[4];
+        mIntScratch = new int[4];
+        invalidate();
+    }
+
+    /**
+     * Makes a program current.
+     * @see GLES20#glUseProgram(int)
+     */
+    public void useProgram(int program) {
+        if (program == mProgram) {
+            mElidedCount++;
+            return;
+        }
+        GLES20.glUseProgram(program);
+        mIssuedCount++;
+        mProgram = program;
+        mProgramUniforms = null;
+        mUniformShadow = null;
+    }
+
+    /**
+     * Sets the uniform state that all uniform values of the current program are written to,
+     * until another program is made current.
+     * @param uniformShadow the state of the shader program in use, or null to not write values
+     */
+    void setUniformShadow(UniformState uniformShadow) {
+        mUniformShadow = uniformShadow;
+    }
+
+    /**
+     * Selects the active texture unit.
+     * @param unit the texture unit, e.g. {@link GLES20#GL_TEXTURE0}
+     * @see GLES20#glActiveTexture(int)
+     */
+    public void activeTexture(int unit) {
+        int index = unit - GLES20.GL_TEXTURE0;
+        if (index == mActiveTextureUnit && index != UNKNOWN) {
+            mElidedCount++;
+            return;
+        }
+        GLES20.glActiveTexture(unit);
+        mIssuedCount++;
+        mActiveTextureUnit = index >= 0 && index < MAX_TEXTURE_UNITS ? index : UNKNOWN;
+    }
+
+    /**
+     * Binds a texture to the active texture unit.
+     * @see GLES20#glBindTexture(int, int)
+     */
+    public void bindTexture(int target, int texture) {
+        int[] textures = getTextureBindings(target);
+        if (textures != null && mActiveTextureUnit != UNKNOWN && textures[mActiveTextureUnit] == texture) {
+            mElidedCount++;
+            return;
+        }
+        GLES20.glBindTexture(target, texture);
+        mIssuedCount++;
+        if (textures != null && mActiveTextureUnit != UNKNOWN) {
+            textures[mActiveTextureUnit] = texture;
+        }
+    }
+
+    /**
+     * Binds a texture to a texture unit.
+     * @param unit the texture unit, e.g. {@link GLES20#GL_TEXTURE0}
+     */
+    public void bindTexture(int unit, int target, int texture) {
+        int index = unit - GLES20.GL_TEXTURE0;
+        int[] textures = getTextureBindings(target);
+        if (textures != null && index >= 0 && index < MAX_TEXTURE_UNITS && textures[index] == texture) {
+            mElidedCount++;
+            return;
+        }
+        activeTexture(unit);
+        bindTexture(target, texture);
+    }
+
+    /**
+     * Binds a framebuffer.
+     * @see GLES20#glBindFramebuffer(int, int)
+     */
+    public void bindFramebuffer(int framebuffer) {
+        if (framebuffer == mFramebuffer) {
+            mElidedCount++;
+            return;
+        }
+        GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, framebuffer);
+        mIssuedCount++;
+        mFramebuffer = framebuffer;
+    }
+
+    /**
+     * Sets the viewport.
+     * @see GLES20#glViewport(int, int, int, int)
+     */
+    public void viewport(int x, int y, int width, int height) {
+        if (mViewport[0] == x && mViewport[1] == y && mViewport[2] == width && mViewport[3] == height) {
+            mElidedCount++;
+            return;
+        }
+        GLES20.glViewport(x, y, width, height);
+        mIssuedCount++;
+        mViewport[0] = x;
+        mViewport[1] = y;
+        mViewport[2] = width;
+        mViewport[3] = height;
+    }
+
+    public void uniform1f(int location, float x) {
+        mFloatScratch[0] = x;
+        if (update(location, 1, mFloatScratch, 0, 1)) {
+            GLES20.glUniform1f(location, x);
+        }
+    }
+
+    public void uniform2f(int location, float x, float y) {
+        mFloatScratch[0] = x;
+        mFloatScratch[1] = y;
+        if (update(location, 1, mFloatScratch, 0, 2)) {
+            GLES20.glUniform2f(location, x, y);
+        }
+    }
+
+    public void uniform3f(int location, float x, float y, float z) {
+        mFloatScratch[0] = x;
+        mFloatScratch[1] = y;
+        mFloatScratch[2] = z;
+        if (update(location, 1, mFloatScratch, 0, 3)) {
+            GLES20.glUniform3f(location, x, y, z);
+        }
+    }
+
+    public void uniform4f(int location, float x, float y, float z, float w) {
+        mFloatScratch[0] = x;
+        mFloatScratch[1] = y;
+        mFloatScratch[2] = z;
+        mFloatScratch[3] = w;
+        if (update(location, 1, mFloatScratch, 0, 4)) {
+            GLES20.glUniform4f(location, x, y, z, w);
+        }
+    }
+
+    public void uniform1i(int location, int x) {
+        mIntScratch[0] = x;
+        if (update(location, 1, mIntScratch, 0, 1)) {
+            GLES20.glUniform1i(location, x);
+        }
+    }
+
+    public void uniform1fv(int location, int count, float[] v, int offset) {
+        if (update(location, count, v, offset, 1)) {
+            GLES20.glUniform1fv(location, count, v, offset);
+        }
+    }
+
+    public void uniform2fv(int location, int count, float[] v, int offset) {
+        if (update(location, count, v, offset, 2)) {
+            GLES20.glUniform2fv(location, count, v, offset);
+        }
+    }
+
+    public void uniform3fv(int location, int count, float[] v, int offset) {
+        if (update(location, count, v, offset, 3)) {
+            GLES20.glUniform3fv(location, count, v, offset);
+        }
+    }
+
+    public void uniform4fv(int location, int count, float[] v, int offset) {
+        if (update(location, count, v, offset, 4)) {
+            GLES20.glUniform4fv(location, count, v, offset);
+        }
+    }
+
+    public void uniform1iv(int location, int count, int[] v, int offset) {
+        if (update(location, count, v, offset, 1)) {
+            GLES20.glUniform1iv(location, count, v, offset);
+        }
+    }
+
+    public void uniform2iv(int location, int count, int[] v, int offset) {
+        if (update(location, count, v, offset, 2)) {
+            GLES20.glUniform2iv(location, count, v, offset);
+        }
+    }
+
+    public void uniform3iv(int location, int count, int[] v, int offset) {
+        if (update(location, count, v, offset, 3)) {
+            GLES20.glUniform3iv(location, count, v, offset);
+        }
+    }
+
+    public void uniform4iv(int location, int count, int[] v, int offset) {
+        if (update(location, count, v, offset, 4)) {
+            GLES20.glUniform4iv(location, count, v, offset);
+        }
+    }
+
+    public void uniformMatrix2fv(int location, int count, float[] v, int offset) {
+        if (update(location, count, v, offset, 4)) {
+            GLES20.glUniformMatrix2fv(location, count, false, v, offset);
+        }
+    }
+
+    public void uniformMatrix3fv(int location, int count, float[] v, int offset) {
+        if (update(location, count, v, offset, 9)) {
+            GLES20.glUniformMatrix3fv(location, count, false, v, offset);
+        }
+    }
+
+    public void uniformMatrix4fv(int location, int count, float[] v, int offset) {
+        if (update(location, count, v, offset, 16)) {
+            GLES20.glUniformMatrix4fv(location, count, false, v, offset);
+        }
+    }
+
+    /**
+     * Must be called after a program has been deleted, because its handle can be reused.
+     */
+    public void onProgramDeleted(int program) {
+        mUniforms.remove(program);
+        if (program == mProgram) {
+            // The program stays current until another program is used, but the cache cannot tell
+            // it from a new program with the same handle
+            mProgram = UNKNOWN;
+            mProgramUniforms = null;
+            mUniformShadow = null;
+        }
+    }
+
+    /**
+     * Forgets the uniform values of a program, e.g. after they have been set through the state
+     * of another context in the same share group, in which the program object is shared.
+     */
+    public void invalidateUniforms(int program) {
+        mUniforms.remove(program);
+        if (program == mProgram) {
+            mProgramUniforms = null;
+        }
+    }
+
+    /**
+     * Must be called after a texture has been deleted, which unbinds it from all texture units.
+     */
+    public void onTextureDeleted(int texture) {
+        for (int i = 0; i < MAX_TEXTURE_UNITS; i++) {
+            if (mTextures2D[i] == texture) {
+                mTextures2D[i] = 0;
+            }
+            if (mTexturesExternal[i] == texture) {
+                mTexturesExternal[i] = 0;
+            }
+        }
+    }
+
+    /**
+     * Must be called after a framebuffer has been deleted, which unbinds it.
+     */
+    public void onFramebufferDeleted(int framebuffer) {
+        if (framebuffer == mFramebuffer) {
+            mFramebuffer = 0;
+        }
+    }
+
+    /**
+     * Forgets the current program and the texture, framebuffer and viewport bindings, so they
+     * are set again with the next call. Must be called when someone else may have changed them.
+     * The uniform state of the shader program in use stays attached, because the program stays
+     * current in GL until another program is used.
+     */
+    public void invalidate() {
+        mProgram = UNKNOWN;
+        mProgramUniforms = null;
+        mActiveTextureUnit = UNKNOWN;
+        Arrays.fill(mTextures2D, UNKNOWN);
+        Arrays.fill(mTexturesExternal, UNKNOWN);
+        mFramebuffer = UNKNOWN;
+        Arrays.fill(mViewport, UNKNOWN);
+    }
+
+    /**
+     * Forgets the complete state including all uniform values. Must be called when the GL
+     * context has been lost, because all programs are gone with it.
+     */
+    public void reset() {
+        invalidate();
+        mUniforms.clear();
+        mUniformShadow = null;
+    }
+
+    /**
+     * Gets the number of state changing calls that have been issued to GL.
+     */
+    public long getIssuedCount() {
+        return mIssuedCount;
+    }
+
+    /**
+     * Gets the number of calls that have been dropped because they would not have changed the state.
+     */
+    public long getElidedCount() {
+        return mElidedCount;
+    }
+
+    /**
+     * Resets the issued and elided call counters to zero.
+     */
+    public void resetCounters() {
+        mIssuedCount = 0;
+        mElidedCount = 0;
+    }
+
+    private int[] getTextureBindings(int target) {
+        switch (target) {
+            case GLES20.GL_TEXTURE_2D:
+                return mTextures2D;
+            case GLES11Ext.GL_TEXTURE_EXTERNAL_OES:
+                return mTexturesExternal;
+            default:
+                return null;
+        }
+    }
+
+    private ProgramUniforms getProgramUniforms() {
+        if (mProgramUniforms == null && mProgram != UNKNOWN && mProgram != 0) {
+            mProgramUniforms = mUniforms.get(mProgram);
+            if (mProgramUniforms == null) {
+                mProgramUniforms = new ProgramUniforms();
+                mUniforms.put(mProgram, mProgramUniforms);
+            }
+        }
+        return mProgramUniforms;
+    }
+
+    /**
+     * Stores new values of a uniform of the current program, unless it is an array. Elements of
+     * arrays can also be set separately at their own locations (see {@link UniformState}), so
+     * arrays are not cached, and setting an array forgets the cached values of the program.
+     * @param count the number of array elements
+     * @param size the number of values per element
+     * @return true if the values have changed and must be set, false if the call can be elided
+     */
+    private boolean update(int location, int count, float[] v, int offset, int size) {
+        if (mUniformShadow != null) {
+            mUniformShadow.store(location, count, v, offset, size);
+        }
+        if (count != 1) {
+            forgetProgramUniforms();
+            return true;
+        }
+        return update(location, v, offset, size);
+    }
+
+    /**
+     * @see #update(int, int, float[], int, int)
+     */
+    private boolean update(int location, int count, int[] v, int offset, int size) {
+        if (mUniformShadow != null) {
+            mUniformShadow.store(location, count, v, offset, size);
+        }
+        if (count != 1) {
+            forgetProgramUniforms();
+            return true;
+        }
+        return update(location, v, offset, size);
+    }
+
+    private void forgetProgramUniforms() {
+        if (mProgram != UNKNOWN) {
+            mUniforms.remove(mProgram);
+        }
+        mProgramUniforms = null;
+        mIssuedCount++;
+    }
+
+    /**
+     * Stores new float values of a uniform of the current program.
+     * @return true if the values have changed and must be set, false if the call can be elided
+     */
+    private boolean update(int location, float[] v, int offset, int length) {
+        ProgramUniforms uniforms = getProgramUniforms();
+        if (uniforms == null || location == -1) {
+            // The current program is unknown, or the uniform is not active and the call is a no-op
+            mIssuedCount++;
+            return true;
+        }
+        float[] values = uniforms.mFloatValues.get(location);
+        if (values != null && values.length == length) {
+            boolean equal = true;
+            for (int i = 0; i < length; i++) {
+                if (values[i] != v[offset + i]) {
+                    equal = false;
+                    break;
+                }
+            }
+            if (equal) {
+                mElidedCount++;
+                return false;
+            }
+        } else {
+            values = new float[length];
+            uniforms.mFloatValues.put(location, values);
+        }
+        System.arraycopy(v, offset, values, 0, length);
+        mIssuedCount++;
+        return true;
+    }
+
+    /**
+     * Stores new int values of a uniform of the current program.
+     * @see #update(int, float[], int, int)
+     */
+    private boolean update(int location, int[] v, int offset, int length) {
+        ProgramUniforms uniforms = getProgramUniforms();
+        if (uniforms == null || location == -1) {
+            mIssuedCount++;
+            return true;
+        }
+        int[] values = uniforms.mIntValues.get(location);
+        if (values != null && values.length == length) {
+            boolean equal = true;
+            for (int i = 0; i < length; i++) {
+                if (values[i] != v[offset + i]) {
+                    equal = false;
+                    break;
+                }
+            }
+            if (equal) {
+                mElidedCount++;
+                return false;
+            }
+        } else {
+            values = new int[length];
+            uniforms.mIntValues.put(location, values);
+        }
+        System.arraycopy(v, offset, values, 0, length);
+        mIssuedCount++;
+        return true;
+    }
+}
@@ -40,6 +40,7 @@ public class GLUtils {
     private static final String TAG = GLUtils.class.getSimpleName();
 
     public static boolean HAS_GLES30;
+    public static boolean HAS_GLES30_CONTEXT;
     public static boolean HAS_GL_OES_texture_half_float;
     public static boolean HAS_GL_OES_texture_float;
     public static boolean HAS_FLOAT_FRAMEBUFFER_SUPPORT;
@@ -50,6 +51,8 @@ public class GLUtils {
      */
     public static void init() {
         HAS_GLES30 = Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN_MR2;
+        // The GLES30 bindings only work if the driver has actually created a GLES 3 context
+        HAS_GLES30_CONTEXT = HAS_GLES30 && GLES20.glGetString(GLES20.GL_VERSION).startsWith("OpenGL ES 3");
         HAS_GL_OES_texture_half_float = checkExtension("GL_OES_texture_half_float");
         HAS_GL_OES_texture_float = checkExtension("GL_OES_texture_float");
         HAS_GPU_TEGRA = GLES20.glGetString(GLES20.GL_RENDERER).toLowerCase().contains("tegra");
@@ -80,28 +83,45 @@ public class GLUtils {
         return configurationInfo != null && configurationInfo.reqGlEsVersion >= 0x20000;
     }
 
-    private static void checkError(String operation, boolean throwException) {
+    /**
+     * Reads and logs all pending GL errors.
+     * @return the first error, or {@link GLES20#GL_NO_ERROR}
+     */
+    static int pollErrors(String operation, boolean throwException) {
         int errorCount = 0;
+        int firstError = GLES20.GL_NO_ERROR;
         int error;
         String msg = null;
 
         while((error = GLES20.glGetError()) != GLES20.GL_NO_ERROR) {
             msg = "GL ERROR " + String.format("0x%X", error) + " @ " + operation;
             Log.e(TAG, msg);
+            if(errorCount == 0) {
+                firstError = error;
+            }
             errorCount++;
         }
 
         if(throwException && errorCount > 0) {
             throw new RuntimeException(msg);
         }
+
+        return firstError;
     }
 
+    /**
+     * Checks for GL errors after an operation, as far as the installed {@link GLValidator} demands.
+     */
     public static void checkError(String operation) {
-        checkError(operation, true);
+        GLValidator.getInstalled().check(operation);
     }
 
+    /**
+     * Clears all pending GL errors, e.g. after an operation that is expected to fail on some
+     * devices. Errors are always cleared, independent of the installed {@link GLValidator}.
+     */
     public static void clearError() {
-        checkError("error clearance", false);
+        pollErrors("error clearance", false);
     }
 
     public static String[] getExtensions() {
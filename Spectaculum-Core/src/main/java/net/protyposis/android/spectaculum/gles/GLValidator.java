@@ -0,0 +1,211 @@
+/*
+ * Copyright 2016 Mario Guggenberger <mg@protyposis.net>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.protyposis.android.spectaculum.gles;
+
+import android.opengl.GLES20;
+import android.util.Log;
+
+import net.protyposis.android.spectaculum.LibraryHelper;
+
+/**
+ * A validation layer for GL errors. Every {@link GLUtils#checkError(String)} call of the render
+ * pipeline is handed to the installed validator, which decides whether the GL error state is
+ * actually queried. Querying the error state can force a synchronization with the GPU, so how
+ * often it is done is a tradeoff between cost and precision:
+ *
+ * <ul>
+ *     <li>{@link #off()} never queries errors and costs nothing; for production</li>
+ *     <li>{@link #perCall()} queries errors after every checked operation and throws on the first
+ *     error; for development</li>
+ *     <li>{@link #sampled(OnErrorListener)} queries errors once per frame, and when a frame has
+ *     failed, renders it again with per-call checks to find the failing operation, which is
+ *     then reported to a listener; cheap enough to detect errors in the field</li>
+ * </ul>
+ *
+ * Unless a validator has been installed with {@link #install(GLValidator)}, per-call checks are
+ * used in debuggable apps, and no checks at all otherwise.
+ *
+ * Validators are shared by all GL threads and must therefore keep any frame state per thread.
+ */
+public abstract class GLValidator {
+
+    private static final String TAG = GLValidator.class.getSimpleName();
+
+    /**
+     * Listener interface for errors found by a validator.
+     */
+    public interface OnErrorListener {
+        /**
+         * Gets called on the GL thread when a GL error has been found.
+         * @param error the GL error code
+         * @param operation the operation after which the error has been found, or null if the
+         *                  error has been found at the end of a frame and could not be reproduced
+         */
+        void onGLError(int error, String operation);
+    }
+
+    private static volatile GLValidator sInstalled;
+
+    /**
+     * Installs the validator that is used by all GL threads.
+     * @param validator the validator to install, or null to install the default validator
+     */
+    public static void install(GLValidator validator) {
+        sInstalled = validator;
+    }
+
+    /**
+     * Gets the installed validator.
+     */
+    public static GLValidator getInstalled() {
+        GLValidator validator = sInstalled;
+        if (validator == null) {
+            validator = LibraryHelper.isDebuggable() ? perCall() : off();
+            sInstalled = validator;
+        }
+        return validator;
+    }
+
+    /**
+     * Creates a validator that never queries the GL error state.
+     */
+    public static GLValidator off() {
+        return new Off();
+    }
+
+    /**
+     * Creates a validator that queries the GL error state after every checked operation and
+     * throws a {@link RuntimeException} on errors.
+     */
+    public static GLValidator perCall() {
+        return new PerCall();
+    }
+
+    /**
+     * Creates a validator that queries the GL error state once per frame, and after every
+     * checked operation while a failed frame is rendered again.
+     * @param listener the listener that gets notified of errors, or null to only log them
+     */
+    public static GLValidator sampled(OnErrorListener listener) {
+        return new Sampled(listener);
+    }
+
+    /**
+     * Gets called after a GL operation.
+     * @param operation a description of the operation
+     */
+    public abstract void check(String operation);
+
+    /**
+     * Gets called by a renderer at the start of a frame.
+     */
+    public void beginFrame() {
+    }
+
+    /**
+     * Gets called by a renderer at the end of a frame.
+     * @return true if the frame has failed and the renderer should render it again right away,
+     *         so the failing operation can be found
+     */
+    public boolean endFrame() {
+        return false;
+    }
+
+    private static class Off extends GLValidator {
+        @Override
+        public void check(String operation) {
+        }
+    }
+
+    private static class PerCall extends GLValidator {
+        @Override
+        public void check(String operation) {
+            GLUtils.pollErrors(operation, true);
+        }
+    }
+
+    private static class Sampled extends GLValidator {
+
+        /**
+         * The validation state of a GL thread.
+         */
+        private static class FrameState {
+            private boolean mRerendering;
+            private boolean mReported;
+            private int mSampledError;
+        }
+
+        private OnErrorListener mListener;
+        private ThreadLocal<FrameState> mFrameState = new ThreadLocal<FrameState>() {
+            @Override
+            protected FrameState initialValue() {
+                return new FrameState();
+            }
+        };
+
+        private Sampled(OnErrorListener listener) {
+            mListener = listener;
+        }
+
+        @Override
+        public void check(String operation) {
+            FrameState state = mFrameState.get();
+            if (!state.mRerendering || state.mReported) {
+                return;
+            }
+            int error = GLUtils.pollErrors(operation, false);
+            if (error != GLES20.GL_NO_ERROR) {
+                // Only report the first failing operation of the frame
+                state.mReported = true;
+                report(error, operation);
+            }
+        }
+
+        @Override
+        public boolean endFrame() {
+            FrameState state = mFrameState.get();
+            if (state.mRerendering) {
+                // Errors after the reported one are consequential errors, drop them
+                GLUtils.pollErrors("frame", false);
+                if (!state.mReported) {
+                    // The error of the sampled frame has not occurred again with per-call checks
+                    report(state.mSampledError, null);
+                }
+                state.mRerendering = false;
+                state.mReported = false;
+                return false;
+            }
+
+            int error = GLUtils.pollErrors("frame", false);
+            if (error == GLES20.GL_NO_ERROR) {
+                return false;
+            }
+            state.mSampledError = error;
+            state.mRerendering = true;
+            return true;
+        }
+
+        private void report(int error, String operation) {
+            if (operation == null) {
+                Log.w(TAG, "GL error " + String.format("0x%X", error) + " not reproduced");
+            }
+            if (mListener != null) {
+                mListener.onGLError(error, operation);
+            }
+        }
+    }
+}
@@ -0,0 +1,165 @@
+/*
+ * Copyright 2016 Mario Guggenberger <mg@protyposis.net>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.protyposis.android.spectaculum.gles;
+
+/**
+ * Keeps account of the GPU memory that is allocated through {@link Texture2D}s, including the
+ * textures attached to {@link Framebuffer}s. The sizes are estimated from the dimensions and
+ * internal formats of the textures, because GLES cannot report the actual memory usage.
+ *
+ * Every texture is charged to the tracker that is current on the thread that creates it, and
+ * credited back when it is deleted. When the GL context has been lost, the tracker must be
+ * {@link #reset()}; textures of the lost context are then neither credited nor deleted, so a
+ * stale texture handle can never delete an object of the new context.
+ *
+ * Like GL objects, there is one tracker per thread that can be obtained with {@link #getCurrent()}.
+ */
+public class GpuMemoryTracker {
+
+    private static final ThreadLocal<GpuMemoryTracker> sCurrent = new ThreadLocal<GpuMemoryTracker>() {
+        @Override
+        protected GpuMemoryTracker initialValue() {
+            return new GpuMemoryTracker();
+        }
+    };
+
+    /**
+     * Gets the memory tracker of the GL context that is current on the calling thread.
+     */
+    public static GpuMemoryTracker getCurrent() {
+        return sCurrent.get();
+    }
+
+    /**
+     * Replaces the tracker of the calling thread, e.g. to collect the allocations of a background
+     * initialization in a separate tracker that is later adopted with {@link #adopt(GpuMemoryTracker)}.
+     * @param tracker the tracker to use on the calling thread, or null to create a new tracker on the next access
+     */
+    static void setCurrent(GpuMemoryTracker tracker) {
+        if (tracker == null) {
+            sCurrent.remove();
+        } else {
+            sCurrent.set(tracker);
+        }
+    }
+
+    private long mAllocatedBytes;
+    private int mTextureCount;
+    private int mGeneration;
+    private GpuMemoryTracker mAdopter;
+    private int mAdopterGeneration;
+
+    GpuMemoryTracker() {
+    }
+
+    /**
+     * Charges the memory of a new texture.
+     * @return the generation to pass to {@link #free(int, long)} when the texture is deleted
+     */
+    synchronized int allocate(long bytes) {
+        mAllocatedBytes += bytes;
+        mTextureCount++;
+        return mGeneration;
+    }
+
+    /**
+     * Credits the memory of a deleted texture.
+     * @param generation the generation that {@link #allocate(long)} has returned for the texture
+     * @return true if the texture belongs to the current context and must be deleted, false if
+     *         it is gone with a previous context
+     */
+    boolean free(int generation, long bytes) {
+        GpuMemoryTracker adopter;
+        synchronized (this) {
+            if (generation != mGeneration) {
+                return false;
+            }
+            adopter = mAdopter;
+            if (adopter == null) {
+                mAllocatedBytes -= bytes;
+                mTextureCount--;
+                return true;
+            }
+        }
+        return adopter.free(mAdopterGeneration, bytes);
+    }
+
+    /**
+     * Tells if a texture of the given generation belongs to the current context.
+     */
+    boolean isValid(int generation) {
+        GpuMemoryTracker adopter;
+        synchronized (this) {
+            if (generation != mGeneration) {
+                return false;
+            }
+            adopter = mAdopter;
+        }
+        return adopter == null || adopter.isValid(mAdopterGeneration);
+    }
+
+    /**
+     * Forgets all allocations. Must be called when the GL context has been lost, because all
+     * textures are already gone with it.
+     */
+    public synchronized void reset() {
+        mAllocatedBytes = 0;
+        mTextureCount = 0;
+        mGeneration++;
+    }
+
+    /**
+     * Takes over the allocations of another tracker of a context in the same share group, e.g. a
+     * tracker in which a background thread has collected the textures of an effect. Textures
+     * that are deleted later are credited to this tracker. The other tracker must not be used
+     * anymore afterwards.
+     */
+    void adopt(GpuMemoryTracker other) {
+        long bytes;
+        int count;
+        synchronized (other) {
+            bytes = other.mAllocatedBytes;
+            count = other.mTextureCount;
+            other.mAllocatedBytes = 0;
+            other.mTextureCount = 0;
+            other.mAdopter = this;
+            other.mAdopterGeneration = getGeneration();
+        }
+        synchronized (this) {
+            mAllocatedBytes += bytes;
+            mTextureCount += count;
+        }
+    }
+
+    private synchronized int getGeneration() {
+        return mGeneration;
+    }
+
+    /**
+     * Gets the estimated number of bytes of all textures that are currently allocated.
+     */
+    public synchronized long getAllocatedBytes() {
+        return mAllocatedBytes;
+    }
+
+    /**
+     * Gets the number of textures that are currently allocated.
+     */
+    public synchronized int getTextureCount() {
+        return mTextureCount;
+    }
+}
@@ -0,0 +1,480 @@
+/*
+ * Copyright 2016 Mario Guggenberger <mg@protyposis.net>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.protyposis.android.spectaculum.gles;
+
+import android.opengl.GLES20;
+import android.opengl.GLES30;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Measures the time that the GPU spends on the individual passes of the render pipeline.
+ * Renderers bracket their frames with {@link #beginFrame()} and {@link #endFrame()} and the
+ * effects with {@link #beginEffect(String)} and {@link #endEffect()}, and the passes inside an
+ * effect are bracketed with {@link #beginPass(String)} and {@link #endPass()}. Passes can be
+ * nested; the time of a nested pass is only accounted to the nested pass and not to the
+ * enclosing pass.
+ *
+ * Where the GL_EXT_disjoint_timer_query extension is available on a GLES 3.0 context, every pass
+ * is wrapped in a timer query. The query results are collected a few frames later when the GPU has
+ * caught up, so timing does not stall the pipeline, and are then delivered to the
+ * {@link OnPassTimedListener}. Results of frames during which the GPU timer has been disturbed,
+ * e.g. by a frequency change, are discarded.
+ *
+ * Without the extension, timing is only done if the CPU fallback has been enabled with
+ * {@link #setCpuFallbackEnabled(boolean)}, which brackets every pass with {@link GLES20#glFinish()}
+ * and measures the elapsed time on the CPU. This drains the GPU pipeline for every pass and
+ * severely slows down rendering, so it is only meant for diagnostics.
+ *
+ * Without a listener, no timing is done at all and the calls cost nothing.
+ *
+ * Like GL objects, there is one timer per thread that can be obtained with {@link #getCurrent()}.
+ */
+public class GpuTimer {
+
+    private static final String TAG = GpuTimer.class.getSimpleName();
+
+    /* Tokens of GL_EXT_disjoint_timer_query, which are not part of the Android GLES bindings. The
+     * extension functions are aliases of the GLES 3.0 query functions. */
+    private static final int GL_TIME_ELAPSED_EXT = 0x88BF;
+    private static final int GL_GPU_DISJOINT_EXT = 0x8FBB;
+
+    /**
+     * The number of frames whose queries can be pending before the results of the oldest frame
+     * are dropped.
+     */
+    private static final int MAX_PENDING_FRAMES = 4;
+
+    private static final int MAX_PASS_DEPTH = 16;
+
+    private static final int MODE_OFF = 0;
+    private static final int MODE_GPU = 1;
+    private static final int MODE_CPU = 2;
+
+    /**
+     * Listener interface for pass timings.
+     */
+    public interface OnPassTimedListener {
+        /**
+         * Gets called on the GL thread for every pass that has been rendered in a timed frame.
+         * With GPU timing, the calls for a frame arrive a few frames after it has been rendered.
+         * @param frame the number of the frame, counted by the timer
+         * @param effectName the name of the effect that has rendered the pass, or null for a pass
+         *                   of the renderer itself
+         * @param passName the name of the pass, or null for the work of the effect that is not
+         *                 part of any of its passes
+         * @param durationNs the duration of the pass in nanoseconds; if the pass has been rendered
+         *                   multiple times during the frame, the sum of all durations
+         */
+        void onPassTimed(long frame, String effectName, String passName, long durationNs);
+    }
+
+    private static final ThreadLocal<GpuTimer> sCurrent = new ThreadLocal<GpuTimer>() {
+        @Override
+        protected GpuTimer initialValue() {
+            return new GpuTimer();
+        }
+    };
+
+    /**
+     * Gets the timer of the GL context that is current on the calling thread.
+     */
+    public static GpuTimer getCurrent() {
+        return sCurrent.get();
+    }
+
+    /**
+     * Replaces the timer of the calling thread, e.g. while another context that has its own timer
+     * is temporarily made current on the thread.
+     * @param timer the timer to use on the calling thread, or null to create a new timer on the next access
+     */
+    static void setCurrent(GpuTimer timer) {
+        if (timer == null) {
+            sCurrent.remove();
+        } else {
+            sCurrent.set(timer);
+        }
+    }
+
+    /**
+     * The accumulated duration of a pass within a frame.
+     */
+    private static class PassKey {
+        private String mEffectName;
+        private String mPassName;
+        private long mDuration;
+        private boolean mTimed;
+    }
+
+    /**
+     * The queries of a frame and the passes they measure.
+     */
+    private static class FrameQueries {
+        private long mFrame;
+        private int[] mQueries = new int[32];
+        private int[] mKeys = new int[32];
+        private int mCount;
+
+        private void add(int query, int key) {
+            if (mCount == mQueries.length) {
+                mQueries = Arrays.copyOf(mQueries, mCount * 2);
+                mKeys = Arrays.copyOf(mKeys, mCount * 2);
+            }
+            mQueries[mCount] = query;
+            mKeys[mCount] = key;
+            mCount++;
+        }
+    }
+
+    private OnPassTimedListener mListener;
+    private boolean mCpuFallbackEnabled;
+
+    private boolean mSupportChecked;
+    private boolean mGpuTimingSupported;
+    private int mMode;
+    private long mFrame;
+
+    private List<PassKey> mKeys;
+    private String mEffectName;
+    private int[] mStack;
+    private int mDepth;
+    private int mSegmentQuery;
+    private long mSegmentStartTime;
+
+    private FrameQueries[] mPendingFrames;
+    private int mPendingStart;
+    private int mPendingCount;
+    private int[] mFreeQueries;
+    private int mFreeQueryCount;
+    private int[] mQueryResult;
+
+    GpuTimer() {
+        mKeys = new ArrayList<>();
+        mStack = new int[MAX_PASS_DEPTH];
+        mPendingFrames = new FrameQueries[MAX_PENDING_FRAMES + 1]; // +1 for the frame in progress
+        for (int i = 0; i < mPendingFrames.length; i++) {
+            mPendingFrames[i] = new FrameQueries();
+        }
+        mFreeQueries = new int[32];
+        mQueryResult = new int[1];
+    }
+
+    /**
+     * Sets the listener that receives the pass timings, which enables timing. Must be called on
+     * the GL thread.
+     * @param listener the listener, or null to disable timing and delete the queries
+     */
+    public void setListener(OnPassTimedListener listener) {
+        if (listener == null && mListener != null) {
+            delete();
+        }
+        mListener = listener;
+    }
+
+    /**
+     * Enables CPU-side timing with {@link GLES20#glFinish()} when GPU timer queries are not
+     * supported. Disabled by default because it severely slows down rendering.
+     */
+    public void setCpuFallbackEnabled(boolean enabled) {
+        mCpuFallbackEnabled = enabled;
+    }
+
+    /**
+     * Tells if the GPU timer queries are supported by the current context. Must be called on the
+     * GL thread.
+     */
+    public boolean isGpuTimingSupported() {
+        if (!mSupportChecked) {
+            mGpuTimingSupported = GLUtils.HAS_GLES30_CONTEXT
+                    && GLUtils.checkExtension("GL_EXT_disjoint_timer_query");
+            mSupportChecked = true;
+            Log.d(TAG, "GPU timer queries " + (mGpuTimingSupported ? "supported" : "not supported"));
+        }
+        return mGpuTimingSupported;
+    }
+
+    /**
+     * Starts a frame and delivers the timings of previous frames whose results have become
+     * available.
+     */
+    public void beginFrame() {
+        if (mListener == null) {
+            mMode = MODE_OFF;
+            return;
+        }
+
+        mMode = isGpuTimingSupported() ? MODE_GPU : mCpuFallbackEnabled ? MODE_CPU : MODE_OFF;
+        if (mMode == MODE_GPU) {
+            collect();
+            if (mPendingCount == MAX_PENDING_FRAMES) {
+                // The GPU has fallen too far behind, give up on the oldest frame
+                recycle(mPendingFrames[mPendingStart]);
+                mPendingStart = (mPendingStart + 1) % mPendingFrames.length;
+                mPendingCount--;
+            }
+            FrameQueries frame = mPendingFrames[(mPendingStart + mPendingCount) % mPendingFrames.length];
+            recycle(frame); // in case the previous frame has not been ended
+            frame.mFrame = mFrame;
+        }
+
+        mEffectName = null;
+        mDepth = 0;
+    }
+
+    /**
+     * Ends a frame. With CPU timing, the timings of the frame are delivered right away.
+     */
+    public void endFrame() {
+        if (mMode == MODE_OFF) {
+            return;
+        }
+
+        if (mDepth > 0) {
+            // A pass has not been ended, e.g. because rendering has failed
+            Log.w(TAG, "unbalanced pass " + mKeys.get(mStack[mDepth - 1]).mPassName);
+            endSegment();
+            mDepth = 0;
+        }
+
+        if (mMode == MODE_GPU) {
+            mPendingCount++;
+        } else {
+            deliver(mFrame);
+        }
+        mFrame++;
+        mMode = MODE_OFF;
+    }
+
+    /**
+     * Starts the work of an effect. Passes until {@link #endEffect()} are accounted to the effect.
+     */
+    public void beginEffect(String effectName) {
+        if (mMode == MODE_OFF) {
+            return;
+        }
+        mEffectName = effectName;
+        push(getKey(effectName, null));
+    }
+
+    /**
+     * Ends the work of an effect.
+     */
+    public void endEffect() {
+        if (mMode == MODE_OFF) {
+            return;
+        }
+        pop();
+        mEffectName = null;
+    }
+
+    /**
+     * Starts a pass of the current effect.
+     * @param passName the name of the pass, which should be a constant to avoid allocations
+     */
+    public void beginPass(String passName) {
+        if (mMode == MODE_OFF) {
+            return;
+        }
+        push(getKey(mEffectName, passName));
+    }
+
+    /**
+     * Ends the pass that has been started last.
+     */
+    public void endPass() {
+        if (mMode == MODE_OFF) {
+            return;
+        }
+        pop();
+    }
+
+    /**
+     * Deletes all queries and drops pending results.
+     */
+    public void delete() {
+        for (int i = 0; i < mPendingCount; i++) {
+            recycle(mPendingFrames[(mPendingStart + i) % mPendingFrames.length]);
+        }
+        if (mFreeQueryCount > 0) {
+            GLES30.glDeleteQueries(mFreeQueryCount, mFreeQueries, 0);
+        }
+        reset();
+    }
+
+    /**
+     * Forgets all queries and pending results without deleting them. Must be called when the
+     * GL context has been lost, because all GL objects are already gone with it.
+     */
+    public void reset() {
+        mPendingStart = 0;
+        mPendingCount = 0;
+        mFreeQueryCount = 0;
+        mDepth = 0;
+        mMode = MODE_OFF;
+        mSupportChecked = false;
+        for (PassKey key : mKeys) {
+            key.mDuration = 0;
+            key.mTimed = false;
+        }
+    }
+
+    private void push(int key) {
+        if (mDepth == MAX_PASS_DEPTH) {
+            throw new IllegalStateException("passes nested too deep");
+        }
+        if (mDepth > 0) {
+            // Suspend the enclosing pass
+            endSegment();
+        }
+        mStack[mDepth++] = key;
+        beginSegment();
+    }
+
+    private void pop() {
+        if (mDepth == 0) {
+            throw new IllegalStateException("no pass has been started");
+        }
+        endSegment();
+        mDepth--;
+        if (mDepth > 0) {
+            // Resume the enclosing pass
+            beginSegment();
+        }
+    }
+
+    private void beginSegment() {
+        if (mMode == MODE_GPU) {
+            mSegmentQuery = obtainQuery();
+            GLES30.glBeginQuery(GL_TIME_ELAPSED_EXT, mSegmentQuery);
+        } else {
+            GLES20.glFinish();
+            mSegmentStartTime = System.nanoTime();
+        }
+    }
+
+    private void endSegment() {
+        int key = mStack[mDepth - 1];
+        if (mMode == MODE_GPU) {
+            GLES30.glEndQuery(GL_TIME_ELAPSED_EXT);
+            mPendingFrames[(mPendingStart + mPendingCount) % mPendingFrames.length].add(mSegmentQuery, key);
+        } else {
+            GLES20.glFinish();
+            accumulate(key, System.nanoTime() - mSegmentStartTime);
+        }
+    }
+
+    /**
+     * Reads the results of the pending frames whose queries have completed and delivers them.
+     */
+    private void collect() {
+        if (mPendingCount == 0) {
+            return;
+        }
+
+        GLES20.glGetIntegerv(GL_GPU_DISJOINT_EXT, mQueryResult, 0);
+        if (mQueryResult[0] != 0) {
+            // The results of all queries in flight are undefined
+            Log.d(TAG, "GPU timer disjoint, dropping " + mPendingCount + " frames");
+            while (mPendingCount > 0) {
+                recycle(mPendingFrames[mPendingStart]);
+                mPendingStart = (mPendingStart + 1) % mPendingFrames.length;
+                mPendingCount--;
+            }
+            return;
+        }
+
+        while (mPendingCount > 0) {
+            FrameQueries frame = mPendingFrames[mPendingStart];
+            if (frame.mCount > 0) {
+                // Queries complete in order, so the frame is complete when its last query is
+                GLES30.glGetQueryObjectuiv(frame.mQueries[frame.mCount - 1],
+                        GLES30.GL_QUERY_RESULT_AVAILABLE, mQueryResult, 0);
+                if (mQueryResult[0] == 0) {
+                    break;
+                }
+                for (int i = 0; i < frame.mCount; i++) {
+                    GLES30.glGetQueryObjectuiv(frame.mQueries[i], GLES30.GL_QUERY_RESULT, mQueryResult, 0);
+                    accumulate(frame.mKeys[i], mQueryResult[0] & 0xFFFFFFFFL);
+                }
+                recycle(frame);
+                deliver(frame.mFrame);
+            }
+            mPendingStart = (mPendingStart + 1) % mPendingFrames.length;
+            mPendingCount--;
+        }
+    }
+
+    private void accumulate(int key, long duration) {
+        PassKey passKey = mKeys.get(key);
+        passKey.mDuration += duration;
+        passKey.mTimed = true;
+    }
+
+    private void deliver(long frame) {
+        for (int i = 0; i < mKeys.size(); i++) {
+            PassKey key = mKeys.get(i);
+            if (key.mTimed) {
+                if (mListener != null) {
+                    mListener.onPassTimed(frame, key.mEffectName, key.mPassName, key.mDuration);
+                }
+                key.mDuration = 0;
+                key.mTimed = false;
+            }
+        }
+    }
+
+    private int getKey(String effectName, String passName) {
+        for (int i = 0; i < mKeys.size(); i++) {
+            PassKey key = mKeys.get(i);
+            if (equals(key.mEffectName, effectName) && equals(key.mPassName, passName)) {
+                return i;
+            }
+        }
+        PassKey key = new PassKey();
+        key.mEffectName = effectName;
+        key.mPassName = passName;
+        mKeys.add(key);
+        return mKeys.size() - 1;
+    }
+
+    private int obtainQuery() {
+        if (mFreeQueryCount == 0) {
+            GLES30.glGenQueries(1, mQueryResult, 0);
+            return mQueryResult[0];
+        }
+        return mFreeQueries[--mFreeQueryCount];
+    }
+
+    /**
+     * Returns the queries of a frame to the free queries.
+     */
+    private void recycle(FrameQueries frame) {
+        if (mFreeQueryCount + frame.mCount > mFreeQueries.length) {
+            mFreeQueries = Arrays.copyOf(mFreeQueries, (mFreeQueryCount + frame.mCount) * 2);
+        }
+        System.arraycopy(frame.mQueries, 0, mFreeQueries, mFreeQueryCount, frame.mCount);
+        mFreeQueryCount += frame.mCount;
+        frame.mCount = 0;
+    }
+
+    private static boolean equals(String a, String b) {
+        return a == null ? b == null : a.equals(b);
+    }
+}
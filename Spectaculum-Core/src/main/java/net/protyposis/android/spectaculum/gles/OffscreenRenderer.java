@@ -0,0 +1,259 @@
+/*
+ * Copyright 2016 Mario Guggenberger <mg@protyposis.net>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.protyposis.android.spectaculum.gles;
+
+import android.annotation.TargetApi;
+import android.graphics.Bitmap;
+import android.opengl.GLES20;
+import android.os.Build;
+import android.util.Log;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+import net.protyposis.android.spectaculum.effects.Effect;
+
+/**
+ * Renders effects into an offscreen framebuffer without a {@link android.opengl.GLSurfaceView}
+ * or any other window, e.g. for processing images on a worker thread or for automated tests.
+ *
+ * The renderer owns its own {@link GLContext}, which is created current on the thread that
+ * constructs the renderer, and all methods must be called from that thread. Because the
+ * framebuffer pool is per thread (see {@link FramebufferPool#getCurrent()}), a thread can only
+ * drive one renderer at a time, and not a renderer and a GLSurfaceView.
+ *
+ * Effects are bound to the context they are initialized in, so an effect that is rendered
+ * by an offscreen renderer cannot be used in another renderer or a view at the same time.
+ * Without a parameter handler, parameter changes are applied directly on the calling thread,
+ * which must therefore also be the thread of the renderer.
+ *
+ * Pixels are read in the same row order as the input bitmap, so a rendered bitmap comes out
+ * upright without flipping.
+ */
+@TargetApi(Build.VERSION_CODES.JELLY_BEAN_MR2)
+public class OffscreenRenderer {
+
+    private static final String TAG = OffscreenRenderer.class.getSimpleName();
+
+    private Thread mThread;
+    private GLContext mContext;
+    private int mWidth;
+    private int mHeight;
+
+    private TexturedRectangle mTexturedRectangle;
+    private TextureShaderProgram mCopyShaderProgram;
+    private Texture2D mInputTexture;
+    private Framebuffer mOutput;
+    private ByteBuffer mPixelBuffer;
+
+    private Effect mEffect;
+
+    /**
+     * Creates a renderer with its own GL context and an output of the given resolution.
+     * @param width the width of the output and the processing resolution of the effects
+     * @param height the height of the output and the processing resolution of the effects
+     */
+    public OffscreenRenderer(int width, int height) {
+        mThread = Thread.currentThread();
+        mWidth = width;
+        mHeight = height;
+
+        mContext = new GLContext();
+        mContext.makeCurrent();
+        GLUtils.init();
+
+        // Framebuffers and programs of a previous context on this thread are not valid in the new context
+        ResourceRestoreManager.resetContextResources();
+
+        // The output has a fixed 8 bit format, because float formats cannot be read back in GLES2
+        mOutput = FramebufferPool.getCurrent().obtain(width, height, GLES20.GL_RGBA);
+        mTexturedRectangle = new TexturedRectangle();
+        mTexturedRectangle.reset();
+        mCopyShaderProgram = new TextureShaderProgram();
+
+        GLState.getCurrent().viewport(0, 0, width, height);
+
+        Log.d(TAG, "offscreen renderer created " + width + "x" + height);
+    }
+
+    private void checkThread() {
+        if (Thread.currentThread() != mThread) {
+            throw new IllegalStateException("offscreen renderer must be used on the thread that created it");
+        }
+        if (mContext == null) {
+            throw new IllegalStateException("offscreen renderer has been released");
+        }
+    }
+
+    public int getWidth() {
+        return mWidth;
+    }
+
+    public int getHeight() {
+        return mHeight;
+    }
+
+    /**
+     * Changes the resolution of the output. The effect is resized to the new resolution.
+     */
+    public void setSize(int width, int height) {
+        checkThread();
+        if (width == mWidth && height == mHeight) {
+            return;
+        }
+        mWidth = width;
+        mHeight = height;
+
+        FramebufferPool framebufferPool = FramebufferPool.getCurrent();
+        framebufferPool.release(mOutput);
+        framebufferPool.trim();
+        mOutput = framebufferPool.obtain(width, height, GLES20.GL_RGBA);
+        mPixelBuffer = null;
+        GLState.getCurrent().viewport(0, 0, width, height);
+
+        if (mEffect != null) {
+            mEffect.resize(width, height);
+        }
+    }
+
+    /**
+     * Gets the output framebuffer, which is owned by the renderer and overwritten by every render call.
+     */
+    public Framebuffer getOutput() {
+        return mOutput;
+    }
+
+    /**
+     * Sets the effect that is applied when rendering, and initializes it in the context of this
+     * renderer at the output resolution.
+     * @param effect the effect to apply, or null to copy the input to the output unchanged
+     */
+    public void setEffect(Effect effect) {
+        checkThread();
+        if (effect != null && effect != mEffect) {
+            Log.d(TAG, "initializing effect " + effect.getName());
+            effect.init(mWidth, mHeight);
+        }
+        mEffect = effect;
+    }
+
+    public Effect getEffect() {
+        return mEffect;
+    }
+
+    /**
+     * Renders a texture of the context of this renderer through the effect into the output.
+     * The texture is scaled to the output resolution.
+     * @param source the input texture
+     * @return the output framebuffer, which is owned by the renderer and overwritten by the next render call
+     */
+    public Framebuffer render(Texture2D source) {
+        checkThread();
+        QuadVertexBuffer.getCurrent().invalidate();
+        GLState.getCurrent().invalidate();
+        GLValidator.getInstalled().beginFrame();
+        if (mEffect != null) {
+            mEffect.applyParameterValues();
+        }
+        if (mEffect == null) {
+            mOutput.bind();
+            mCopyShaderProgram.use();
+            mCopyShaderProgram.setTexture(source);
+            mTexturedRectangle.draw(mCopyShaderProgram);
+        } else {
+            mEffect.apply(source, mOutput);
+        }
+        if (GLValidator.getInstalled().endFrame()) {
+            // Render again to let the validator find the failing operation
+            return render(source);
+        }
+        return mOutput;
+    }
+
+    /**
+     * Uploads a bitmap and renders it through the effect into the output. The input texture is
+     * reused as long as consecutive bitmaps have the same dimensions.
+     * @param source the input bitmap
+     * @return the output framebuffer, which is owned by the renderer and overwritten by the next render call
+     */
+    public Framebuffer render(Bitmap source) {
+        checkThread();
+        if (mInputTexture != null && mInputTexture.getWidth() == source.getWidth()
+                && mInputTexture.getHeight() == source.getHeight()) {
+            GLState.getCurrent().bindTexture(GLES20.GL_TEXTURE_2D, mInputTexture.getHandle());
+            android.opengl.GLUtils.texSubImage2D(GLES20.GL_TEXTURE_2D, 0, 0, 0, source);
+            GLState.getCurrent().bindTexture(GLES20.GL_TEXTURE_2D, 0);
+        } else {
+            if (mInputTexture != null) {
+                mInputTexture.delete();
+            }
+            mInputTexture = new Texture2D(source);
+        }
+        GLUtils.checkError("OffscreenRenderer upload");
+        return render(mInputTexture);
+    }
+
+    /**
+     * Reads the pixels of the output in RGBA byte order into a buffer.
+     * @param buffer a direct buffer with a capacity of at least width * height * 4 bytes
+     */
+    public void readPixels(ByteBuffer buffer) {
+        checkThread();
+        mOutput.bind(false);
+        GLES20.glReadPixels(0, 0, mWidth, mHeight, GLES20.GL_RGBA, GLES20.GL_UNSIGNED_BYTE, buffer);
+        GLUtils.checkError("glReadPixels");
+    }
+
+    /**
+     * Reads the output into a new bitmap.
+     */
+    public Bitmap readBitmap() {
+        if (mPixelBuffer == null) {
+            mPixelBuffer = ByteBuffer.allocateDirect(mWidth * mHeight * 4).order(ByteOrder.LITTLE_ENDIAN);
+        }
+        mPixelBuffer.rewind();
+        readPixels(mPixelBuffer);
+        mPixelBuffer.rewind();
+
+        Bitmap bitmap = Bitmap.createBitmap(mWidth, mHeight, Bitmap.Config.ARGB_8888);
+        bitmap.copyPixelsFromBuffer(mPixelBuffer);
+        return bitmap;
+    }
+
+    /**
+     * Deletes all GL resources and destroys the context. Effects that have been rendered by this
+     * renderer must not be used anymore afterwards.
+     */
+    public void release() {
+        checkThread();
+        if (mInputTexture != null) {
+            mInputTexture.delete();
+            mInputTexture = null;
+        }
+        mCopyShaderProgram.deleteProgram();
+        FramebufferPool framebufferPool = FramebufferPool.getCurrent();
+        framebufferPool.release(mOutput);
+        framebufferPool.trim();
+        ResourceRestoreManager.resetContextResources();
+        mOutput = null;
+        mEffect = null;
+
+        mContext.release();
+        mContext = null;
+        Log.d(TAG, "offscreen renderer released");
+    }
+}
@@ -0,0 +1,308 @@
+/*
+ * Copyright 2016 Mario Guggenberger <mg@protyposis.net>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.protyposis.android.spectaculum.gles;
+
+import android.annotation.TargetApi;
+import android.opengl.GLES20;
+import android.opengl.GLES30;
+import android.os.Build;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.util.Log;
+
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * A persistent cache of linked program binaries in a directory on disk, which saves the
+ * compilation and linking of shader programs across context losses and app restarts. The cache
+ * is disabled until a directory is set with {@link #setDirectory(File)}, and it requires a
+ * GLES 3.0 context; otherwise programs are always compiled from source.
+ *
+ * Program binaries are only valid for the driver that has created them, so the binaries are
+ * stored in a subdirectory that is identified by the GL renderer, the GL version string, which
+ * contains the driver version, the system build, and the version of the linking procedure. Binaries of other drivers are deleted
+ * when the cache is first used with a new driver. Within the subdirectory, the binaries are
+ * identified by a hash of their shader code. A binary that the driver rejects is deleted and
+ * the program is compiled from source.
+ *
+ * Binaries are read on the GL thread when a program is created, and written in the background.
+ */
+@TargetApi(Build.VERSION_CODES.JELLY_BEAN_MR2)
+public class ProgramBinaryCache {
+
+    private static final String TAG = ProgramBinaryCache.class.getSimpleName();
+
+    private static final String FILE_EXTENSION = ".bin";
+
+    /**
+     * The version of the way programs are linked, which must be incremented whenever it changes
+     * (e.g. fixed attribute locations), so binaries linked the previous way are discarded.
+     */
+    private static final int LINK_VERSION = 2;
+
+    private static File sDirectory;
+    private static File sDriverDirectory;
+    private static HandlerThread sWriteThread;
+    private static Handler sWriteHandler;
+
+    /**
+     * Sets the directory where program binaries are stored and enables the cache. The directory
+     * should be exclusively used by the cache, e.g. a subdirectory of the app's cache directory.
+     * @param directory the cache directory, or null to disable the cache
+     */
+    public static synchronized void setDirectory(File directory) {
+        sDirectory = directory;
+        sDriverDirectory = null;
+    }
+
+    public static synchronized File getDirectory() {
+        return sDirectory;
+    }
+
+    /**
+     * Deletes all stored program binaries.
+     */
+    public static synchronized void clear() {
+        if (sDirectory != null) {
+            delete(sDirectory);
+            sDriverDirectory = null;
+        }
+    }
+
+    /**
+     * Tells if program binaries can be stored and loaded in the context that is current on the
+     * calling thread.
+     */
+    static boolean isEnabled() {
+        if (!GLUtils.HAS_GLES30_CONTEXT || getDirectory() == null) {
+            return false;
+        }
+        int[] formatCount = new int[1];
+        GLES20.glGetIntegerv(GLES30.GL_NUM_PROGRAM_BINARY_FORMATS, formatCount, 0);
+        return formatCount[0] > 0;
+    }
+
+    /**
+     * Creates a program from a stored binary of the given shader code.
+     * @return the handle of the linked program, or 0 if no valid binary is stored
+     */
+    static int load(String vertexShaderCode, String fragmentShaderCode) {
+        File file = getFile(vertexShaderCode, fragmentShaderCode);
+        if (file == null || !file.exists()) {
+            return 0;
+        }
+        long length = file.length();
+        if (length < 4) {
+            // Truncated, e.g. by a crash while it was stored, and cannot even hold the binary format
+            Log.w(TAG, "program binary " + file.getName() + " truncated");
+            file.delete();
+            return 0;
+        }
+
+        int binaryFormat;
+        ByteBuffer binary;
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new FileInputStream(file));
+            binaryFormat = in.readInt();
+            byte[] bytes = new byte[(int) length - 4];
+            in.readFully(bytes);
+            binary = ByteBuffer.allocateDirect(bytes.length).order(ByteOrder.nativeOrder());
+            binary.put(bytes).rewind();
+        } catch (IOException e) {
+            Log.w(TAG, "error reading program binary " + file.getName(), e);
+            file.delete();
+            return 0;
+        } finally {
+            close(in);
+        }
+
+        int programHandle = GLES20.glCreateProgram();
+        GLES30.glProgramBinary(programHandle, binaryFormat, binary, binary.capacity());
+
+        int[] linkStatus = new int[1];
+        GLES20.glGetProgramiv(programHandle, GLES20.GL_LINK_STATUS, linkStatus, 0);
+        if (linkStatus[0] != GLES20.GL_TRUE) {
+            // The driver does not accept the binary anymore, e.g. after a driver update that has
+            // not changed the version string
+            Log.w(TAG, "program binary " + file.getName() + " rejected");
+            GLES20.glDeleteProgram(programHandle);
+            GLUtils.clearError();
+            file.delete();
+            return 0;
+        }
+
+        return programHandle;
+    }
+
+    /**
+     * Prepares a program before linking so that its binary can be retrieved after linking.
+     */
+    static void prepare(int programHandle) {
+        GLES30.glProgramParameteri(programHandle, GLES30.GL_PROGRAM_BINARY_RETRIEVABLE_HINT, GLES20.GL_TRUE);
+    }
+
+    /**
+     * Retrieves the binary of a linked program and stores it in the background.
+     */
+    static void store(String vertexShaderCode, String fragmentShaderCode, int programHandle) {
+        final File file = getFile(vertexShaderCode, fragmentShaderCode);
+        if (file == null) {
+            return;
+        }
+
+        int[] length = new int[1];
+        int[] binaryFormat = new int[1];
+        GLES20.glGetProgramiv(programHandle, GLES30.GL_PROGRAM_BINARY_LENGTH, length, 0);
+        if (length[0] == 0) {
+            return;
+        }
+        final ByteBuffer binary = ByteBuffer.allocateDirect(length[0]).order(ByteOrder.nativeOrder());
+        GLES30.glGetProgramBinary(programHandle, length[0], length, 0, binaryFormat, 0, binary);
+        GLUtils.checkError("glGetProgramBinary");
+        final int format = binaryFormat[0];
+        final int size = length[0];
+
+        getWriteHandler().post(new Runnable() {
+            @Override
+            public void run() {
+                byte[] bytes = new byte[size];
+                binary.get(bytes);
+
+                // Write into a temporary file first, so a concurrent or interrupted write can
+                // never leave a truncated binary behind
+                File tempFile = new File(file.getPath() + ".tmp");
+                DataOutputStream out = null;
+                try {
+                    out = new DataOutputStream(new FileOutputStream(tempFile));
+                    out.writeInt(format);
+                    out.write(bytes);
+                    out.close();
+                    out = null;
+                    if (!tempFile.renameTo(file)) {
+                        throw new IOException("cannot rename " + tempFile);
+                    }
+                } catch (IOException e) {
+                    Log.w(TAG, "error writing program binary " + file.getName(), e);
+                    tempFile.delete();
+                } finally {
+                    close(out);
+                }
+            }
+        });
+    }
+
+    /**
+     * Gets the file of the binary of a program, or null if the cache is disabled.
+     */
+    private static File getFile(String vertexShaderCode, String fragmentShaderCode) {
+        File driverDirectory = getDriverDirectory();
+        if (driverDirectory == null) {
+            return null;
+        }
+        return new File(driverDirectory, hash(vertexShaderCode + '\0' + fragmentShaderCode) + FILE_EXTENSION);
+    }
+
+    /**
+     * Gets the subdirectory of the current driver, and deletes the subdirectories of other
+     * drivers when it is first used. Must be called on a GL thread.
+     */
+    private static synchronized File getDriverDirectory() {
+        if (sDirectory == null) {
+            return null;
+        }
+
+        if (sDriverDirectory == null) {
+            String driver = LINK_VERSION
+                    + '\0' + GLES20.glGetString(GLES20.GL_RENDERER)
+                    + '\0' + GLES20.glGetString(GLES20.GL_VERSION)
+                    + '\0' + Build.FINGERPRINT;
+            File driverDirectory = new File(sDirectory, hash(driver));
+
+            File[] files = sDirectory.listFiles();
+            if (files != null) {
+                for (File file : files) {
+                    if (!file.equals(driverDirectory)) {
+                        Log.d(TAG, "deleting outdated program binaries " + file.getName());
+                        delete(file);
+                    }
+                }
+            }
+
+            if (!driverDirectory.isDirectory() && !driverDirectory.mkdirs()) {
+                Log.w(TAG, "cannot create program binary directory " + driverDirectory);
+                return null;
+            }
+            sDriverDirectory = driverDirectory;
+        }
+
+        return sDriverDirectory;
+    }
+
+    private static synchronized Handler getWriteHandler() {
+        if (sWriteThread == null) {
+            sWriteThread = new HandlerThread(TAG);
+            sWriteThread.setDaemon(true);
+            sWriteThread.start();
+            sWriteHandler = new Handler(sWriteThread.getLooper());
+        }
+        return sWriteHandler;
+    }
+
+    private static String hash(String text) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-1").digest(text.getBytes("UTF-8"));
+            StringBuilder sb = new StringBuilder(digest.length * 2);
+            for (byte b : digest) {
+                sb.append(String.format("%02x", b));
+            }
+            return sb.toString();
+        } catch (NoSuchAlgorithmException | IOException e) {
+            throw new RuntimeException("cannot hash program code", e);
+        }
+    }
+
+    private static void delete(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+
+    private static void close(Closeable closeable) {
+        if (closeable != null) {
+            try {
+                closeable.close();
+            } catch (IOException e) {
+                // nothing to do
+            }
+        }
+    }
+}
@@ -0,0 +1,238 @@
+/*
+ * Copyright 2016 Mario Guggenberger <mg@protyposis.net>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.protyposis.android.spectaculum.gles;
+
+import android.opengl.GLES20;
+import android.opengl.GLES30;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+
+/**
+ * The vertices of the full-screen quad that all passes of the render pipeline are drawn with,
+ * stored once per GL context in a static vertex buffer object. On a GLES 3.0 context, the vertex
+ * attribute setup is additionally recorded in a vertex array object.
+ *
+ * All programs have their position and texture coordinate attributes bound to the fixed
+ * locations {@link #ATTRIBUTE_POSITION} and {@link #ATTRIBUTE_TEXTURE_COORD} before linking
+ * (see {@link ShaderProgram}), so the attribute setup is the same for every program and only
+ * needs to be done once. After the quad has been bound, further passes only issue their draw
+ * calls, until the vertex attribute state is changed by someone else and the quad is
+ * {@link #invalidate() invalidated}.
+ *
+ * Like GL objects, there is one buffer per thread that can be obtained with {@link #getCurrent()}.
+ */
+public class QuadVertexBuffer {
+
+    /**
+     * The location of the a_Position attribute in all programs.
+     */
+    public static final int ATTRIBUTE_POSITION = 0;
+
+    /**
+     * The location of the a_TextureCoord attribute in all programs.
+     */
+    public static final int ATTRIBUTE_TEXTURE_COORD = 1;
+
+    private static final int BYTES_PER_FLOAT = 4;
+    private static final int STRIDE_BYTES = 5 * BYTES_PER_FLOAT;
+    private static final int POSITION_OFFSET_BYTES = 0;
+    private static final int POSITION_DATA_SIZE = 3;
+    private static final int UV_OFFSET_BYTES = 3 * BYTES_PER_FLOAT;
+    private static final int UV_DATA_SIZE = 2;
+
+    private static final float[] VERTICES = {
+            // X, Y, Z,
+            // U, V
+            -1.0f, -1.0f, 0.0f,
+            0.0f, 0.0f,
+
+            1.0f, -1.0f, 0.0f,
+            1.0f, 0.0f,
+
+            -1.0f, 1.0f, 0.0f,
+            0.0f, 1.0f,
+
+            1.0f, 1.0f, 0.0f,
+            1.0f, 1.0f
+    };
+
+    /**
+     * The number of vertices to draw the quad as a triangle strip.
+     */
+    public static final int VERTEX_COUNT = 4;
+
+    private static final ThreadLocal<QuadVertexBuffer> sCurrent = new ThreadLocal<QuadVertexBuffer>() {
+        @Override
+        protected QuadVertexBuffer initialValue() {
+            return new QuadVertexBuffer();
+        }
+    };
+
+    /**
+     * Gets the quad of the GL context that is current on the calling thread.
+     */
+    public static QuadVertexBuffer getCurrent() {
+        return sCurrent.get();
+    }
+
+    /**
+     * Replaces the quad of the calling thread, e.g. while another context that has its own quad
+     * is temporarily made current on the thread.
+     * @param quad the quad to use on the calling thread, or null to create a new quad on the next access
+     */
+    static void setCurrent(QuadVertexBuffer quad) {
+        if (quad == null) {
+            sCurrent.remove();
+        } else {
+            sCurrent.set(quad);
+        }
+    }
+
+    private int mBuffer;
+    private int mVertexArray;
+    private boolean mBound;
+
+    QuadVertexBuffer() {
+    }
+
+    /**
+     * Binds the quad for drawing with a program, unless it is still bound. Programs whose
+     * attributes are not at the fixed locations get their attributes set up individually.
+     */
+    public void bind(TextureShaderProgram program) {
+        if (!isAtFixedLocation(program.mPositionHandle, ATTRIBUTE_POSITION)
+                || !isAtFixedLocation(program.mTextureCoordHandle, ATTRIBUTE_TEXTURE_COORD)) {
+            // A program that has been linked without the fixed locations, e.g. from an outdated
+            // binary; set up its attributes in the default vertex array and rebind for the next one
+            unbind();
+            GLES20.glBindBuffer(GLES20.GL_ARRAY_BUFFER, getBuffer());
+            setupAttributes(program.mPositionHandle, program.mTextureCoordHandle);
+            GLES20.glBindBuffer(GLES20.GL_ARRAY_BUFFER, 0);
+            return;
+        }
+
+        if (mBound) {
+            return;
+        }
+
+        if (mVertexArray == 0 && GLUtils.HAS_GLES30_CONTEXT) {
+            int[] vertexArray = new int[1];
+            GLES30.glGenVertexArrays(1, vertexArray, 0);
+            mVertexArray = vertexArray[0];
+            GLES30.glBindVertexArray(mVertexArray);
+            GLES20.glBindBuffer(GLES20.GL_ARRAY_BUFFER, getBuffer());
+            setupAttributes(ATTRIBUTE_POSITION, ATTRIBUTE_TEXTURE_COORD);
+        } else if (mVertexArray != 0) {
+            GLES30.glBindVertexArray(mVertexArray);
+        } else {
+            GLES20.glBindBuffer(GLES20.GL_ARRAY_BUFFER, getBuffer());
+            setupAttributes(ATTRIBUTE_POSITION, ATTRIBUTE_TEXTURE_COORD);
+        }
+        // The attribute pointers keep referencing the buffer, the binding point can be cleared
+        GLES20.glBindBuffer(GLES20.GL_ARRAY_BUFFER, 0);
+        mBound = true;
+
+        GLUtils.checkError("QuadVertexBuffer.bind");
+    }
+
+    /**
+     * Unbinds the quad and restores the default vertex array, e.g. to draw from client-side
+     * vertex arrays, which cannot be used with a vertex array object.
+     */
+    public void unbind() {
+        if (mVertexArray != 0) {
+            GLES30.glBindVertexArray(0);
+        }
+        mBound = false;
+    }
+
+    /**
+     * Forgets that the quad is bound, so it is bound again before the next draw call. Must be
+     * called when the vertex attribute state of the context may have been changed by someone
+     * else, which is why it is called at the start of every frame.
+     */
+    public void invalidate() {
+        mBound = false;
+    }
+
+    /**
+     * Deletes the buffer and the vertex array.
+     */
+    public void delete() {
+        if (mVertexArray != 0) {
+            GLES30.glBindVertexArray(0);
+            GLES30.glDeleteVertexArrays(1, new int[] { mVertexArray }, 0);
+            mVertexArray = 0;
+        }
+        if (mBuffer != 0) {
+            GLES20.glDeleteBuffers(1, new int[] { mBuffer }, 0);
+            mBuffer = 0;
+        }
+        mBound = false;
+    }
+
+    /**
+     * Forgets the buffer and the vertex array without deleting them. Must be called when the GL
+     * context has been lost, because all GL objects are already gone with it.
+     */
+    public void reset() {
+        mBuffer = 0;
+        mVertexArray = 0;
+        mBound = false;
+    }
+
+    private int getBuffer() {
+        if (mBuffer == 0) {
+            FloatBuffer vertices = ByteBuffer.allocateDirect(VERTICES.length * BYTES_PER_FLOAT)
+                    .order(ByteOrder.nativeOrder())
+                    .asFloatBuffer();
+            vertices.put(VERTICES).position(0);
+
+            int[] buffer = new int[1];
+            GLES20.glGenBuffers(1, buffer, 0);
+            mBuffer = buffer[0];
+            GLES20.glBindBuffer(GLES20.GL_ARRAY_BUFFER, mBuffer);
+            GLES20.glBufferData(GLES20.GL_ARRAY_BUFFER, VERTICES.length * BYTES_PER_FLOAT,
+                    vertices, GLES20.GL_STATIC_DRAW);
+            GLUtils.checkError("QuadVertexBuffer");
+        }
+        return mBuffer;
+    }
+
+    /**
+     * Points the attributes at the bound buffer. Attributes that are not active have no location
+     * and are skipped.
+     */
+    private static void setupAttributes(int positionLocation, int textureCoordLocation) {
+        if (positionLocation != -1) {
+            GLES20.glVertexAttribPointer(positionLocation, POSITION_DATA_SIZE,
+                    GLES20.GL_FLOAT, false, STRIDE_BYTES, POSITION_OFFSET_BYTES);
+            GLES20.glEnableVertexAttribArray(positionLocation);
+        }
+        if (textureCoordLocation != -1) {
+            GLES20.glVertexAttribPointer(textureCoordLocation, UV_DATA_SIZE,
+                    GLES20.GL_FLOAT, false, STRIDE_BYTES, UV_OFFSET_BYTES);
+            GLES20.glEnableVertexAttribArray(textureCoordLocation);
+        }
+    }
+
+    private static boolean isAtFixedLocation(int location, int fixedLocation) {
+        return location == -1 || location == fixedLocation;
+    }
+}
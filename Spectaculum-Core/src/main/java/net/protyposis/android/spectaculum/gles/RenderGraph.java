@@ -0,0 +1,341 @@
+/*
+ * Copyright 2016 Mario Guggenberger <mg@protyposis.net>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.protyposis.android.spectaculum.gles;
+
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A graph of render passes that read from and write to virtual resources. Passes are declared
+ * with their inputs and their output, and the graph is then compiled, which
+ * <ul>
+ *     <li>removes passes whose output does not contribute to the target,</li>
+ *     <li>orders the passes so that every intermediate result is consumed as soon as possible
+ *     after it has been produced, which keeps the number of simultaneously alive intermediates low, and</li>
+ *     <li>computes the lifetime of every intermediate resource and aliases intermediates with
+ *     non-overlapping lifetimes onto the same physical framebuffer.</li>
+ * </ul>
+ * The physical framebuffers are leased from the {@link FramebufferPool} for the duration of
+ * an {@link #execute(Texture2D, Framebuffer)} call.
+ *
+ * Every graph has two external resources, the source texture and the target framebuffer, which
+ * are supplied at execution time. All other resources are transient intermediates that only
+ * exist during execution. Every resource can only be written by a single pass.
+ */
+public class RenderGraph {
+
+    private static final String TAG = RenderGraph.class.getSimpleName();
+
+    /**
+     * Callback that executes the rendering of a pass.
+     */
+    public interface PassCallback {
+        /**
+         * Renders the pass.
+         * @param inputs the input textures in the order in which they have been declared
+         * @param target the target framebuffer to render into
+         */
+        void render(Texture2D[] inputs, Framebuffer target);
+    }
+
+    /**
+     * A virtual resource of the graph.
+     */
+    public static class Resource {
+        private int mWidth;
+        private int mHeight;
+        private Pass mWriter;
+
+        /* Compilation state */
+        private int mLastUse;
+        private int mSlot;
+
+        private Resource(int width, int height) {
+            mWidth = width;
+            mHeight = height;
+        }
+    }
+
+    private static class Pass {
+        private String mName;
+        private Resource mOutput;
+        private Resource[] mInputs;
+        private PassCallback mCallback;
+        private Texture2D[] mInputTextures;
+
+        /* Compilation state */
+        private int mOrder;
+    }
+
+    private int mWidth;
+    private int mHeight;
+    private Resource mSource;
+    private Resource mTarget;
+    private List<Resource> mResources;
+    private List<Pass> mPasses;
+
+    private boolean mCompiled;
+    private Pass[] mSchedule;
+    private int[] mSlotWidths;
+    private int[] mSlotHeights;
+    private Framebuffer[] mSlotFramebuffers;
+
+    /**
+     * Creates a graph whose transient resources have the given dimensions by default.
+     */
+    public RenderGraph(int width, int height) {
+        mWidth = width;
+        mHeight = height;
+        mResources = new ArrayList<>();
+        mPasses = new ArrayList<>();
+        mSource = new Resource(width, height);
+        mTarget = new Resource(width, height);
+    }
+
+    /**
+     * Gets the resource of the source texture that is supplied at execution.
+     */
+    public Resource getSource() {
+        return mSource;
+    }
+
+    /**
+     * Gets the resource of the target framebuffer that is supplied at execution.
+     */
+    public Resource getTarget() {
+        return mTarget;
+    }
+
+    /**
+     * Creates a transient intermediate resource with the default dimensions of the graph.
+     */
+    public Resource createTransient() {
+        return createTransient(mWidth, mHeight);
+    }
+
+    /**
+     * Creates a transient intermediate resource.
+     */
+    public Resource createTransient(int width, int height) {
+        Resource resource = new Resource(width, height);
+        mResources.add(resource);
+        mCompiled = false;
+        return resource;
+    }
+
+    /**
+     * Declares a render pass.
+     * @param name the name of the pass, used for debugging and as the name under which the pass
+     *             is timed by the {@link GpuTimer}
+     * @param output the resource that the pass writes to
+     * @param callback the callback that renders the pass
+     * @param inputs the resources that the pass reads from
+     */
+    public void addPass(String name, Resource output, PassCallback callback, Resource... inputs) {
+        if(output == mSource) {
+            throw new IllegalArgumentException("pass " + name + " cannot write the source");
+        }
+        if(output.mWriter != null) {
+            throw new IllegalArgumentException("pass " + name + " writes resource that is already written by pass " + output.mWriter.mName);
+        }
+        for(Resource input : inputs) {
+            if(input == mTarget) {
+                throw new IllegalArgumentException("pass " + name + " cannot read the target");
+            }
+            if(input == output) {
+                throw new IllegalArgumentException("pass " + name + " cannot read and write the same resource");
+            }
+        }
+
+        Pass pass = new Pass();
+        pass.mName = name;
+        pass.mOutput = output;
+        pass.mInputs = inputs;
+        pass.mCallback = callback;
+        pass.mInputTextures = new Texture2D[inputs.length];
+        output.mWriter = pass;
+        mPasses.add(pass);
+        mCompiled = false;
+    }
+
+    /**
+     * Compiles the declared passes into an execution schedule with assigned physical targets.
+     * Gets automatically called on execution if the graph has changed since the last compilation.
+     */
+    public void compile() {
+        // Cull passes that do not contribute to the target by walking the dependencies backwards
+        List<Pass> livePasses = new ArrayList<>();
+        if(mTarget.mWriter != null) {
+            collectDependencies(mTarget.mWriter, livePasses);
+        }
+
+        // Schedule the passes in dependency order. Among the passes that are ready to execute,
+        // prefer the pass that consumes the most recently produced resource, so intermediates die early.
+        List<Pass> schedule = new ArrayList<>(livePasses.size());
+        List<Resource> produced = new ArrayList<>();
+        produced.add(mSource);
+        while(schedule.size() < livePasses.size()) {
+            Pass next = null;
+            int nextScore = -1;
+            for(Pass pass : mPasses) { // iterate in declaration order for stable tie breaking
+                if(!livePasses.contains(pass) || schedule.contains(pass) || !isReady(pass, produced)) {
+                    continue;
+                }
+                int score = 0;
+                for(Resource input : pass.mInputs) {
+                    score = Math.max(score, produced.indexOf(input) + 1);
+                }
+                if(score > nextScore) {
+                    next = pass;
+                    nextScore = score;
+                }
+            }
+            if(next == null) {
+                throw new IllegalStateException("render graph has unresolvable dependencies");
+            }
+            next.mOrder = schedule.size();
+            schedule.add(next);
+            produced.add(next.mOutput);
+        }
+
+        // Compute the last use of every transient resource
+        for(Resource resource : mResources) {
+            resource.mLastUse = -1;
+            resource.mSlot = -1;
+        }
+        for(Pass pass : schedule) {
+            for(Resource input : pass.mInputs) {
+                input.mLastUse = Math.max(input.mLastUse, pass.mOrder);
+            }
+        }
+
+        // Assign physical slots, reusing slots of resources whose lifetime has ended
+        List<int[]> slots = new ArrayList<>(); // {width, height}
+        List<Integer> freeSlots = new ArrayList<>();
+        List<Resource> aliveResources = new ArrayList<>();
+        for(Pass pass : schedule) {
+            // Release the slots of all resources that have been read for the last time
+            for(int i = aliveResources.size() - 1; i >= 0; i--) {
+                Resource resource = aliveResources.get(i);
+                if(resource.mLastUse < pass.mOrder) {
+                    freeSlots.add(resource.mSlot);
+                    aliveResources.remove(i);
+                }
+            }
+
+            Resource output = pass.mOutput;
+            if(output == mTarget) {
+                continue;
+            }
+            for(int i = 0; i < freeSlots.size(); i++) {
+                int[] slot = slots.get(freeSlots.get(i));
+                if(slot[0] == output.mWidth && slot[1] == output.mHeight) {
+                    output.mSlot = freeSlots.remove(i);
+                    break;
+                }
+            }
+            if(output.mSlot == -1) {
+                output.mSlot = slots.size();
+                slots.add(new int[] { output.mWidth, output.mHeight });
+            }
+            aliveResources.add(output);
+        }
+
+        mSchedule = schedule.toArray(new Pass[schedule.size()]);
+        mSlotWidths = new int[slots.size()];
+        mSlotHeights = new int[slots.size()];
+        for(int i = 0; i < slots.size(); i++) {
+            mSlotWidths[i] = slots.get(i)[0];
+            mSlotHeights[i] = slots.get(i)[1];
+        }
+        mSlotFramebuffers = new Framebuffer[slots.size()];
+        mCompiled = true;
+
+        Log.d(TAG, "compiled " + mSchedule.length + " of " + mPasses.size() + " passes onto "
+                + mSlotFramebuffers.length + " physical targets for " + mResources.size() + " intermediates");
+    }
+
+    private void collectDependencies(Pass pass, List<Pass> passes) {
+        if(passes.contains(pass)) {
+            return;
+        }
+        passes.add(pass);
+        for(Resource input : pass.mInputs) {
+            if(input == mSource) {
+                continue;
+            }
+            if(input.mWriter == null) {
+                throw new IllegalStateException("pass " + pass.mName + " reads a resource that is never written");
+            }
+            collectDependencies(input.mWriter, passes);
+        }
+    }
+
+    private boolean isReady(Pass pass, List<Resource> produced) {
+        for(Resource input : pass.mInputs) {
+            if(!produced.contains(input)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Executes the compiled passes.
+     * @param source the texture that backs the source resource
+     * @param target the framebuffer that backs the target resource
+     */
+    public void execute(Texture2D source, Framebuffer target) {
+        if(!mCompiled) {
+            compile();
+        }
+
+        FramebufferPool framebufferPool = FramebufferPool.getCurrent();
+        GpuTimer gpuTimer = GpuTimer.getCurrent();
+        for(int i = 0; i < mSlotFramebuffers.length; i++) {
+            mSlotFramebuffers[i] = framebufferPool.obtain(mSlotWidths[i], mSlotHeights[i]);
+        }
+
+        for(Pass pass : mSchedule) {
+            for(int i = 0; i < pass.mInputs.length; i++) {
+                Resource input = pass.mInputs[i];
+                pass.mInputTextures[i] = input == mSource ? source : mSlotFramebuffers[input.mSlot].getTexture();
+            }
+            Resource output = pass.mOutput;
+            gpuTimer.beginPass(pass.mName);
+            pass.mCallback.render(pass.mInputTextures, output == mTarget ? target : mSlotFramebuffers[output.mSlot]);
+            gpuTimer.endPass();
+        }
+
+        for(int i = 0; i < mSlotFramebuffers.length; i++) {
+            framebufferPool.release(mSlotFramebuffers[i]);
+            mSlotFramebuffers[i] = null;
+        }
+    }
+
+    /**
+     * Gets the number of physical framebuffers that the compiled graph needs during execution.
+     */
+    public int getPhysicalTargetCount() {
+        if(!mCompiled) {
+            compile();
+        }
+        return mSlotFramebuffers.length;
+    }
+}
@@ -0,0 +1,118 @@
+/*
+ * Copyright 2016 Mario Guggenberger <mg@protyposis.net>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.protyposis.android.spectaculum.gles;
+
+import android.util.Log;
+
+import java.util.List;
+
+import net.protyposis.android.spectaculum.effects.Effect;
+
+/**
+ * Restores the GL resources of a render pipeline when its context has been lost.
+ *
+ * The pipeline preserves its context while it is paused, so usually all resources survive and
+ * rendering continues right away. When the driver drops the context anyway, all GL objects are
+ * gone with it. The objects that are managed per context, i.e. pooled framebuffers, cached
+ * programs, tracked textures, the quad vertex buffer, the GL state cache and the GPU timer
+ * queries, are then forgotten without deleting them (see {@link #resetContextResources()}), and
+ * effects are restored lazily: they are released
+ * without touching the GL (see {@link Effect#release()}), and only the effects that are
+ * actually used get reinitialized, with their previous parameter values, when they are rendered
+ * or selected the next time. A context loss therefore costs the initialization of the effect on
+ * screen, and not the initialization of all effects that have ever been used.
+ *
+ * A manager belongs to a pipeline and must be used on its GL thread.
+ */
+public class ResourceRestoreManager {
+
+    private static final String TAG = ResourceRestoreManager.class.getSimpleName();
+
+    /**
+     * Forgets all GL objects that are managed per context on the calling thread. Must be called
+     * when a new context has been made current on a thread whose previous context has been lost
+     * or released, because the objects of the previous context cannot be deleted anymore and
+     * their handles must never be used in the new context.
+     */
+    public static void resetContextResources() {
+        FramebufferPool.getCurrent().reset();
+        ShaderProgramCache.getCurrent().reset();
+        GpuMemoryTracker.getCurrent().reset();
+        QuadVertexBuffer.getCurrent().reset();
+        GLState.getCurrent().reset();
+        GpuTimer.getCurrent().reset();
+    }
+
+    private int mContextCount;
+    private int mLostContextCount;
+    private boolean mRestorePending;
+
+    /**
+     * Must be called when a new context has been created and made current. Resets the objects
+     * of the previous context, if there is one.
+     * @return true if the context replaces a lost context, which means that all GL objects of
+     *         the pipeline must be recreated and {@link #restoreEffects(List)} must be called
+     */
+    public boolean onContextCreated() {
+        resetContextResources();
+        if (mContextCount++ == 0) {
+            return false;
+        }
+        mLostContextCount++;
+        mRestorePending = true;
+        Log.d(TAG, "context lost (" + mLostContextCount + " of " + mContextCount + " contexts)");
+        return true;
+    }
+
+    /**
+     * Tells if effects of a lost context need to be restored.
+     */
+    public boolean isRestorePending() {
+        return mRestorePending;
+    }
+
+    /**
+     * Returns the effects of a lost context to the uninitialized state, so they are reinitialized
+     * when they are used the next time. The effects do not delete their objects of the lost
+     * context, because the released handles are recognized as stale.
+     * @param effects all effects of the pipeline
+     */
+    public void restoreEffects(List<Effect> effects) {
+        if (!mRestorePending) {
+            return;
+        }
+        mRestorePending = false;
+
+        int count = 0;
+        for (Effect effect : effects) {
+            if (effect.isInitialized()) {
+                count++;
+            }
+            // Also release effects that only appear uninitialized because an effect they depend on
+            // has been released, e.g. a stack with a released child
+            effect.release();
+        }
+        Log.d(TAG, count + " effects of the lost context released for lazy restoration");
+    }
+
+    /**
+     * Gets the number of contexts that have been lost and replaced since the manager was created.
+     */
+    public int getLostContextCount() {
+        return mLostContextCount;
+    }
+}
@@ -20,6 +20,8 @@ import android.opengl.GLES20;
 import android.util.Log;
 
 import java.security.InvalidParameterException;
+import java.util.HashMap;
+import java.util.Map;
 
 import net.protyposis.android.spectaculum.LibraryHelper;
 
@@ -30,49 +32,132 @@ public class ShaderProgram {
 
     private static final String TAG = ShaderProgram.class.getSimpleName();
 
-    private int mVShaderHandle;
-    private int mFShaderHandle;
+    private static final Map<String, String> sShaderCodeCache = new HashMap<>();
+
     protected int mProgramHandle;
+    private ShaderProgramCache.Program mProgram;
+    private UniformState mUniformState;
+    private String mVertexShaderCode;
+    private String mFragmentShaderCode;
 
     public ShaderProgram(String vertexShaderName, String fragmentShaderName) {
-        String vertexShaderCode = LibraryHelper.loadTextFromAsset("shaders/" + vertexShaderName);
-        String fragmentShaderCode = LibraryHelper.loadTextFromAsset("shaders/" + fragmentShaderName);
+        this(vertexShaderName, loadShaderCode(vertexShaderName),
+                fragmentShaderName, loadShaderCode(fragmentShaderName));
+    }
 
+    /**
+     * Creates a program from shader code instead of shader assets, e.g. from code that has been
+     * generated at runtime. The names identify the shaders in log messages.
+     */
+    protected ShaderProgram(String vertexShaderName, String vertexShaderCode,
+                            String fragmentShaderName, String fragmentShaderCode) {
         vertexShaderCode = preprocessVertexShaderCode(vertexShaderCode);
         fragmentShaderCode = preprocessFragmentShaderCode(fragmentShaderCode);
 
-        mVShaderHandle = loadShader(GLES20.GL_VERTEX_SHADER, vertexShaderCode);
-        mFShaderHandle = loadShader(GLES20.GL_FRAGMENT_SHADER, fragmentShaderCode);
+        mVertexShaderCode = vertexShaderCode;
+        mFragmentShaderCode = fragmentShaderCode;
+
+        mProgram = ShaderProgramCache.getCurrent().obtain(this, vertexShaderName, vertexShaderCode,
+                fragmentShaderName, fragmentShaderCode);
+        mProgramHandle = mProgram.getHandle();
+
+        // If the program object is shared and holds the uniform values of another shader program,
+        // this program starts with the values of a freshly linked program
+        mUniformState = new UniformState(mProgramHandle);
+    }
+
+    /**
+     * Compiles and links a program. On failure, the program is deleted and its link status is
+     * not {@link GLES20#GL_TRUE}.
+     * @param retrievable true to link the program so that its binary can be retrieved
+     */
+    static int linkProgram(String vertexShaderName, String vertexShaderCode,
+                           String fragmentShaderName, String fragmentShaderCode, boolean retrievable) {
+        int vShaderHandle = loadShader(GLES20.GL_VERTEX_SHADER, vertexShaderCode);
+        if(vShaderHandle == 0) {
+            Log.e(TAG, "Error compiling vertex shader " + vertexShaderName);
+        }
+        int fShaderHandle = loadShader(GLES20.GL_FRAGMENT_SHADER, fragmentShaderCode);
+        if(fShaderHandle == 0) {
+            Log.e(TAG, "Error compiling fragment shader " + fragmentShaderName);
+        }
 
-        mProgramHandle = GLES20.glCreateProgram();
-        GLES20.glAttachShader(mProgramHandle, mVShaderHandle);
+        int programHandle = GLES20.glCreateProgram();
+        GLES20.glAttachShader(programHandle, vShaderHandle);
         GLUtils.checkError("glAttachShader V");
-        GLES20.glAttachShader(mProgramHandle, mFShaderHandle);
+        GLES20.glAttachShader(programHandle, fShaderHandle);
         GLUtils.checkError("glAttachShader F");
-        GLES20.glLinkProgram(mProgramHandle);
+        if (retrievable) {
+            ProgramBinaryCache.prepare(programHandle);
+        }
+        // Bind the quad attributes to the same locations in all programs, so the vertex
+        // attribute setup can be shared by all passes (see QuadVertexBuffer)
+        GLES20.glBindAttribLocation(programHandle, QuadVertexBuffer.ATTRIBUTE_POSITION, "a_Position");
+        GLES20.glBindAttribLocation(programHandle, QuadVertexBuffer.ATTRIBUTE_TEXTURE_COORD, "a_TextureCoord");
+        GLES20.glLinkProgram(programHandle);
 
         int[] linkStatus = new int[1];
-        GLES20.glGetProgramiv(mProgramHandle, GLES20.GL_LINK_STATUS, linkStatus, 0);
+        GLES20.glGetProgramiv(programHandle, GLES20.GL_LINK_STATUS, linkStatus, 0);
         if (linkStatus[0] != GLES20.GL_TRUE) {
-            Log.e(TAG, "Error linking program: " + GLES20.glGetProgramInfoLog(mProgramHandle));
-            GLES20.glDeleteProgram(mProgramHandle);
+            Log.e(TAG, "Error linking program " + vertexShaderName + "/" + fragmentShaderName + ": "
+                    + GLES20.glGetProgramInfoLog(programHandle));
+            GLES20.glDeleteProgram(programHandle);
         }
 
         // delete the shaders after compiling the program to free some space (if they will not be reused later)
         // http://stackoverflow.com/questions/9113154/proper-way-to-delete-glsl-shader
-        deleteShader(mVShaderHandle);
-        deleteShader(mFShaderHandle);
+        deleteShader(vShaderHandle);
+        deleteShader(fShaderHandle);
+
+        return programHandle;
+    }
+
+    /**
+     * Loads the code of a shader asset. The code is cached, so each asset is only read once.
+     */
+    public static String loadShaderCode(String shaderName) {
+        synchronized (sShaderCodeCache) {
+            String code = sShaderCodeCache.get(shaderName);
+            if (code == null) {
+                code = LibraryHelper.loadTextFromAsset("shaders/" + shaderName);
+                sShaderCodeCache.put(shaderName, code);
+            }
+            return code;
+        }
     }
 
+    /**
+     * Releases the program. The program object is deleted when no other shader program of the
+     * context shares it (see {@link ShaderProgramCache}). A program that is released on a
+     * background thread whose cache defers foreign releases, e.g. when an {@link EffectLoader}
+     * reinitializes an effect, is only released when the cache is adopted by the cache of the program.
+     */
     public void deleteProgram() {
-        GLES20.glDeleteProgram(mProgramHandle);
-        GLUtils.checkError("glDeleteProgram");
+        if (mProgram == null) {
+            return;
+        }
+        ShaderProgramCache.getCurrent().release(this, mProgram);
+        mProgram = null;
     }
 
     public int getHandle() {
         return mProgramHandle;
     }
 
+    /**
+     * Gets the preprocessed code of the vertex shader that the program has been linked from.
+     */
+    public String getVertexShaderCode() {
+        return mVertexShaderCode;
+    }
+
+    /**
+     * Gets the preprocessed code of the fragment shader that the program has been linked from.
+     */
+    public String getFragmentShaderCode() {
+        return mFragmentShaderCode;
+    }
+
     public static int loadShader(int type, String shaderCode) {
         if(type != GLES20.GL_VERTEX_SHADER && type != GLES20.GL_FRAGMENT_SHADER) {
             throw new InvalidParameterException("invalid shader type");
@@ -102,8 +187,42 @@ public class ShaderProgram {
         GLUtils.checkError("glDeleteShader");
     }
 
+    /**
+     * Creates a mirror that copies the uniform values of this program into the uniforms of another
+     * program that has been generated from this program's code, e.g. a program variant.
+     * @param targetProgramHandle the program to copy the values into
+     * @param targetPrefix the prefix of the uniform names in the target program, can be empty
+     */
+    public UniformMirror createUniformMirror(int targetProgramHandle, String targetPrefix) {
+        UniformMirror mirror = new UniformMirror(targetProgramHandle);
+        mirror.addActiveUniforms(this, targetPrefix);
+        return mirror;
+    }
+
+    /**
+     * Makes the program current. All uniform values that are set while the program is current
+     * are kept in the uniform state of this program. When the program object is shared with
+     * other shader programs and has been used by another one since the last use of this one,
+     * the uniform values of this program that differ are uploaded again.
+     */
     public void use() {
-        GLES20.glUseProgram(mProgramHandle);
+        GLState state = GLState.getCurrent();
+        state.useProgram(mProgramHandle);
+        if (mProgram != null && mProgram.getOwner() != this) {
+            // The program may already have been current with the state of the previous owner attached
+            state.setUniformShadow(null);
+            mUniformState.restore();
+            mProgram.setOwner(this);
+        }
+        state.setUniformShadow(mUniformState);
+    }
+
+    /**
+     * Gets the uniform state that holds the values of all active uniforms of this program as
+     * they have been set on the CPU side.
+     */
+    UniformState getUniformState() {
+        return mUniformState;
     }
 
     protected String preprocessVertexShaderCode(String vertexShaderCode) {
@@ -0,0 +1,282 @@
+/*
+ * Copyright 2016 Mario Guggenberger <mg@protyposis.net>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.protyposis.android.spectaculum.gles;
+
+import android.opengl.GLES20;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A cache of linked program objects that is shared by all {@link ShaderProgram}s of a GL context.
+ * Programs are identified by their preprocessed vertex and fragment shader code, so every distinct
+ * program is only compiled and linked once per context, no matter how many effects use it or how
+ * often they are reinitialized. Program objects are reference counted and deleted when the last
+ * shader program that uses them is deleted.
+ *
+ * Shader programs that share a program object keep their own uniform values on the CPU side.
+ * When a program object is used by another shader program than the one that used it last, the
+ * values of the new user that differ are uploaded again (see {@link ShaderProgram#use()}).
+ *
+ * GL objects belong to the context they have been created in, and a context can only be current
+ * on one thread at a time, so there is one cache per thread that can be obtained with
+ * {@link #getCurrent()}. Contexts that share objects with the context of the thread, e.g. the
+ * context of a {@link FrameRecorder}, can use the same cache.
+ */
+public class ShaderProgramCache {
+
+    private static final String TAG = ShaderProgramCache.class.getSimpleName();
+
+    private static final ThreadLocal<ShaderProgramCache> sCurrent = new ThreadLocal<ShaderProgramCache>() {
+        @Override
+        protected ShaderProgramCache initialValue() {
+            return new ShaderProgramCache();
+        }
+    };
+
+    /**
+     * Gets the program cache of the GL context that is current on the calling thread.
+     */
+    public static ShaderProgramCache getCurrent() {
+        return sCurrent.get();
+    }
+
+    /**
+     * A cached program object.
+     */
+    static class Program {
+        private ShaderProgramCache mCache;
+        private int mGeneration;
+        private String mKey;
+        private int mHandle;
+        private int mReferenceCount;
+        private ShaderProgram mOwner;
+
+        int getHandle() {
+            return mHandle;
+        }
+
+        /**
+         * Gets the shader program whose uniform values are currently stored in the program
+         * object, or null if it has been deleted.
+         */
+        ShaderProgram getOwner() {
+            return mOwner;
+        }
+
+        void setOwner(ShaderProgram owner) {
+            mOwner = owner;
+        }
+    }
+
+    /**
+     * Replaces the program cache of the calling thread, e.g. to collect the programs that are
+     * created in a separate cache that is later adopted by another cache with {@link #adopt(ShaderProgramCache)}.
+     * @param cache the cache to use on the calling thread, or null to create a new cache on the next access
+     */
+    static void setCurrent(ShaderProgramCache cache) {
+        if (cache == null) {
+            sCurrent.remove();
+        } else {
+            sCurrent.set(cache);
+        }
+    }
+
+    private Map<String, Program> mPrograms;
+    private List<ShaderProgram> mDeferredReleaseOwners;
+    private List<Program> mDeferredReleases;
+    private int mGeneration;
+    private int mLinkCount;
+    private int mHitCount;
+    private int mBinaryLoadCount;
+
+    ShaderProgramCache() {
+        mPrograms = new HashMap<>();
+    }
+
+    /**
+     * Gets a program object for the given shader code, and links it if it is not cached yet.
+     * Programs that fail to link are not cached. Every obtained program must be returned with
+     * {@link #release(ShaderProgram, Program)}.
+     * @param owner the shader program that obtains the program object
+     */
+    Program obtain(ShaderProgram owner, String vertexShaderName, String vertexShaderCode,
+                   String fragmentShaderName, String fragmentShaderCode) {
+        String key = vertexShaderCode + '\0' + fragmentShaderCode;
+        Program program = mPrograms.get(key);
+
+        if (program != null) {
+            program.mReferenceCount++;
+            mHitCount++;
+            return program;
+        }
+
+        program = new Program();
+        program.mCache = this;
+        program.mGeneration = mGeneration;
+        program.mReferenceCount = 1;
+        program.mOwner = owner;
+
+        boolean binaryCacheEnabled = ProgramBinaryCache.isEnabled();
+        if (binaryCacheEnabled) {
+            program.mHandle = ProgramBinaryCache.load(vertexShaderCode, fragmentShaderCode);
+            if (program.mHandle != 0) {
+                program.mKey = key;
+                mPrograms.put(key, program);
+                mBinaryLoadCount++;
+                Log.d(TAG, "loaded " + vertexShaderName + "/" + fragmentShaderName
+                        + " from binary (" + mPrograms.size() + " cached)");
+                return program;
+            }
+        }
+
+        program.mHandle = ShaderProgram.linkProgram(vertexShaderName, vertexShaderCode,
+                fragmentShaderName, fragmentShaderCode, binaryCacheEnabled);
+        mLinkCount++;
+
+        int[] linkStatus = new int[1];
+        GLES20.glGetProgramiv(program.mHandle, GLES20.GL_LINK_STATUS, linkStatus, 0);
+        if (linkStatus[0] == GLES20.GL_TRUE) {
+            program.mKey = key;
+            mPrograms.put(key, program);
+            Log.d(TAG, "linked " + vertexShaderName + "/" + fragmentShaderName
+                    + " (" + mPrograms.size() + " cached)");
+            if (binaryCacheEnabled) {
+                ProgramBinaryCache.store(vertexShaderCode, fragmentShaderCode, program.mHandle);
+            }
+        }
+
+        return program;
+    }
+
+    /**
+     * Makes the cache collect the releases of programs of other caches instead of performing
+     * them, until it is adopted with {@link #adopt(ShaderProgramCache)}. Required for caches of
+     * background threads, e.g. of an {@link EffectLoader}, because the programs of another cache
+     * may still be in use by the thread of that cache and must only be released there.
+     */
+    void deferForeignReleases() {
+        mDeferredReleaseOwners = new ArrayList<>();
+        mDeferredReleases = new ArrayList<>();
+    }
+
+    /**
+     * Returns a program object to the cache, and deletes it if it is not used anymore.
+     * @param owner the shader program that returns the program object
+     */
+    void release(ShaderProgram owner, Program program) {
+        if (program.mCache != this && mDeferredReleases != null) {
+            // Hand the program back to the thread of its cache with the adoption
+            mDeferredReleaseOwners.add(owner);
+            mDeferredReleases.add(program);
+            return;
+        }
+        program.mCache.releaseReference(owner, program);
+    }
+
+    private void releaseReference(ShaderProgram owner, Program program) {
+        if (program.mOwner == owner) {
+            program.mOwner = null;
+        }
+        if (--program.mReferenceCount > 0) {
+            return;
+        }
+
+        if (program.mGeneration != mGeneration) {
+            return; // gone with a previous context
+        }
+        if (program.mKey != null) {
+            mPrograms.remove(program.mKey);
+        }
+        GLES20.glDeleteProgram(program.mHandle);
+        GLUtils.checkError("glDeleteProgram");
+        GLState.getCurrent().onProgramDeleted(program.mHandle);
+    }
+
+    /**
+     * Forgets all programs without deleting them. Must be called when the GL context has been
+     * lost, because all GL objects are already gone with it and cannot be deleted anymore.
+     */
+    public void reset() {
+        mPrograms.clear();
+        mGeneration++;
+    }
+
+    /**
+     * Takes over the programs of another cache of a context in the same share group, e.g. a
+     * cache in which a background thread has collected the programs of an effect. Programs that
+     * are not cached yet become available for sharing. Programs that are already cached stay
+     * exclusive to the shader programs that use them, and are deleted when these are deleted.
+     * Programs of this cache that have been released while the other cache was current are
+     * released now. The other cache must not be used anymore afterwards.
+     */
+    void adopt(ShaderProgramCache other) {
+        for (Program program : other.mPrograms.values()) {
+            program.mCache = this;
+            program.mGeneration = mGeneration;
+            if (mPrograms.containsKey(program.mKey)) {
+                program.mKey = null;
+            } else {
+                mPrograms.put(program.mKey, program);
+            }
+        }
+        other.mPrograms.clear();
+        if (other.mDeferredReleases != null) {
+            for (int i = 0; i < other.mDeferredReleases.size(); i++) {
+                Program program = other.mDeferredReleases.get(i);
+                program.mCache.releaseReference(other.mDeferredReleaseOwners.get(i), program);
+            }
+            other.mDeferredReleaseOwners.clear();
+            other.mDeferredReleases.clear();
+        }
+        mLinkCount += other.mLinkCount;
+        mHitCount += other.mHitCount;
+        mBinaryLoadCount += other.mBinaryLoadCount;
+    }
+
+    /**
+     * Gets the number of program objects in the cache.
+     */
+    public int getProgramCount() {
+        return mPrograms.size();
+    }
+
+    /**
+     * Gets the number of programs that have been linked since the cache has been created.
+     */
+    public int getLinkCount() {
+        return mLinkCount;
+    }
+
+    /**
+     * Gets the number of programs that have been loaded from stored binaries instead of being
+     * linked from source (see {@link ProgramBinaryCache}).
+     */
+    public int getBinaryLoadCount() {
+        return mBinaryLoadCount;
+    }
+
+    /**
+     * Gets the number of shader programs that have been served from the cache without linking.
+     */
+    public int getHitCount() {
+        return mHitCount;
+    }
+}
@@ -33,18 +33,26 @@ public class Texture2D extends Texture {
 
     private int mWidth;
     private int mHeight;
+    private int mInternalFormat;
+    private int mMinFilter;
+    private int mMagFilter;
+    private GpuMemoryTracker mMemoryTracker;
+    private int mMemoryGeneration;
+    private long mMemorySize;
 
     public Texture2D(int internalformat, int format, int width, int height, int type, Buffer pixels) {
         super();
 
         mWidth = width;
         mHeight = height;
+        mInternalFormat = internalformat;
 
         setupTexture();
 
         GLES20.glTexImage2D(GLES20.GL_TEXTURE_2D, 0, internalformat, mWidth, mHeight, 0, format, type, pixels);
+        trackMemory((long) mWidth * mHeight * getBytesPerPixel(internalformat));
 
-        GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, 0); // unbind texture
+        GLState.getCurrent().bindTexture(GLES20.GL_TEXTURE_2D, 0); // unbind texture
     }
 
     public Texture2D(int width, int height) {
@@ -56,14 +64,16 @@ public class Texture2D extends Texture {
 
         mWidth = bitmap.getWidth();
         mHeight = bitmap.getHeight();
+        mInternalFormat = GLES20.GL_RGBA;
 
         setupTexture();
 
         // Load texture
         // This method automatically puts the texture into the next larger power of 2 size
         android.opengl.GLUtils.texImage2D(GLES20.GL_TEXTURE_2D, 0, bitmap, 0);
+        trackMemory((long) mWidth * mHeight * getBytesPerPixel(mInternalFormat));
 
-        GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, 0); // unbind texture
+        GLState.getCurrent().bindTexture(GLES20.GL_TEXTURE_2D, 0); // unbind texture
     }
 
     private void setupTexture() {
@@ -71,32 +81,42 @@ public class Texture2D extends Texture {
         GLES20.glGenTextures(1, textures, 0);
 
         mTexture = textures[0];
-        GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, mTexture);
+        GLState.getCurrent().bindTexture(GLES20.GL_TEXTURE_2D, mTexture);
         GLUtils.checkError("glBindTexture");
 
         GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_MIN_FILTER, GLES20.GL_NEAREST);
         GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_MAG_FILTER, GLES20.GL_NEAREST);
+        mMinFilter = GLES20.GL_NEAREST;
+        mMagFilter = GLES20.GL_NEAREST;
 
         // Tegra needs GL_CLAMP_TO_EDGE for non-power-of-2 textures, else the picture is black: http://stackoverflow.com/a/9042198
         GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_WRAP_S, GLES20.GL_CLAMP_TO_EDGE);
         GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_WRAP_T, GLES20.GL_CLAMP_TO_EDGE);
     }
 
+    private void trackMemory(long size) {
+        mMemoryTracker = GpuMemoryTracker.getCurrent();
+        mMemorySize = size;
+        mMemoryGeneration = mMemoryTracker.allocate(size);
+    }
+
     /**
      * Sets the filter mode of the texture. Specify -1 to keep the current setting.
      */
     public void setFilterMode(int minFilter, int maxFilter) {
-        GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, mTexture);
+        GLState.getCurrent().bindTexture(GLES20.GL_TEXTURE_2D, mTexture);
 
         if(minFilter > -1) {
             GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_MIN_FILTER, minFilter);
+            mMinFilter = minFilter;
         }
 
         if(maxFilter > -1) {
             GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_MAG_FILTER, maxFilter);
+            mMagFilter = maxFilter;
         }
 
-        GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, 0);
+        GLState.getCurrent().bindTexture(GLES20.GL_TEXTURE_2D, 0);
     }
 
     public int getWidth() {
@@ -107,17 +127,123 @@ public class Texture2D extends Texture {
         return mHeight;
     }
 
+    public int getInternalFormat() {
+        return mInternalFormat;
+    }
+
+    /**
+     * Checks if the texture filters are set to their default values (GL_NEAREST), which is
+     * the state in which newly generated textures are handed out.
+     */
+    boolean hasDefaultFilterMode() {
+        return mMinFilter == GLES20.GL_NEAREST && mMagFilter == GLES20.GL_NEAREST;
+    }
+
+    /**
+     * Gets the estimated GPU memory size of the texture in bytes.
+     * @see GpuMemoryTracker
+     */
+    public long getMemorySize() {
+        return mMemorySize;
+    }
+
+    /**
+     * Checks if the texture still exists, i.e. it has not been deleted and its context has not
+     * been lost in the meantime.
+     */
+    boolean isValid() {
+        return mMemoryTracker != null && mMemoryTracker.isValid(mMemoryGeneration);
+    }
+
+    /**
+     * Deletes the texture. Deleting a texture of a lost context or deleting a texture twice has
+     * no effect.
+     */
     @Override
     public void delete() {
-        GLES20.glDeleteTextures(1, new int[] { mTexture }, 0);
+        if (mMemoryTracker == null) {
+            return; // already deleted
+        }
+        if (mMemoryTracker.free(mMemoryGeneration, mMemorySize)) {
+            GLES20.glDeleteTextures(1, new int[] { mTexture }, 0);
+            GLState.getCurrent().onTextureDeleted(mTexture);
+        }
+        mMemoryTracker = null;
     }
 
     public static Texture2D generateFloatTexture(int width, int height) {
+        int internalFormat = getFloatTextureInternalFormat();
+        if(internalFormat == GLES20.GL_RGBA) {
+            Log.i(TAG, "Texture fallback mode to GLES20 8 bit");
+        }
+        return generateTexture(internalFormat, width, height);
+    }
+
+    /**
+     * Generates an empty texture with the given internal format. Supported formats are the
+     * formats that are used for framebuffer attachments in the render pipeline, i.e. GL_RGBA
+     * and GL_RGB (8 bit) as well as GL_RGBA16F and GL_RGB16F (GLES 3.0 half float).
+     */
+    public static Texture2D generateTexture(int internalFormat, int width, int height) {
+        switch (internalFormat) {
+            case GLES30.GL_RGBA16F:
+                return new Texture2D(GLES30.GL_RGBA16F, GLES20.GL_RGBA, width, height, GLES20.GL_FLOAT, null);
+            case GLES30.GL_RGB16F:
+                return new Texture2D(GLES30.GL_RGB16F, GLES20.GL_RGB, width, height, GLES20.GL_FLOAT, null);
+            case GLES20.GL_RGBA:
+                return new Texture2D(GLES20.GL_RGBA, GLES20.GL_RGBA, width, height, GLES20.GL_UNSIGNED_BYTE, null);
+            case GLES20.GL_RGB:
+                return new Texture2D(GLES20.GL_RGB, GLES20.GL_RGB, width, height, GLES20.GL_UNSIGNED_BYTE, null);
+            default:
+                throw new IllegalArgumentException("unsupported internal format " + String.format("0x%X", internalFormat));
+        }
+    }
+
+    /**
+     * Estimates the number of bytes per pixel of an internal format. Drivers may pad pixels,
+     * e.g. store RGB as RGBA, so the actual memory usage can be higher.
+     */
+    private static int getBytesPerPixel(int internalFormat) {
+        switch (internalFormat) {
+            case GLES20.GL_ALPHA:
+            case GLES20.GL_LUMINANCE:
+            case GLES30.GL_R8:
+                return 1;
+            case GLES20.GL_LUMINANCE_ALPHA:
+            case GLES30.GL_RG8:
+            case GLES30.GL_R16F:
+                return 2;
+            case GLES20.GL_RGB:
+            case GLES30.GL_RGB8:
+                return 3;
+            case GLES20.GL_RGBA:
+            case GLES30.GL_RGBA8:
+            case GLES30.GL_RG16F:
+            case GLES30.GL_R32F:
+                return 4;
+            case GLES30.GL_RGB16F:
+                return 6;
+            case GLES30.GL_RGBA16F:
+            case GLES30.GL_RG32F:
+                return 8;
+            case GLES30.GL_RGB32F:
+                return 12;
+            case GLES30.GL_RGBA32F:
+                return 16;
+            default:
+                return 4;
+        }
+    }
+
+    /**
+     * Gets the internal format that {@link #generateFloatTexture(int, int)} uses on the current
+     * device, which is a half float format if supported, else an 8 bit format.
+     */
+    public static int getFloatTextureInternalFormat() {
         if(GLUtils.HAS_GLES30 && GLUtils.HAS_GL_OES_texture_half_float && GLUtils.HAS_FLOAT_FRAMEBUFFER_SUPPORT) {
-            return new Texture2D(GLES30.GL_RGBA16F, GLES20.GL_RGBA, width, height, GLES20.GL_FLOAT, null);
+            return GLES30.GL_RGBA16F;
         } else {
-            Log.i(TAG, "Texture fallback mode to GLES20 8 bit");
-            return new Texture2D(GLES20.GL_RGBA, GLES20.GL_RGBA, width, height, GLES20.GL_UNSIGNED_BYTE, null);
+            return GLES20.GL_RGBA;
         }
     }
 }
@@ -37,6 +37,6 @@ public class TextureFlipShaderProgram extends TextureShaderProgram {
             throw new RuntimeException("mode must be in range [0, 3]");
         }
         use();
-        GLES20.glUniform1i(mModeHandle, mode);
+        GLState.getCurrent().uniform1i(mModeHandle, mode);
     }
 }
@@ -40,7 +40,16 @@ public class TextureShaderProgram extends ShaderProgram {
 
     protected TextureShaderProgram(String vertexShaderName, String fragmentShaderName) {
         super(vertexShaderName, fragmentShaderName);
+        locateHandles();
+    }
+
+    protected TextureShaderProgram(String vertexShaderName, String vertexShaderCode,
+                                   String fragmentShaderName, String fragmentShaderCode) {
+        super(vertexShaderName, vertexShaderCode, fragmentShaderName, fragmentShaderCode);
+        locateHandles();
+    }
 
+    private void locateHandles() {
         mMVPMatrixHandle = GLES20.glGetUniformLocation(mProgramHandle, "u_MVPMatrix");
         GLUtils.checkError("glGetUniformLocation u_MVPMatrix");
         mSTMatrixHandle = GLES20.glGetUniformLocation(mProgramHandle, "u_STMatrix");
@@ -57,13 +66,26 @@ public class TextureShaderProgram extends ShaderProgram {
 
     public void setTextureSize(int width, int height) {
         use();
-        GLES20.glUniform2f(mTextureSizeHandle, width, height);
+        GLState.getCurrent().uniform2f(mTextureSizeHandle, width, height);
     }
 
     public void setTexture(Texture2D texture) {
-        GLES20.glActiveTexture(GLES20.GL_TEXTURE0);
-        GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, texture.getHandle());
-        GLES20.glUniform1i(mTextureHandle, 0); // bind texture unit 0 to the uniform
-        GLES20.glUniformMatrix4fv(mSTMatrixHandle, 1, false, texture.getTransformMatrix(), 0);
+        GLState state = GLState.getCurrent();
+        state.activeTexture(GLES20.GL_TEXTURE0);
+        state.bindTexture(GLES20.GL_TEXTURE_2D, texture.getHandle());
+        state.uniform1i(mTextureHandle, 0); // bind texture unit 0 to the uniform
+        state.uniformMatrix4fv(mSTMatrixHandle, 1, texture.getTransformMatrix(), 0);
+        bindAdditionalTextures();
+    }
+
+    /**
+     * Binds the textures of additional samplers to their texture units. Gets called before every
+     * draw call, because texture unit bindings belong to a context and are not shared like the
+     * textures themselves, e.g. with the context of an {@link EffectLoader} that the program has
+     * been set up in. Programs whose additional textures are set once must override this to bind
+     * them. Gets also called while another program generated from this one is current, e.g. a
+     * {@link FusedShaderProgram}, so it must only bind textures and never set uniforms.
+     */
+    public void bindAdditionalTextures() {
     }
 }
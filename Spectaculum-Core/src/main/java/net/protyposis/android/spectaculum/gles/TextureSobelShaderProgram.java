@@ -42,12 +42,12 @@ public class TextureSobelShaderProgram extends TextureShaderProgram {
 
     public void setThreshold(float low, float high) {
         use();
-        GLES20.glUniform1f(mThresholdLHandle, low);
-        GLES20.glUniform1f(mThresholdHHandle, high);
+        GLState.getCurrent().uniform1f(mThresholdLHandle, low);
+        GLState.getCurrent().uniform1f(mThresholdHHandle, high);
     }
 
     public void setColor(float r, float g, float b) {
         use();
-        GLES20.glUniform3f(mColorHandle, r, g, b);
+        GLState.getCurrent().uniform3f(mColorHandle, r, g, b);
     }
 }
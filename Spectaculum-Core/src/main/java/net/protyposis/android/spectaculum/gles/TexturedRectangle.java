@@ -18,89 +18,21 @@ package net.protyposis.android.spectaculum.gles;
 
 import android.opengl.GLES20;
 
-import java.nio.ByteBuffer;
-import java.nio.ByteOrder;
-import java.nio.FloatBuffer;
-
 /**
  * Created by Mario on 14.06.2014.
  */
 public class TexturedRectangle extends Shape {
 
-    /**
-     * Elements per vertex
-     * */
-    protected static final int sStrideBytes = 5 * sBytesPerFloat;
-
-    /**
-     * Offset of the position data
-     * */
-    protected static final int sPositionOffset = 0;
-
-    /**
-     * Size of the position data in elements
-     * */
-    protected static final int sPositionDataSize = 3;
-
-    /**
-     * Offset of the color data
-     * */
-    protected static final int sUVOffset = 3;
-
-    /**
-     * Size of the color data in elements
-     * */
-    protected static final int sUVDataSize = 2;
-
-    // model data
-    private float[] mVerticesData = {
-            // X, Y, Z,
-            // U, V
-            -1.0f, -1.0f, 0.0f,
-            0.0f, 0.0f,
-
-            1.0f, -1.0f, 0.0f,
-            1.0f, 0.0f,
-
-            -1.0f, 1.0f, 0.0f,
-            0.0f, 1.0f,
-
-            1.0f, 1.0f, 0.0f,
-            1.0f, 1.0f
-    };
-
-    // model data buffer
-    private FloatBuffer mVertices;
-
-    public TexturedRectangle() {
-        mVertices = ByteBuffer.allocateDirect(mVerticesData.length * sBytesPerFloat)
-                .order(ByteOrder.nativeOrder())
-                .asFloatBuffer();
-        mVertices.put(mVerticesData).position(0);
-    }
-
     public void draw(TextureShaderProgram shaderProgram) {
 
-        // write vertex data
-        mVertices.position(sPositionOffset);
-        GLES20.glVertexAttribPointer(shaderProgram.mPositionHandle, sPositionDataSize,
-                GLES20.GL_FLOAT, false, sStrideBytes, mVertices);
-        GLES20.glEnableVertexAttribArray(shaderProgram.mPositionHandle);
-
-        // write uv data
-        mVertices.position(sUVOffset);
-        GLES20.glVertexAttribPointer(shaderProgram.mTextureCoordHandle, sUVDataSize,
-                GLES20.GL_FLOAT, false, sStrideBytes, mVertices);
-        GLES20.glEnableVertexAttribArray(shaderProgram.mTextureCoordHandle);
-
-        //GLES20.glActiveTexture(GLES20.GL_TEXTURE0);
-        //GLES20.glBindTexture(GL_TEXTURE_EXTERNAL_OES, mTextureID);
+        // the quad vertices are shared by all passes and only need to be bound once
+        QuadVertexBuffer.getCurrent().bind(shaderProgram);
 
         // write the MVP matrix
-        GLES20.glUniformMatrix4fv(shaderProgram.mMVPMatrixHandle, 1, false, mMVPMatrix, 0);
+        GLState.getCurrent().uniformMatrix4fv(shaderProgram.mMVPMatrixHandle, 1, mMVPMatrix, 0);
 
         // finally, render the rectangle
-        GLES20.glDrawArrays(GLES20.GL_TRIANGLE_STRIP, 0, 4);
+        GLES20.glDrawArrays(GLES20.GL_TRIANGLE_STRIP, 0, QuadVertexBuffer.VERTEX_COUNT);
 
         GLUtils.checkError("TexturedRectangle.draw");
     }
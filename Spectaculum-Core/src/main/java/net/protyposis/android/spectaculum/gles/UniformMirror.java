@@ -0,0 +1,167 @@
+/*
+ * Copyright 2016 Mario Guggenberger <mg@protyposis.net>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.protyposis.android.spectaculum.gles;
+
+import android.opengl.GLES20;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Copies uniform values from source programs into a target program that has been generated
+ * from the sources, e.g. a fused program or a program variant. The source programs stay the
+ * owners of the values, which are taken from their CPU-side {@link UniformState}s and never read
+ * back from GL. Values are only copied from sources whose values have changed since the last copy.
+ *
+ * The uniforms that are set per draw call by {@link TextureShaderProgram} are not mirrored.
+ */
+public class UniformMirror {
+
+    private static class Entry {
+        private ShaderProgram mSource;
+        private UniformState mSourceState;
+        private int mSourceIndex;
+        private int mType;
+        private String mSourceName;
+        private int mSourceLocation;
+        private String mTargetName;
+        private int mTargetLocation;
+    }
+
+    private int mTargetProgramHandle;
+    private List<Entry> mEntries;
+    private List<UniformState> mSources;
+    private int[] mSourceModificationCounts;
+
+    public UniformMirror(int targetProgramHandle) {
+        mTargetProgramHandle = targetProgramHandle;
+        mEntries = new ArrayList<>();
+        mSources = new ArrayList<>();
+        mSourceModificationCounts = new int[0];
+    }
+
+    /**
+     * Tells if a uniform is set per draw call and therefore not mirrored.
+     */
+    public static boolean isDrawUniform(String name) {
+        return name.equals("s_Texture") || name.equals("u_TextureSize")
+                || name.equals("u_MVPMatrix") || name.equals("u_STMatrix")
+                || name.equals("u_ExtSTMatrix");
+    }
+
+    /**
+     * Mirrors all active uniforms of a source program into the same-named uniforms of the target
+     * program, with the names optionally prefixed. Uniforms that are not active in the target
+     * program are skipped.
+     * @param source the program to mirror the uniform values from
+     * @param targetPrefix the prefix of the uniform names in the target program, can be empty
+     */
+    public void addActiveUniforms(ShaderProgram source, String targetPrefix) {
+        int[] count = new int[1];
+        int[] size = new int[1];
+        int[] type = new int[1];
+        GLES20.glGetProgramiv(source.getHandle(), GLES20.GL_ACTIVE_UNIFORMS, count, 0);
+        for (int i = 0; i < count[0]; i++) {
+            String name = GLES20.glGetActiveUniform(source.getHandle(), i, size, 0, type, 0);
+            if (isDrawUniform(name)) {
+                continue;
+            }
+            if (size[0] > 1) {
+                throw new IllegalArgumentException("uniform arrays are not supported: " + name);
+            }
+            add(source, name, type[0], targetPrefix + name);
+        }
+    }
+
+    private void add(ShaderProgram source, String sourceName, int type, String targetName) {
+        Entry entry = new Entry();
+        entry.mSource = source;
+        entry.mSourceState = source.getUniformState();
+        entry.mType = type;
+        entry.mSourceName = sourceName;
+        entry.mSourceLocation = GLES20.glGetUniformLocation(source.getHandle(), sourceName);
+        entry.mSourceIndex = entry.mSourceState.indexOf(entry.mSourceLocation);
+        entry.mTargetName = targetName;
+        entry.mTargetLocation = GLES20.glGetUniformLocation(mTargetProgramHandle, targetName);
+        GLUtils.checkError("glGetUniformLocation " + targetName);
+
+        if (entry.mTargetLocation == -1 || entry.mSourceIndex == -1) {
+            return; // not used in the target program
+        }
+
+        mEntries.add(entry);
+        if (!mSources.contains(entry.mSourceState)) {
+            mSources.add(entry.mSourceState);
+            mSourceModificationCounts = new int[mSources.size()];
+            invalidate();
+        }
+    }
+
+    /**
+     * Creates a mirror that copies the same source uniforms into another target program, in which
+     * the names of this mirror's target uniforms are prefixed with the given prefix.
+     */
+    public UniformMirror retarget(int targetProgramHandle, String targetPrefix) {
+        UniformMirror mirror = new UniformMirror(targetProgramHandle);
+        for (Entry entry : mEntries) {
+            mirror.add(entry.mSource, entry.mSourceName, entry.mType, targetPrefix + entry.mTargetName);
+        }
+        return mirror;
+    }
+
+    /**
+     * Forces the next {@link #mirror()} call to copy all values.
+     */
+    public void invalidate() {
+        for (int i = 0; i < mSourceModificationCounts.length; i++) {
+            mSourceModificationCounts[i] = mSources.get(i).getModificationCount() - 1;
+        }
+    }
+
+    /**
+     * Copies the values of all changed sources into the target program. The target program must
+     * be the current program.
+     */
+    public void mirror() {
+        boolean changed = false;
+        for (int i = 0; i < mSourceModificationCounts.length; i++) {
+            if (mSources.get(i).getModificationCount() != mSourceModificationCounts[i]) {
+                changed = true;
+                break;
+            }
+        }
+        if (!changed) {
+            return;
+        }
+
+        for (int i = 0; i < mEntries.size(); i++) {
+            Entry entry = mEntries.get(i);
+            int sourceIndex = mSources.indexOf(entry.mSourceState);
+            if (entry.mSourceState.getModificationCount() != mSourceModificationCounts[sourceIndex]) {
+                UniformState.setUniform(entry.mTargetLocation, entry.mType,
+                        entry.mSourceState.getFloatValues(entry.mSourceIndex),
+                        entry.mSourceState.getIntValues(entry.mSourceIndex));
+            }
+        }
+
+        for (int i = 0; i < mSourceModificationCounts.length; i++) {
+            mSourceModificationCounts[i] = mSources.get(i).getModificationCount();
+        }
+
+        GLUtils.checkError("UniformMirror.mirror");
+    }
+}
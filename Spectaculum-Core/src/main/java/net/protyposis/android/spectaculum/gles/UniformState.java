@@ -0,0 +1,268 @@
+/*
+ * Copyright 2016 Mario Guggenberger <mg@protyposis.net>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.protyposis.android.spectaculum.gles;
+
+import android.opengl.GLES20;
+
+/**
+ * A CPU-side shadow of the values of all active uniforms of a program. Uniform values are stored
+ * in the program object, so when several {@link ShaderProgram} objects share a program object
+ * through the {@link ShaderProgramCache}, each object keeps its own values in a uniform state.
+ * The state of the shader program that is in use is attached to the {@link GLState}, which
+ * writes all uniform values that are set through it into the state, so the values never have to
+ * be read back from GL. Elements of uniform arrays are stored as separate uniforms.
+ */
+class UniformState {
+
+    private int[] mLocations;
+    private int[] mTypes;
+    private float[][] mFloatValues;
+    private int[][] mIntValues;
+    private int mModificationCount;
+
+    /**
+     * Creates a state with the default values of all active uniforms of a program, which are
+     * the values of a freshly linked program (all zero).
+     */
+    UniformState(int programHandle) {
+        int[] count = new int[1];
+        int[] size = new int[1];
+        int[] type = new int[1];
+
+        GLES20.glGetProgramiv(programHandle, GLES20.GL_ACTIVE_UNIFORMS, count, 0);
+        int elementCount = 0;
+        for (int i = 0; i < count[0]; i++) {
+            GLES20.glGetActiveUniform(programHandle, i, size, 0, type, 0);
+            elementCount += size[0];
+        }
+
+        mLocations = new int[elementCount];
+        mTypes = new int[elementCount];
+        mFloatValues = new float[elementCount][];
+        mIntValues = new int[elementCount][];
+
+        int element = 0;
+        for (int i = 0; i < count[0]; i++) {
+            String name = GLES20.glGetActiveUniform(programHandle, i, size, 0, type, 0);
+            if (name.endsWith("[0]")) {
+                name = name.substring(0, name.length() - 3);
+            }
+            for (int j = 0; j < size[0]; j++) {
+                String elementName = size[0] > 1 ? name + "[" + j + "]" : name;
+                mLocations[element] = GLES20.glGetUniformLocation(programHandle, elementName);
+                mTypes[element] = type[0];
+                if (isFloatType(type[0])) {
+                    mFloatValues[element] = new float[getComponentCount(type[0])];
+                } else {
+                    mIntValues[element] = new int[getComponentCount(type[0])];
+                }
+                element++;
+            }
+        }
+        GLUtils.checkError("UniformState");
+    }
+
+    /**
+     * Stores float values that are set to a uniform or a sequence of uniform array elements.
+     * Values of uniforms that are not active or of another type are ignored.
+     * @param count the number of array elements
+     * @param size the number of values per element
+     */
+    void store(int location, int count, float[] v, int offset, int size) {
+        int i = indexOf(location);
+        if (i == -1) {
+            return;
+        }
+        for (int j = 0; j < count && i + j < mLocations.length; j++) {
+            float[] values = mFloatValues[i + j];
+            if (values == null || values.length != size) {
+                return;
+            }
+            for (int k = 0; k < size; k++) {
+                if (values[k] != v[offset + j * size + k]) {
+                    System.arraycopy(v, offset + j * size, values, 0, size);
+                    mModificationCount++;
+                    break;
+                }
+            }
+        }
+    }
+
+    /**
+     * Stores int values that are set to a uniform or a sequence of uniform array elements.
+     * @see #store(int, int, float[], int, int)
+     */
+    void store(int location, int count, int[] v, int offset, int size) {
+        int i = indexOf(location);
+        if (i == -1) {
+            return;
+        }
+        for (int j = 0; j < count && i + j < mLocations.length; j++) {
+            int[] values = mIntValues[i + j];
+            if (values == null || values.length != size) {
+                return;
+            }
+            for (int k = 0; k < size; k++) {
+                if (values[k] != v[offset + j * size + k]) {
+                    System.arraycopy(v, offset + j * size, values, 0, size);
+                    mModificationCount++;
+                    break;
+                }
+            }
+        }
+    }
+
+    /**
+     * Gets the number of times a stored value has changed, so users of the values can tell if
+     * they are still up to date.
+     */
+    int getModificationCount() {
+        return mModificationCount;
+    }
+
+    /**
+     * Writes the stored values into the uniforms of the current program. Values that the
+     * program object already holds are elided by the {@link GLState}, so only the values that
+     * differ from those of the previous user of the program object are uploaded.
+     */
+    void restore() {
+        for (int i = 0; i < mLocations.length; i++) {
+            setUniform(mLocations[i], mTypes[i], mFloatValues[i], mIntValues[i]);
+        }
+        GLUtils.checkError("UniformState.restore");
+    }
+
+    /**
+     * Gets the stored values of the uniform at an index, or null if it is not a float type uniform.
+     * The returned array must not be modified.
+     */
+    float[] getFloatValues(int index) {
+        return mFloatValues[index];
+    }
+
+    /**
+     * Gets the stored values of the uniform at an index, or null if it is a float type uniform.
+     * The returned array must not be modified.
+     */
+    int[] getIntValues(int index) {
+        return mIntValues[index];
+    }
+
+    /**
+     * Gets the index of the uniform at a location.
+     * @return the index, or -1 if there is no active uniform at the location
+     */
+    int indexOf(int location) {
+        if (location == -1) {
+            return -1;
+        }
+        for (int i = 0; i < mLocations.length; i++) {
+            if (mLocations[i] == location) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Tells if the values of a uniform type are floats and not ints.
+     */
+    static boolean isFloatType(int type) {
+        switch (type) {
+            case GLES20.GL_FLOAT:
+            case GLES20.GL_FLOAT_VEC2:
+            case GLES20.GL_FLOAT_VEC3:
+            case GLES20.GL_FLOAT_VEC4:
+            case GLES20.GL_FLOAT_MAT2:
+            case GLES20.GL_FLOAT_MAT3:
+            case GLES20.GL_FLOAT_MAT4:
+                return true;
+            default: // int, bool and sampler types
+                return false;
+        }
+    }
+
+    private static int getComponentCount(int type) {
+        switch (type) {
+            case GLES20.GL_FLOAT_VEC2:
+            case GLES20.GL_INT_VEC2:
+            case GLES20.GL_BOOL_VEC2:
+                return 2;
+            case GLES20.GL_FLOAT_VEC3:
+            case GLES20.GL_INT_VEC3:
+            case GLES20.GL_BOOL_VEC3:
+                return 3;
+            case GLES20.GL_FLOAT_VEC4:
+            case GLES20.GL_INT_VEC4:
+            case GLES20.GL_BOOL_VEC4:
+            case GLES20.GL_FLOAT_MAT2:
+                return 4;
+            case GLES20.GL_FLOAT_MAT3:
+                return 9;
+            case GLES20.GL_FLOAT_MAT4:
+                return 16;
+            default: // scalar types
+                return 1;
+        }
+    }
+
+    /**
+     * Sets a single uniform of the current program from a float or an int array, depending on
+     * the type of the uniform.
+     */
+    static void setUniform(int location, int type, float[] floatValues, int[] intValues) {
+        GLState state = GLState.getCurrent();
+        switch (type) {
+            case GLES20.GL_FLOAT:
+                state.uniform1fv(location, 1, floatValues, 0);
+                break;
+            case GLES20.GL_FLOAT_VEC2:
+                state.uniform2fv(location, 1, floatValues, 0);
+                break;
+            case GLES20.GL_FLOAT_VEC3:
+                state.uniform3fv(location, 1, floatValues, 0);
+                break;
+            case GLES20.GL_FLOAT_VEC4:
+                state.uniform4fv(location, 1, floatValues, 0);
+                break;
+            case GLES20.GL_FLOAT_MAT2:
+                state.uniformMatrix2fv(location, 1, floatValues, 0);
+                break;
+            case GLES20.GL_FLOAT_MAT3:
+                state.uniformMatrix3fv(location, 1, floatValues, 0);
+                break;
+            case GLES20.GL_FLOAT_MAT4:
+                state.uniformMatrix4fv(location, 1, floatValues, 0);
+                break;
+            case GLES20.GL_INT_VEC2:
+            case GLES20.GL_BOOL_VEC2:
+                state.uniform2iv(location, 1, intValues, 0);
+                break;
+            case GLES20.GL_INT_VEC3:
+            case GLES20.GL_BOOL_VEC3:
+                state.uniform3iv(location, 1, intValues, 0);
+                break;
+            case GLES20.GL_INT_VEC4:
+            case GLES20.GL_BOOL_VEC4:
+                state.uniform4iv(location, 1, intValues, 0);
+                break;
+            default: // int, bool and sampler types
+                state.uniform1iv(location, 1, intValues, 0);
+                break;
+        }
+    }
+}
@@ -30,6 +30,7 @@ public class WatermarkShaderProgram extends TextureShaderProgram {
     private int mWatermarkOpacityHandle;
     private int mWatermarkMarginHandle;
     private int mWatermarkAlignmentHandle;
+    private Texture2D mWatermarkTexture;
 
     public WatermarkShaderProgram() {
         super("fs_watermark.glsl");
@@ -50,13 +51,19 @@ public class WatermarkShaderProgram extends TextureShaderProgram {
 
     public void setWatermark(Texture2D watermarkTexture) {
         use();
+        mWatermarkTexture = watermarkTexture;
 
         // Use TEXTURE1 for the watermark, TEXTURE0 is taken by the input
-        GLES20.glActiveTexture(GLES20.GL_TEXTURE1);
-        GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, watermarkTexture.getHandle());
-        GLES20.glUniform1i(mWatermarkHandle, 1); // bind texture unit 1 to the uniform
+        GLState state = GLState.getCurrent();
+        state.uniform1i(mWatermarkHandle, 1); // bind texture unit 1 to the uniform
+        state.uniform2f(mWatermarkSizeHandle, watermarkTexture.getWidth(), watermarkTexture.getHeight());
+    }
 
-        GLES20.glUniform2f(mWatermarkSizeHandle, watermarkTexture.getWidth(), watermarkTexture.getHeight());
+    @Override
+    public void bindAdditionalTextures() {
+        if (mWatermarkTexture != null) {
+            GLState.getCurrent().bindTexture(GLES20.GL_TEXTURE1, GLES20.GL_TEXTURE_2D, mWatermarkTexture.getHandle());
+        }
     }
 
     public void setWatermarkScale(float scale) {
@@ -64,7 +71,7 @@ public class WatermarkShaderProgram extends TextureShaderProgram {
             throw new RuntimeException("scale must be in range [0, 10]");
         }
         use();
-        GLES20.glUniform1f(mWatermarkScaleHandle, scale);
+        GLState.getCurrent().uniform1f(mWatermarkScaleHandle, scale);
     }
 
     public void setWatermarkOpacity(float opacity) {
@@ -72,16 +79,16 @@ public class WatermarkShaderProgram extends TextureShaderProgram {
             throw new RuntimeException("opacity must be in range [0, 1]");
         }
         use();
-        GLES20.glUniform1f(mWatermarkOpacityHandle, opacity);
+        GLState.getCurrent().uniform1f(mWatermarkOpacityHandle, opacity);
     }
 
     public void setWatermarkMargin(float x, float y) {
         use();
-        GLES20.glUniform2f(mWatermarkMarginHandle, x, y);
+        GLState.getCurrent().uniform2f(mWatermarkMarginHandle, x, y);
     }
 
     public void setWatermarkAlignment(int alignment) {
         use();
-        GLES20.glUniform1i(mWatermarkAlignmentHandle, alignment);
+        GLState.getCurrent().uniform1i(mWatermarkAlignmentHandle, alignment);
     }
 }
@@ -239,7 +239,10 @@ public class EffectManager implements SpectaculumView.EffectEventListener, Effec
 
     @Override
     public void onEffectInitialized(int index, final Effect effect) {
-        // nothing to do here
+        if(effect == getSelectedEffect()) {
+            // The selected effect has been reacquired after a release and comes with new parameters
+            viewEffectParameters(effect);
+        }
     }
 
     @Override
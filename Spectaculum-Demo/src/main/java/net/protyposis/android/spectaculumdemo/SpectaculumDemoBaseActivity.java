@@ -60,6 +60,9 @@ public abstract class SpectaculumDemoBaseActivity extends Activity {
         mSpectaculumView = (SpectaculumView) findViewById(R.id.spectaculum);
         mProgressIndicator = (ProgressBar) findViewById(R.id.progress);
 
+        // Keep compiled shader programs across app starts
+        mSpectaculumView.setProgramBinaryCacheEnabled(true);
+
         // Initialize Spectaculum effects
         mEffectManager = new EffectManager(this, R.id.parameterlist, mSpectaculumView);
         mEffectManager.addEffects();
@@ -18,6 +18,7 @@ package net.protyposis.android.spectaculumdemo.testeffect;
 
 import android.opengl.GLES20;
 
+import net.protyposis.android.spectaculum.gles.GLState;
 import net.protyposis.android.spectaculum.gles.GLUtils;
 import net.protyposis.android.spectaculum.gles.TextureShaderProgram;
 
@@ -41,11 +42,11 @@ public class InterlaceShaderProgram extends TextureShaderProgram {
 
     public void setOpacity(float opacity) {
         use();
-        GLES20.glUniform1f(mOpacityHandle, opacity);
+        GLState.getCurrent().uniform1f(mOpacityHandle, opacity);
     }
 
     public void setDistance(int distance) {
         use();
-        GLES20.glUniform1i(mDistanceHandle, distance);
+        GLState.getCurrent().uniform1i(mDistanceHandle, distance);
     }
 }
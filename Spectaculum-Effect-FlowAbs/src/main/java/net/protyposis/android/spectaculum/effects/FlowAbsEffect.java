@@ -210,8 +210,36 @@ public class FlowAbsEffect extends BaseEffect {
 
     @Override
     public void init(int width, int height) {
+        FlowAbs previousFlowAbs = mFlowAbs;
         mFlowAbs = new FlowAbs(width, height);
-        setInitialized();
+        if(previousFlowAbs != null) {
+            // Released after the new instance has been created, so the shaders are taken from the program cache
+            previousFlowAbs.release();
+        }
+        setInitialized(width, height);
+    }
+
+    @Override
+    public void release() {
+        if(mFlowAbs != null) {
+            mFlowAbs.release();
+            mFlowAbs = null;
+        }
+        super.release();
+    }
+
+    @Override
+    public void resize(int width, int height) {
+        if(!isInitialized()) {
+            init(width, height);
+            return;
+        }
+        if(isInitializedAt(width, height)) {
+            // Resized already through another subeffect, regenerating the noise texture is expensive
+            return;
+        }
+        mFlowAbs.setSize(width, height);
+        setResolution(width, height);
     }
 
     @Override
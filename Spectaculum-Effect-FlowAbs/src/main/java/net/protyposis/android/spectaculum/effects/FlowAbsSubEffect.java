@@ -43,6 +43,32 @@ public abstract class FlowAbsSubEffect extends BaseEffect {
         }
     }
 
+    @Override
+    public void resize(int width, int height) {
+        mFlowAbsEffect.resize(width, height);
+    }
+
+    /**
+     * A subeffect is initialized when the shared FlowAbs effect is initialized.
+     */
+    @Override
+    public boolean isInitialized() {
+        return mFlowAbsEffect.isInitialized();
+    }
+
+    @Override
+    public boolean isInitializedAt(int width, int height) {
+        return mFlowAbsEffect.isInitializedAt(width, height);
+    }
+
+    /**
+     * Does nothing because the resources belong to the shared FlowAbs effect, which can be used
+     * by other subeffects and needs to be released itself.
+     */
+    @Override
+    public void release() {
+    }
+
     FlowAbsSubEffect init(FlowAbsEffect flowAbsEffect) {
         mFlowAbsEffect = flowAbsEffect;
         return this;
@@ -21,6 +21,7 @@ package net.protyposis.android.spectaculum.gles.flowabs;
 
 import android.opengl.GLES20;
 
+import net.protyposis.android.spectaculum.gles.GLState;
 import net.protyposis.android.spectaculum.gles.GLUtils;
 
 /**
@@ -45,10 +46,10 @@ public class ColorQuantizationShaderProgram extends FlowabsShaderProgram {
     }
 
     public void setNumBins(int numBins) {
-        GLES20.glUniform1i(mNBinsHandler, numBins);
+        GLState.getCurrent().uniform1i(mNBinsHandler, numBins);
     }
 
     public void setPhiQ(float phiQ) {
-        GLES20.glUniform1f(mPhiQHandler, phiQ);
+        GLState.getCurrent().uniform1f(mPhiQHandler, phiQ);
     }
 }
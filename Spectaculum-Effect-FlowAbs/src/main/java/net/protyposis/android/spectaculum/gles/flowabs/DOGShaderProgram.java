@@ -21,6 +21,7 @@ package net.protyposis.android.spectaculum.gles.flowabs;
 
 import android.opengl.GLES20;
 
+import net.protyposis.android.spectaculum.gles.GLState;
 import net.protyposis.android.spectaculum.gles.GLUtils;
 
 /**
@@ -53,15 +54,15 @@ public class DOGShaderProgram extends FlowabsShaderProgram {
     }
 
     public void setSigmaE(float sigmaE) {
-        GLES20.glUniform1f(mSigmaEHandle, sigmaE);
+        GLState.getCurrent().uniform1f(mSigmaEHandle, sigmaE);
     }
     public void setSigmaR(float sigmaR) {
-        GLES20.glUniform1f(mSigmaRHandle, sigmaR);
+        GLState.getCurrent().uniform1f(mSigmaRHandle, sigmaR);
     }
     public void setTau(float tau) {
-        GLES20.glUniform1f(mTauHandle, tau);
+        GLState.getCurrent().uniform1f(mTauHandle, tau);
     }
     public void setPhi(float phi) {
-        GLES20.glUniform1f(mPhiHandle, phi);
+        GLState.getCurrent().uniform1f(mPhiHandle, phi);
     }
 }
@@ -20,6 +20,8 @@
 package net.protyposis.android.spectaculum.gles.flowabs;
 
 import net.protyposis.android.spectaculum.gles.Framebuffer;
+import net.protyposis.android.spectaculum.gles.FramebufferPool;
+import net.protyposis.android.spectaculum.gles.GpuTimer;
 import net.protyposis.android.spectaculum.gles.Texture2D;
 import net.protyposis.android.spectaculum.gles.TextureShaderProgram;
 import net.protyposis.android.spectaculum.gles.TexturedRectangle;
@@ -29,14 +31,8 @@ import net.protyposis.android.spectaculum.gles.TexturedRectangle;
  */
 public class FlowAbs {
 
-    private Framebuffer mFramebuffer1;
-    private Framebuffer mFramebuffer2;
-    private Framebuffer mFramebuffer3;
-    private Framebuffer mFramebuffer4;
-    private Framebuffer mFramebuffer5;
-    private Framebuffer mFramebuffer6;
-    private Framebuffer mFramebuffer7;
-    private Framebuffer mFramebuffer8;
+    private int mWidth;
+    private int mHeight;
 
     private RandomLuminanceNoiseTexture mNoiseTexture;
 
@@ -64,65 +60,87 @@ public class FlowAbs {
         mTexturedRectangle.reset();
 
         mSstShader = new SmoothedStructureTensorShaderProgram();
-        mSstShader.setTextureSize(width, height);
-
         mGaussShader = new GaussShaderProgram();
-        mGaussShader.setTextureSize(width, height);
-
         mGauss3x3Shader = new TextureGauss3x3ShaderProgram();
-        mGauss3x3Shader.setTextureSize(width, height);
-
         mGauss5x5Shader = new TextureGauss5x5ShaderProgram();
-        mGauss5x5Shader.setTextureSize(width, height);
-
         mTfmShader = new TangentFlowMapShaderProgram();
-        mTfmShader.setTextureSize(width, height);
-
         mLicShader = new LineIntegralConvolutionShaderProgram();
-        mLicShader.setTextureSize(width, height);
-
         mDogShader = new DOGShaderProgram();
-        mDogShader.setTextureSize(width, height);
-
         mRgb2LabShader = new RGB2LABShaderProgram();
-        mRgb2LabShader.setTextureSize(width, height);
-
         mLab2RgbShader = new LAB2RGBShaderProgram();
-        mLab2RgbShader.setTextureSize(width, height);
-
         mFdog0Shader = new FDOG0ShaderProgram();
-        mFdog0Shader.setTextureSize(width, height);
-
         mFdog1Shader = new FDOG1ShaderProgram();
-        mFdog1Shader.setTextureSize(width, height);
-
         mTextureCopyShader = new TextureShaderProgram();
-        mTextureCopyShader.setTextureSize(width, height);
-
         mBilateralFilterShader = new OrientationAlignedBilateralFilterShaderProgram();
-        mBilateralFilterShader.setTextureSize(width, height);
-
         mColorQuantizationShader = new ColorQuantizationShaderProgram();
-        mColorQuantizationShader.setTextureSize(width, height);
-
         mMixEdgesShader = new MixWithEdgesShaderProgram();
-        mMixEdgesShader.setTextureSize(width, height);
-
         mOverlayShader = new OverlayShaderProgram();
-        mOverlayShader.setTextureSize(width, height);
 
-        mFramebuffer1 = new Framebuffer(width, height);
-        mFramebuffer2 = new Framebuffer(width, height);
-        mFramebuffer3 = new Framebuffer(width, height);
-        mFramebuffer4 = new Framebuffer(width, height);
-        mFramebuffer5 = new Framebuffer(width, height);
-        mFramebuffer6 = new Framebuffer(width, height);
-        mFramebuffer7 = new Framebuffer(width, height);
-        mFramebuffer8 = new Framebuffer(width, height);
+        setSize(width, height);
+    }
 
+    /**
+     * Adapts the processing to a new resolution without recompiling the shaders.
+     */
+    public void setSize(int width, int height) {
+        mWidth = width;
+        mHeight = height;
+
+        for (TextureShaderProgram shader : getShaders()) {
+            shader.setTextureSize(width, height);
+        }
+
+        // The noise texture has the size of the processed image
+        if (mNoiseTexture != null) {
+            mNoiseTexture.delete();
+        }
         mNoiseTexture = RandomLuminanceNoiseTexture.generate(width, height);
     }
 
+    /**
+     * Deletes the shaders and the noise texture. The instance must not be used anymore afterwards.
+     */
+    public void release() {
+        for (TextureShaderProgram shader : getShaders()) {
+            shader.deleteProgram();
+        }
+        mNoiseTexture.delete();
+        mNoiseTexture = null;
+    }
+
+    private TextureShaderProgram[] getShaders() {
+        return new TextureShaderProgram[] {
+                mSstShader,
+                mGaussShader,
+                mGauss3x3Shader,
+                mGauss5x5Shader,
+                mTfmShader,
+                mLicShader,
+                mDogShader,
+                mRgb2LabShader,
+                mLab2RgbShader,
+                mFdog0Shader,
+                mFdog1Shader,
+                mTextureCopyShader,
+                mBilateralFilterShader,
+                mColorQuantizationShader,
+                mMixEdgesShader,
+                mOverlayShader
+        };
+    }
+
+    /**
+     * Leases an intermediate framebuffer from the framebuffer pool of the current GL context.
+     * Must be returned with {@link #release(Framebuffer)} when the processing step is finished.
+     */
+    private Framebuffer obtain() {
+        return FramebufferPool.getCurrent().obtain(mWidth, mHeight);
+    }
+
+    private void release(Framebuffer framebuffer) {
+        FramebufferPool.getCurrent().release(framebuffer);
+    }
+
     private void copy(Texture2D source, Framebuffer target) {
         target.bind();
         mTextureCopyShader.use();
@@ -149,15 +167,21 @@ public class FlowAbs {
     }
 
     public void tangentFlowMap(Texture2D source, Framebuffer target, float sigma) {
-        tangentFlowMap(source, mFramebuffer1, mFramebuffer2, sigma);
+        Framebuffer fb1 = obtain();
+        Framebuffer fb2 = obtain();
 
-        //copy(mFramebuffer1.getTexture(), target);
+        tangentFlowMap(source, fb1, fb2, sigma);
+
+        //copy(fb1.getTexture(), target);
 
         target.bind();
         mLicShader.use();
-        mLicShader.setTexture(mNoiseTexture, mFramebuffer1.getTexture());
+        mLicShader.setTexture(mNoiseTexture, fb1.getTexture());
         mLicShader.setSigma(5.0f);
         mTexturedRectangle.draw(mLicShader);
+
+        release(fb1);
+        release(fb2);
     }
 
     public void gauss(Texture2D source, Framebuffer target, float sigma) {
@@ -186,11 +210,16 @@ public class FlowAbs {
     public void smoothFilter(Texture2D source, Framebuffer target, int type, float sigma) {
         if(type == 0) {
             copy(source, target);
+        } else if(type == 3) {
+            Framebuffer fb1 = obtain();
+            Framebuffer fb2 = obtain();
+            tangentFlowMap(source, fb1, fb2, sigma);
+            smoothFilter(source, fb1.getTexture(), target, type, sigma);
+            release(fb1);
+            release(fb2);
         } else {
-            if(type == 3) {
-                tangentFlowMap(source, mFramebuffer1, mFramebuffer2, sigma);
-            }
-            smoothFilter(source, mFramebuffer1.getTexture(), target, type, sigma);
+            // the gauss filters do not need a tangent flow map
+            smoothFilter(source, null, target, type, sigma);
         }
     }
 
@@ -220,14 +249,22 @@ public class FlowAbs {
     }
 
     public void bilateralFilter(Texture2D source, Framebuffer target, float gaussSigma, int n, float sigmaD, float sigmaR) {
-        rgb2lab(source, mFramebuffer1);
+        Framebuffer fb1 = obtain();
+        rgb2lab(source, fb1);
         if(n > 0) {
-            tangentFlowMap(source, mFramebuffer2, mFramebuffer3, gaussSigma);
-            bilateralFilter(mFramebuffer1.getTexture(), mFramebuffer2.getTexture(), mFramebuffer3, n, sigmaD, sigmaR, mFramebuffer4);
-            lab2rgb(mFramebuffer3.getTexture(), target);
+            Framebuffer fb2 = obtain();
+            Framebuffer fb3 = obtain();
+            Framebuffer fb4 = obtain();
+            tangentFlowMap(source, fb2, fb3, gaussSigma);
+            bilateralFilter(fb1.getTexture(), fb2.getTexture(), fb3, n, sigmaD, sigmaR, fb4);
+            lab2rgb(fb3.getTexture(), target);
+            release(fb2);
+            release(fb3);
+            release(fb4);
         } else {
-            lab2rgb(mFramebuffer1.getTexture(), target);
+            lab2rgb(fb1.getTexture(), target);
         }
+        release(fb1);
     }
 
     private void dog(Texture2D source, Framebuffer target, Framebuffer tmp1, int n, float sigmaE, float sigmaR, float tau, float phi) {
@@ -249,7 +286,9 @@ public class FlowAbs {
     }
 
     public void dog(Texture2D source, Framebuffer target, int n, float sigmaE, float sigmaR, float tau, float phi) {
-        dog(source, target, mFramebuffer1, n, sigmaE, sigmaR, tau, phi);
+        Framebuffer fb1 = obtain();
+        dog(source, target, fb1, n, sigmaE, sigmaR, tau, phi);
+        release(fb1);
     }
 
     public void rgb2lab(Texture2D source, Framebuffer target) {
@@ -294,10 +333,20 @@ public class FlowAbs {
 
     public void fdog(Texture2D source, Framebuffer target, float gaussSigma,
                      int n, float sigmaE, float sigmaR, float tau, float sigmaM, float phi) {
-        rgb2lab(source, mFramebuffer1);
-        tangentFlowMap(source, mFramebuffer2, mFramebuffer3, gaussSigma);
-        fdog(mFramebuffer1.getTexture(), mFramebuffer2.getTexture(), target,
-                mFramebuffer3, mFramebuffer4, mFramebuffer5, n, sigmaE, sigmaR, tau, sigmaM, phi);
+        Framebuffer fb1 = obtain();
+        Framebuffer fb2 = obtain();
+        Framebuffer fb3 = obtain();
+        Framebuffer fb4 = obtain();
+        Framebuffer fb5 = obtain();
+        rgb2lab(source, fb1);
+        tangentFlowMap(source, fb2, fb3, gaussSigma);
+        fdog(fb1.getTexture(), fb2.getTexture(), target,
+                fb3, fb4, fb5, n, sigmaE, sigmaR, tau, sigmaM, phi);
+        release(fb1);
+        release(fb2);
+        release(fb3);
+        release(fb4);
+        release(fb5);
     }
 
     private void colorQuantization(Texture2D source, Framebuffer target, Framebuffer tmp1, int filter, int numBins, float phiQ) {
@@ -318,9 +367,15 @@ public class FlowAbs {
     }
 
     public void colorQuantization(Texture2D source, Framebuffer target, int filter, int numBins, float phiQ) {
-        rgb2lab(source, mFramebuffer1); // TODO should be bilateral filter
-        colorQuantization(mFramebuffer1.getTexture(), mFramebuffer2, mFramebuffer3, filter, numBins, phiQ);
-        lab2rgb(mFramebuffer2.getTexture(), target);
+        Framebuffer fb1 = obtain();
+        Framebuffer fb2 = obtain();
+        Framebuffer fb3 = obtain();
+        rgb2lab(source, fb1); // TODO should be bilateral filter
+        colorQuantization(fb1.getTexture(), fb2, fb3, filter, numBins, phiQ);
+        lab2rgb(fb2.getTexture(), target);
+        release(fb1);
+        release(fb2);
+        release(fb3);
     }
 
     public void mix(Texture2D source, Texture2D edges, Framebuffer target, float[] edgeColor) {
@@ -345,35 +400,76 @@ public class FlowAbs {
                         int cqFilter, int cqNumBins, float cqPhiQ,
                         float[] edgeColor,
                         int fsType, float fsSigma) {
-        rgb2lab(source, mFramebuffer1); // -> FB1 lab
-        tangentFlowMap(source, mFramebuffer2, mFramebuffer3, sstSigma); // -> FB2 tfm
+        Framebuffer fb1 = obtain();
+        Framebuffer fb2 = obtain();
+        Framebuffer fb3 = obtain();
+        Framebuffer fb4 = obtain();
+        Framebuffer fb5 = obtain();
+        Framebuffer fb6 = obtain();
+        Framebuffer fb7 = obtain();
+        Framebuffer fb8 = obtain();
+
+        GpuTimer timer = GpuTimer.getCurrent();
+        timer.beginPass("rgb2lab");
+        rgb2lab(source, fb1); // -> FB1 lab
+        timer.endPass();
+        timer.beginPass("tangentFlowMap");
+        tangentFlowMap(source, fb2, fb3, sstSigma); // -> FB2 tfm
+        timer.endPass();
         if(bfNE > 0) {
-            bilateralFilter(mFramebuffer1.getTexture(), mFramebuffer2.getTexture(), mFramebuffer3, bfNE, bfSigmaD, bfSigmaR, mFramebuffer4); // -> FB3 bfe
+            timer.beginPass("bilateralFilterEdges");
+            bilateralFilter(fb1.getTexture(), fb2.getTexture(), fb3, bfNE, bfSigmaD, bfSigmaR, fb4); // -> FB3 bfe
+            timer.endPass();
         }
         if(bfNA > 0) {
-            bilateralFilter(mFramebuffer1.getTexture(), mFramebuffer2.getTexture(), mFramebuffer4, bfNE, bfSigmaD, bfSigmaR, mFramebuffer5); // -> FB4 bfa
+            timer.beginPass("bilateralFilterAbstraction");
+            bilateralFilter(fb1.getTexture(), fb2.getTexture(), fb4, bfNE, bfSigmaD, bfSigmaR, fb5); // -> FB4 bfa
+            timer.endPass();
         }
         if(fdogType == 0) {
-            fdog((bfNE > 0 ? mFramebuffer3 : mFramebuffer1).getTexture(), mFramebuffer2.getTexture(),
-                    mFramebuffer5, mFramebuffer6, mFramebuffer7, mFramebuffer8,
+            timer.beginPass("fdog");
+            fdog((bfNE > 0 ? fb3 : fb1).getTexture(), fb2.getTexture(),
+                    fb5, fb6, fb7, fb8,
                     fdogN, fdogSigmaE, fdogSigmaR, fdogTau, fdogSigmaM, fdogPhi); // -> FB5 fdog edges
+            timer.endPass();
         } else {
-            dog((bfNE > 0 ? mFramebuffer3 : mFramebuffer1).getTexture(), mFramebuffer5, mFramebuffer6, fdogN, fdogSigmaE, fdogSigmaR, fdogTau, fdogPhi); // -> FB5 dog edges
+            timer.beginPass("dog");
+            dog((bfNE > 0 ? fb3 : fb1).getTexture(), fb5, fb6, fdogN, fdogSigmaE, fdogSigmaR, fdogTau, fdogPhi); // -> FB5 dog edges
+            timer.endPass();
         }
         // FB3 bfe free
-        colorQuantization((bfNA > 0 ? mFramebuffer4 : mFramebuffer1).getTexture(), mFramebuffer3, mFramebuffer6, cqFilter, cqNumBins, cqPhiQ); // -> FB3 cq
+        timer.beginPass("colorQuantization");
+        colorQuantization((bfNA > 0 ? fb4 : fb1).getTexture(), fb3, fb6, cqFilter, cqNumBins, cqPhiQ); // -> FB3 cq
+        timer.endPass();
         // FB1 lab free
         // FB4 bfa free
-        lab2rgb(mFramebuffer3.getTexture(), mFramebuffer1); // -> FB1 cq_rgb
+        timer.beginPass("lab2rgb");
+        lab2rgb(fb3.getTexture(), fb1); // -> FB1 cq_rgb
+        timer.endPass();
         // FB3 cq free
-        mix(mFramebuffer1.getTexture(), mFramebuffer5.getTexture(), mFramebuffer3, edgeColor); // -> FS3 ov
+        timer.beginPass("mix");
+        mix(fb1.getTexture(), fb5.getTexture(), fb3, edgeColor); // -> FS3 ov
+        timer.endPass();
         // FB1 cq_rgb free
         // FB5 edges free
         if(fsType == 0) {
-            copy(mFramebuffer3.getTexture(), target);
+            timer.beginPass("copy");
+            copy(fb3.getTexture(), target);
+            timer.endPass();
         } else {
-            smoothFilter(mFramebuffer3.getTexture(), mFramebuffer2.getTexture(), target, fsType, fsSigma);
+            timer.beginPass("smoothFilter");
+            smoothFilter(fb3.getTexture(), fb2.getTexture(), target, fsType, fsSigma);
+            timer.endPass();
         }
         // FB* free
+
+        release(fb1);
+        release(fb2);
+        release(fb3);
+        release(fb4);
+        release(fb5);
+        release(fb6);
+        release(fb7);
+        release(fb8);
     }
 }
@@ -21,6 +21,7 @@ package net.protyposis.android.spectaculum.gles.flowabs;
 
 import android.opengl.GLES20;
 
+import net.protyposis.android.spectaculum.gles.GLState;
 import net.protyposis.android.spectaculum.gles.GLUtils;
 
 /**
@@ -36,11 +37,11 @@ public class GaussShaderProgram extends FlowabsShaderProgram {
         mSigmaHandle = GLES20.glGetUniformLocation(mProgramHandle, "sigma");
         GLUtils.checkError("glGetUniformLocation sigma");
 
-        GLES20.glUseProgram(getHandle());
+        use();
         setSigma(2.0f);
     }
 
     public void setSigma(float sigma) {
-        GLES20.glUniform1f(mSigmaHandle, sigma);
+        GLState.getCurrent().uniform1f(mSigmaHandle, sigma);
     }
 }
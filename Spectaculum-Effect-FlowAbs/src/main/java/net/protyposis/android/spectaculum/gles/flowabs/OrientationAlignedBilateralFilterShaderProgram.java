@@ -21,6 +21,7 @@ package net.protyposis.android.spectaculum.gles.flowabs;
 
 import android.opengl.GLES20;
 
+import net.protyposis.android.spectaculum.gles.GLState;
 import net.protyposis.android.spectaculum.gles.GLUtils;
 import net.protyposis.android.spectaculum.gles.Texture2D;
 
@@ -62,29 +63,30 @@ public class OrientationAlignedBilateralFilterShaderProgram extends FlowabsShade
     }
 
     public void setTexture(Texture2D img, Texture2D tfm) {
-        GLES20.glActiveTexture(GLES20.GL_TEXTURE0);
-        GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, img.getHandle());
-        GLES20.glUniform1i(mTextureHandle, 0); // bind texture unit 0 to the uniform
+        GLState state = GLState.getCurrent();
+        state.activeTexture(GLES20.GL_TEXTURE0);
+        state.bindTexture(GLES20.GL_TEXTURE_2D, img.getHandle());
+        state.uniform1i(mTextureHandle, 0); // bind texture unit 0 to the uniform
 
-        GLES20.glActiveTexture(GLES20.GL_TEXTURE1);
-        GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, tfm.getHandle());
-        GLES20.glUniform1i(mTextureHandle2, 1); // bind texture unit 1 to the uniform
+        state.activeTexture(GLES20.GL_TEXTURE1);
+        state.bindTexture(GLES20.GL_TEXTURE_2D, tfm.getHandle());
+        state.uniform1i(mTextureHandle2, 1); // bind texture unit 1 to the uniform
 
-        GLES20.glUniformMatrix4fv(mSTMatrixHandle, 1, false, img.getTransformMatrix(), 0);
+        state.uniformMatrix4fv(mSTMatrixHandle, 1, img.getTransformMatrix(), 0);
     }
 
     public void setPass(int pass) {
         if(pass != 0 && pass != 1) {
             throw new RuntimeException("pass must be 0 or 1");
         }
-        GLES20.glUniform1i(mPassHandle, pass);
+        GLState.getCurrent().uniform1i(mPassHandle, pass);
     }
 
     public void setSigmaD(float sigmaD) {
-        GLES20.glUniform1f(mSigmaDHandle, sigmaD);
+        GLState.getCurrent().uniform1f(mSigmaDHandle, sigmaD);
     }
 
     public void setSigmaR(float sigmaR) {
-        GLES20.glUniform1f(mSigmaRHandle, sigmaR);
+        GLState.getCurrent().uniform1f(mSigmaRHandle, sigmaR);
     }
 }
@@ -21,6 +21,7 @@ package net.protyposis.android.spectaculum.gles.flowabs;
 
 import android.opengl.GLES20;
 
+import net.protyposis.android.spectaculum.gles.GLState;
 import net.protyposis.android.spectaculum.gles.GLUtils;
 
 /**
@@ -39,8 +40,8 @@ public class TextureColorQuantizationShaderProgram extends FlowabsShaderProgram
         mPhiQHandle = GLES20.glGetUniformLocation(mProgramHandle, "phi_q");
         GLUtils.checkError("glGetUniformLocation phi_q");
 
-        GLES20.glUseProgram(getHandle());
-        GLES20.glUniform1i(mNumBinsHandle, 4);
-        GLES20.glUniform1f(mPhiQHandle, 3.4f);
+        use();
+        GLState.getCurrent().uniform1i(mNumBinsHandle, 4);
+        GLState.getCurrent().uniform1f(mPhiQHandle, 3.4f);
     }
 }
@@ -52,6 +52,7 @@ public class ImmersiveEffect extends ShaderEffect {
     private EquirectangularSphereShaderProgram mShaderProgram;
     private float mRotX, mRotY, mRotZ;
     private float[] mRotationMatrix = new float[16];
+    private FloatParameterBlock mRotationMatrixBlock = new FloatParameterBlock(16);
     private Mode mMode;
 
     private FloatParameter mParameterRotX, mParameterRotY, mParameterRotZ;
@@ -125,8 +126,8 @@ public class ImmersiveEffect extends ShaderEffect {
         System.arraycopy(R, 0, mRotationMatrix, 0, 16);
 
         if(isInitialized()) {
-            // Update the shader rotation matrix on the correct thread
-            getParameterHandler().post(mRotationMatrixUpdateRunnable);
+            // Hand the matrix over to the GL thread, which picks up the latest matrix per frame
+            mRotationMatrixBlock.set(mRotationMatrix);
 
             // Fire event to trigger a view update
             fireEffectChanged();
@@ -195,10 +196,11 @@ public class ImmersiveEffect extends ShaderEffect {
         }
     }
 
-    private Runnable mRotationMatrixUpdateRunnable = new Runnable() {
-        @Override
-        public void run() {
-            mShaderProgram.setRotationMatrix(mRotationMatrix);
+    @Override
+    protected void applyStagedParameterValues() {
+        super.applyStagedParameterValues();
+        if(mRotationMatrixBlock.swap()) {
+            mShaderProgram.setRotationMatrix(mRotationMatrixBlock.get());
         }
-    };
+    }
 }
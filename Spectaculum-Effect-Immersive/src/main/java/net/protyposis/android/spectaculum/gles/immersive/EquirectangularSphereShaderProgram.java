@@ -18,6 +18,7 @@ package net.protyposis.android.spectaculum.gles.immersive;
 
 import android.opengl.GLES20;
 
+import net.protyposis.android.spectaculum.gles.GLState;
 import net.protyposis.android.spectaculum.gles.GLUtils;
 import net.protyposis.android.spectaculum.gles.TextureShaderProgram;
 
@@ -41,7 +42,7 @@ public class EquirectangularSphereShaderProgram extends TextureShaderProgram {
 
     public void setRotationMatrix(float[] rotationMatrix) {
         use();
-        GLES20.glUniformMatrix4fv(mRotationMatrixHandle, 1, false, rotationMatrix, 0);
+        GLState.getCurrent().uniformMatrix4fv(mRotationMatrixHandle, 1, rotationMatrix, 0);
     }
 
     public void setMode(int mode) {
@@ -49,6 +50,6 @@ public class EquirectangularSphereShaderProgram extends TextureShaderProgram {
             throw new RuntimeException("mode must be in range [0, 2]");
         }
         use();
-        GLES20.glUniform1i(mModeHandle, mode);
+        GLState.getCurrent().uniform1i(mModeHandle, mode);
     }
 }
@@ -17,6 +17,8 @@
 package net.protyposis.android.spectaculum.effects;
 
 import net.protyposis.android.spectaculum.gles.Framebuffer;
+import net.protyposis.android.spectaculum.gles.FramebufferPool;
+import net.protyposis.android.spectaculum.gles.RenderGraph;
 import net.protyposis.android.spectaculum.gles.Texture2D;
 import net.protyposis.android.spectaculum.gles.TexturedRectangle;
 import net.protyposis.android.spectaculum.gles.qrmarker.CannyShaderProgram;
@@ -28,7 +30,7 @@ import net.protyposis.android.spectaculum.gles.qrmarker.QrResponseShaderProgram;
 /**
  * Created by Mario on 07.09.2014.
  */
-public class QrMarkerEffect extends BaseEffect {
+public class QrMarkerEffect extends BaseEffect implements RenderGraphEffect, WriteOnlyTargetEffect {
 
     private GaussShaderProgram mGaussShader;
     private GradientShaderProgram mGradientShader;
@@ -36,8 +38,6 @@ public class QrMarkerEffect extends BaseEffect {
     private QrResponseShaderProgram mQrResponseShader;
     private ConsenseShaderProgram mConsensusShader;
 
-    private Framebuffer mFramebuffer1;
-    private Framebuffer mFramebuffer2;
 
     private TexturedRectangle mTexturedRectangle;
 
@@ -53,6 +53,9 @@ public class QrMarkerEffect extends BaseEffect {
         // Cannot call it on base class QrMarkerShaderProgram because it is hidden outside its package
         GaussShaderProgram.setTextureSizeHack(width, height);
 
+        // Shaders of a previous initialization have the previous size baked in and are replaced
+        deleteShaders();
+
         mGaussShader = new GaussShaderProgram();
         mGaussShader.setTextureSize(width, height);
 
@@ -68,44 +71,149 @@ public class QrMarkerEffect extends BaseEffect {
         mConsensusShader = new ConsenseShaderProgram();
         mConsensusShader.setTextureSize(width, height);
 
-        mFramebuffer1 = new Framebuffer(width, height);
-        mFramebuffer2 = new Framebuffer(width, height);
-
         mTexturedRectangle = new TexturedRectangle();
         mTexturedRectangle.reset();
 
-        setInitialized();
+        setInitialized(width, height);
+    }
+
+    @Override
+    public void release() {
+        deleteShaders();
+        super.release();
+    }
+
+    private void deleteShaders() {
+        if(mGaussShader == null) {
+            return;
+        }
+        mGaussShader.deleteProgram();
+        mGradientShader.deleteProgram();
+        mCannyShader.deleteProgram();
+        mQrResponseShader.deleteProgram();
+        mConsensusShader.deleteProgram();
+        mGaussShader = null;
+        mGradientShader = null;
+        mCannyShader = null;
+        mQrResponseShader = null;
+        mConsensusShader = null;
     }
 
     @Override
     public void apply(Texture2D source, Framebuffer target) {
-        applyCannyEdge(source, mFramebuffer1);
+        FramebufferPool framebufferPool = FramebufferPool.getCurrent();
+        Framebuffer framebuffer1 = framebufferPool.obtain(getWidth(), getHeight());
+        Framebuffer framebuffer2 = framebufferPool.obtain(getWidth(), getHeight());
+
+        applyCannyEdge(source, framebuffer1, framebuffer1, framebuffer2);
 
-        mFramebuffer2.bind();
+        framebuffer2.bind();
         mQrResponseShader.use();
-        mQrResponseShader.setTexture(mFramebuffer1.getTexture());
+        mQrResponseShader.setTexture(framebuffer1.getTexture());
         mTexturedRectangle.draw(mQrResponseShader);
 
         target.bind();
         mConsensusShader.use();
-        mConsensusShader.setTexture(mFramebuffer2.getTexture());
+        mConsensusShader.setTexture(framebuffer2.getTexture());
         mTexturedRectangle.draw(mConsensusShader);
+
+        framebufferPool.release(framebuffer1);
+        framebufferPool.release(framebuffer2);
+    }
+
+    @Override
+    public boolean isTargetWriteOnly() {
+        return true;
+    }
+
+    @Override
+    public void declarePasses(RenderGraph graph, RenderGraph.Resource source, RenderGraph.Resource target) {
+        RenderGraph.Resource cannyEdge = graph.createTransient();
+        RenderGraph.Resource qrResponse = graph.createTransient();
+
+        declareCannyEdgePasses(graph, source, cannyEdge);
+
+        graph.addPass("qrresponse", qrResponse, new RenderGraph.PassCallback() {
+            @Override
+            public void render(Texture2D[] inputs, Framebuffer target) {
+                target.bind();
+                mQrResponseShader.use();
+                mQrResponseShader.setTexture(inputs[0]);
+                mTexturedRectangle.draw(mQrResponseShader);
+            }
+        }, cannyEdge);
+
+        graph.addPass("consensus", target, new RenderGraph.PassCallback() {
+            @Override
+            public void render(Texture2D[] inputs, Framebuffer target) {
+                target.bind();
+                mConsensusShader.use();
+                mConsensusShader.setTexture(inputs[0]);
+                mTexturedRectangle.draw(mConsensusShader);
+            }
+        }, qrResponse);
+    }
+
+    private void declareCannyEdgePasses(RenderGraph graph, RenderGraph.Resource source, RenderGraph.Resource target) {
+        RenderGraph.Resource gauss = graph.createTransient();
+        RenderGraph.Resource gradient = graph.createTransient();
+
+        graph.addPass("gauss", gauss, new RenderGraph.PassCallback() {
+            @Override
+            public void render(Texture2D[] inputs, Framebuffer target) {
+                target.bind();
+                mGaussShader.use();
+                mGaussShader.setTexture(inputs[0]);
+                mTexturedRectangle.draw(mGaussShader);
+            }
+        }, source);
+
+        graph.addPass("gradient", gradient, new RenderGraph.PassCallback() {
+            @Override
+            public void render(Texture2D[] inputs, Framebuffer target) {
+                target.bind();
+                mGradientShader.use();
+                mGradientShader.setTexture(inputs[0]);
+                mTexturedRectangle.draw(mGradientShader);
+            }
+        }, gauss);
+
+        graph.addPass("canny", target, new RenderGraph.PassCallback() {
+            @Override
+            public void render(Texture2D[] inputs, Framebuffer target) {
+                target.bind();
+                mCannyShader.use();
+                mCannyShader.setTexture(inputs[0]);
+                mTexturedRectangle.draw(mCannyShader);
+            }
+        }, gradient);
     }
 
     private void applyCannyEdge(Texture2D source, Framebuffer target) {
-        mFramebuffer1.bind();
+        FramebufferPool framebufferPool = FramebufferPool.getCurrent();
+        Framebuffer framebuffer1 = framebufferPool.obtain(getWidth(), getHeight());
+        Framebuffer framebuffer2 = framebufferPool.obtain(getWidth(), getHeight());
+
+        applyCannyEdge(source, target, framebuffer1, framebuffer2);
+
+        framebufferPool.release(framebuffer1);
+        framebufferPool.release(framebuffer2);
+    }
+
+    private void applyCannyEdge(Texture2D source, Framebuffer target, Framebuffer tmp1, Framebuffer tmp2) {
+        tmp1.bind();
         mGaussShader.use();
         mGaussShader.setTexture(source);
         mTexturedRectangle.draw(mGaussShader);
 
-        mFramebuffer2.bind();
+        tmp2.bind();
         mGradientShader.use();
-        mGradientShader.setTexture(mFramebuffer1.getTexture());
+        mGradientShader.setTexture(tmp1.getTexture());
         mTexturedRectangle.draw(mGradientShader);
 
         target.bind();
         mCannyShader.use();
-        mCannyShader.setTexture(mFramebuffer2.getTexture());
+        mCannyShader.setTexture(tmp2.getTexture());
         mTexturedRectangle.draw(mCannyShader);
     }
 
@@ -118,7 +226,7 @@ public class QrMarkerEffect extends BaseEffect {
      * to share the resources and reuse a common cannyedge subroutine than to instantiate it as
      * a separate effect. If one of the two effects is needed, the other comes with it for free.
      */
-    public class CannyEdgeEffect extends BaseEffect {
+    public class CannyEdgeEffect extends BaseEffect implements RenderGraphEffect, WriteOnlyTargetEffect {
 
         @Override
         public void init(int width, int height) {
@@ -127,9 +235,32 @@ public class QrMarkerEffect extends BaseEffect {
             }
         }
 
+        @Override
+        public boolean isInitialized() {
+            return QrMarkerEffect.this.isInitialized();
+        }
+
+        /**
+         * Does nothing because the resources belong to the QrMarker effect, which needs to be
+         * released itself.
+         */
+        @Override
+        public void release() {
+        }
+
         @Override
         public void apply(Texture2D source, Framebuffer target) {
             applyCannyEdge(source, target);
         }
+
+        @Override
+        public boolean isTargetWriteOnly() {
+            return true;
+        }
+
+        @Override
+        public void declarePasses(RenderGraph graph, RenderGraph.Resource source, RenderGraph.Resource target) {
+            declareCannyEdgePasses(graph, source, target);
+        }
     }
 }